@@ -0,0 +1,81 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+//汇编输出缓冲的开销：往AsmBuilder里写n行（add、li、lw轮流），统计每行分配的字节数和用时
+//对照组是改成字节缓冲之前的写法：String.format拼进StringBuffer，立即数和栈槽地址先转成字符串再传进来
+//分配字节数由ThreadMXBean按线程统计，包括缓冲区扩容；用时取多次运行中最快的一次
+//用法：java AsmBuilderBench [行数] [运行次数]
+public class AsmBuilderBench {
+    public static void main(String[] args){
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 6_000_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        if(!emitOld(3000).toString().equals(emitNew(3000).toString())){
+            throw new IllegalStateException("old and new builders disagree");
+        }
+        report("StringBuffer + String.format", lines, runs, () -> emitOld(lines));
+        report("AsmBuilder", lines, runs, () -> emitNew(lines));
+    }
+
+    private static void report(String name, int lines, int runs, Runnable body){
+        long bytes = allocatedBytes();
+        body.run();
+        bytes = allocatedBytes() - bytes;
+        double ms = Bench.bestMillis(2, runs, body);
+        System.out.printf("%-30s %9d lines: %8.1f bytes per line  %6.1f ns per line%n",
+                name, lines, (double) bytes / lines, ms * 1e6 / lines);
+    }
+
+    //当前线程累计分配的字节数，只有HotSpot的ThreadMXBean提供
+    private static long allocatedBytes(){
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean)){
+            throw new IllegalStateException("thread allocation counter is not supported by this JVM");
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final String[] regs = {"a0", "a1", "a2", "t2", "s1", "s2", "s10", "t6"};
+
+    private static AsmBuilder emitNew(int lines){
+        AsmBuilder builder = new AsmBuilder();
+        for(int i = 0; i < lines; i++){
+            String dest = regs[i & 7], src = regs[(i >> 3) & 7];
+            switch (i % 3){
+                case 0: builder.op2("add", dest, src, regs[(i >> 6) & 7]); break;
+                case 1: builder.op1("li", dest, i - 1000); break;
+                default: builder.mem("lw", dest, (i & 255) * 4, "sp"); break;
+            }
+        }
+        return builder;
+    }
+
+    private static OldAsmBuilder emitOld(int lines){
+        OldAsmBuilder builder = new OldAsmBuilder();
+        for(int i = 0; i < lines; i++){
+            String dest = regs[i & 7], src = regs[(i >> 3) & 7];
+            switch (i % 3){
+                case 0: builder.op2("add", dest, src, regs[(i >> 6) & 7]); break;
+                case 1: builder.op1("li", dest, String.valueOf(i - 1000)); break;
+                default: builder.op1("lw", dest, String.format("%d(sp)", (i & 255) * 4)); break;
+            }
+        }
+        return builder;
+    }
+
+    //改动之前的AsmBuilder
+    private static class OldAsmBuilder {
+        private final StringBuffer buffer = new StringBuffer();
+
+        void op2(String op, String dest, String lhs, String rhs) {
+            buffer.append(String.format("  %s %s, %s, %s\n", op, dest, lhs, rhs));
+        }
+        void op1(String op, String dest, String lhs) {
+            buffer.append(String.format("  %s %s, %s\n", op, dest, lhs));
+        }
+
+        @Override
+        public String toString(){
+            return buffer.toString();
+        }
+    }
+}
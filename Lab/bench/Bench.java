@@ -0,0 +1,16 @@
+//bench下各个基准共用的计时：先预热，再取多次运行中最快的一次，减少GC和JIT带来的抖动
+public class Bench {
+    //运行warmup次不计时，再运行runs次，返回最快一次的毫秒数
+    public static double bestMillis(int warmup, int runs, Runnable body){
+        for(int i = 0; i < warmup; i++){
+            body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < runs; i++){
+            long start = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+//线性扫描分配器的伸缩性：区间数从1k增加到256k，每个区间的平均用时应该基本不变
+//区间是随机生成的，每个位置开始一个区间：大多数只活几条指令，每16个里有一个活几百条指令，一部分带空洞
+//长区间同时活着的有几十个，超过寄存器数，所以每轮都会溢出，回收、抢占的路径都会走到
+//用法：java LinearScanBench [每个规模的运行次数]
+public class LinearScanBench {
+    private static final int REG_NUM = 25;
+
+    public static void main(String[] args){
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        //与MyRISCVGenerator中的allRegs一致：a0-a7、s0-s11、t2-t6
+        boolean[] calleeSaved = new boolean[REG_NUM];
+        for(int r = 8; r < 20; r++){
+            calleeSaved[r] = true;
+        }
+        //先在中等规模上预热，否则最小的规模测到的主要是JIT编译之前的解释执行
+        allocate(generate(16000, new Random(0)), calleeSaved, 20);
+        for(int n = 1000; n <= 256000; n *= 4){
+            List<LiveInterval> intervals = generate(n, new Random(n));
+            double ms = allocate(intervals, calleeSaved, runs);
+            int spilled = 0;
+            for(LiveInterval interval : intervals){
+                if(interval.isSpilled()) spilled++;
+            }
+            System.out.printf("%7d intervals: %9.3f ms  %6.1f ns per interval  %6d spilled%n",
+                    n, ms, ms * 1e6 / n, spilled);
+        }
+    }
+
+    //重复分配同一组区间，每次先清掉上一次的结果，返回最快一次的毫秒数
+    private static double allocate(List<LiveInterval> intervals, boolean[] calleeSaved, int runs){
+        List<LiveInterval[]> moves = Collections.emptyList();
+        return Bench.bestMillis(5, runs, () -> {
+            for(LiveInterval interval : intervals){
+                interval.setReg(-1);
+                interval.setSpilled(false);
+            }
+            new LinearScanAllocator(REG_NUM, calleeSaved).allocate(intervals, moves);
+        });
+    }
+
+    private static List<LiveInterval> generate(int n, Random random){
+        List<LiveInterval> intervals = new ArrayList<>();
+        for(int start = 0; start < n; start++){
+            int length = start % 16 == 0 ? 50 + random.nextInt(450) : 1 + random.nextInt(6);
+            int end = start + length;
+            LiveInterval interval = new LiveInterval(start);
+            //和活跃分析一样从后往前加段，四分之一的长区间中间挖一个空洞
+            if(length > 20 && random.nextInt(4) == 0){
+                int holeFrom = start + length / 3, holeTo = start + 2 * length / 3;
+                interval.addRange(holeTo + 1, end);
+                interval.addRange(start, holeFrom - 1);
+            }else{
+                interval.addRange(start, end);
+            }
+            interval.finishRanges();
+            interval.setCallCrossing(random.nextInt(8) == 0);
+            interval.addSpillCost(1 + random.nextInt(100));
+            intervals.add(interval);
+        }
+        return intervals;
+    }
+}
@@ -0,0 +1,77 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+//活跃变量分析的用时：生成一个main，循环体里连续n个if/else，每个分支都读写几个局部变量
+//生成的程序按-O0走一遍前端，拆边之后读成IRFunction，然后只对活跃分析计时（不含指令选择），取多次运行中最快的一次
+//位向量的长度和值的个数成正比，每轮迭代要处理所有块，所以用时大致按 块数 x 值数/64 增长
+//用法：java LivenessBench [运行次数]
+public class LivenessBench {
+    public static void main(String[] args){
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        //先在最大的规模上预热：只在小规模上预热时，JIT按小位向量优化的代码放到大规模上明显偏慢，反过来没有这个问题
+        Analysis warmup = new Analysis(compile(generate(4000)));
+        Bench.bestMillis(5, 1, warmup::run);
+        for(int n = 250; n <= 4000; n *= 2){
+            Analysis analysis = new Analysis(compile(generate(n)));
+            double ms = Bench.bestMillis(5, runs, analysis::run);
+            System.out.printf("%5d if/else: %6d blocks %7d values %2d iterations %9.2f ms%n",
+                    n, analysis.func.blockNum, analysis.func.valueNum, analysis.run(), ms);
+        }
+    }
+
+    //活跃分析的输入：指令选择和循环深度只算一次，计时只包括LivenessAnalysis本身
+    private static class Analysis {
+        final IRFunction func;
+        final InstructionSelector selector;
+        final double[] blockWeight;
+
+        Analysis(IRFunction func){
+            this.func = func;
+            this.selector = new InstructionSelector(func);
+            LoopInfo loopInfo = new LoopInfo(func.successors);
+            blockWeight = new double[func.blockNum];
+            for(int b = 0; b < func.blockNum; b++){
+                blockWeight[b] = Math.pow(10, loopInfo.getDepth(b));
+            }
+        }
+
+        //返回迭代轮数
+        int run(){
+            return new LivenessAnalysis(func, selector, blockWeight).getIterations();
+        }
+    }
+
+    //n个if/else，条件和分支里用到的变量随下标轮换，让每个变量都活过很多块
+    static String generate(int n){
+        StringBuilder source = new StringBuilder();
+        source.append("int main(){\n");
+        source.append("    int i = 0;\n");
+        for(int v = 0; v < 8; v++){
+            source.append("    int x").append(v).append(" = ").append(v).append(";\n");
+        }
+        source.append("    while(i < 100){\n");
+        for(int k = 0; k < n; k++){
+            int a = k % 8, b = (k + 3) % 8, c = (k + 5) % 8;
+            source.append("        if(x").append(a).append(" < i + ").append(k % 17).append("){\n");
+            source.append("            x").append(b).append(" = x").append(b).append(" + x").append(c).append(";\n");
+            source.append("        }else{\n");
+            source.append("            x").append(c).append(" = x").append(a).append(" - ").append(k % 13).append(";\n");
+            source.append("        }\n");
+        }
+        source.append("        i = i + 1;\n");
+        source.append("    }\n");
+        source.append("    return x0 + x1 + x2 + x3 + x4 + x5 + x6 + x7;\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    //和Main一样走前端生成LLVM IR（不跑优化pass），再按MyRISCVGenerator的顺序拆边、读快照
+    static IRFunction compile(String source){
+        SysYLexer lexer = new SysYLexer(CharStreams.fromString(source));
+        SysYParser parser = new SysYParser(new CommonTokenStream(lexer));
+        MyLLVMIRVisitor visitor = new MyLLVMIRVisitor();
+        visitor.visit(parser.program());
+        EdgeSplitter.split(visitor.module);
+        return new IRModule(visitor.module).getFunction("main");
+    }
+}
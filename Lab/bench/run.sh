@@ -0,0 +1,16 @@
+#!/bin/bash
+# 依次运行bench下的各个基准，每个基准测什么、怎么统计见对应类开头的注释
+# 生成代码的步数不在这里，用bench/steps.sh对比两次构建
+# 用法：在Lab下 make bench，或者 bash bench/run.sh [classes目录]
+cd "$(dirname "$0")/.." || exit 2
+CLASSES=$(cd "${1:-classes}" && pwd) || exit 2
+CP="$CLASSES:$CLASSPATH"
+
+echo "== LinearScanBench"
+java -classpath "$CP" LinearScanBench
+
+echo "== AsmBuilderBench"
+java -classpath "$CP" AsmBuilderBench
+
+echo "== LivenessBench"
+java -classpath "$CP" LivenessBench
@@ -0,0 +1,25 @@
+#!/bin/bash
+# 用某一次构建的编译器编译bench和tests下的.sysy，用RiscVSimulator执行，输出每个配置执行的指令数（步数）
+# 对比两次提交：分别构建到两个classes目录，各跑一遍再diff，模拟器总是用当前的
+# 用法：在Lab下 bash bench/steps.sh [编译器的classes目录] [模拟器的classes目录]，默认都是classes
+# 早期的提交不认识-O和-regalloc=linear，Main会忽略不认识的选项，这时只有-regalloc=graph的结果有区别
+# 早期的提交还会在当前目录写main.ll，所以编译器在临时目录里运行
+cd "$(dirname "$0")/.." || exit 2
+LAB=$(pwd)
+COMPILER=$(cd "${1:-classes}" && pwd) || exit 2
+SIMULATOR=$(cd "${2:-classes}" && pwd) || exit 2
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+for src in bench/*.sysy tests/*.sysy; do
+    name=$(basename "$src" .sysy)
+    for config in -O0 -O1 -O2; do
+        for alloc in -regalloc=linear -regalloc=graph; do
+            asm="$WORK/$name.s"
+            rm -f "$asm"
+            (cd "$WORK" && java -classpath "$COMPILER:$CLASSPATH" Main "$LAB/$src" "$asm" $config $alloc > /dev/null 2>&1)
+            result=$( [ -f "$asm" ] && java -classpath "$SIMULATOR" RiscVSimulator "$asm" 2>&1 | head -1 )
+            printf "%-16s %-4s %-16s %s\n" "$name" "$config" "$alloc" "${result:-compile error}"
+        done
+    done
+done
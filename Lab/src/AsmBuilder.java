@@ -1,30 +1,207 @@
-public class AsmBuilder {
-    AsmBuilder(){
-        this.buffer = new StringBuffer();
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+//汇编输出缓冲：直接往可增长的byte数组里追加，不经过String.format，也不加锁
+//常用的助记符、寄存器名预先转成字节数组，整数按位写入，不需要装箱和临时字符串
+public class AsmBuilder implements AsmEmitter {
+    private static final String[] internedNames = {
+            "zero", "ra", "sp", "gp", "tp", "t0", "t1", "t2", "t3", "t4", "t5", "t6",
+            "a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7",
+            "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7", "s8", "s9", "s10", "s11",
+            "li", "la", "mv", "lw", "sw", "add", "addi", "sub", "mul", "mulh", "div", "rem", "divu", "remu",
+            "and", "andi", "or", "ori", "xor", "xori", "sll", "slli", "sra", "srai", "srl", "srli",
+            "slt", "slti", "sltu", "sltiu", "seqz", "snez", "neg",
+            "beq", "bne", "blt", "bge", "bgt", "ble", "bltu", "bgeu", "bgtu", "bleu", "beqz", "bnez", "j", "call", "ret", "ecall",
+            ".data", ".text", ".globl", ".word", ".zero", ".fill", ".bss", ".align"
+    };
+    private static final HashMap<String, byte[]> interned = new HashMap<>();
+
+    static {
+        for(String name : internedNames){
+            interned.put(name, name.getBytes(StandardCharsets.US_ASCII));
+        }
     }
 
-    private StringBuffer buffer;
+    private static final byte[] INDENT = {' ', ' '};
+    private static final byte[] COMMA = {',', ' '};
 
+    private byte[] buffer;
+    private int size;
+
+    AsmBuilder(){
+        this.buffer = new byte[1 << 12];
+    }
+
+    //兼容旧接口，会复制一份完整的输出，仅用于调试
     public StringBuffer getStringBuffer(){
-        return this.buffer;
+        return new StringBuffer(toString());
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    public void reset(){
+        size = 0;
+    }
+
+    //包装内部数组，不复制。在写出完成之前不能再往这个builder里追加内容
+    public ByteBuffer toByteBuffer(){
+        return ByteBuffer.wrap(buffer, 0, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    @Override
+    public String toString(){
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
     }
 
+    @Override
     public void label(String labelText){
-        buffer.append(String.format("%s:\n", labelText));
+        append(labelText);
+        appendByte(':');
+        appendByte('\n');
     }
+    @Override
     public void op2(String op, String dest, String lhs, String rhs) {
-        buffer.append(String.format("  %s %s, %s, %s\n", op, dest, lhs, rhs));
+        begin(op);
+        append(dest);
+        append(COMMA);
+        append(lhs);
+        append(COMMA);
+        append(rhs);
+        appendByte('\n');
     }
+    @Override
+    public void op2(String op, String dest, String lhs, int imm) {
+        begin(op);
+        append(dest);
+        append(COMMA);
+        append(lhs);
+        append(COMMA);
+        appendInt(imm);
+        appendByte('\n');
+    }
+    @Override
     public void op1(String op, String dest, String lhs) {
-        buffer.append(String.format("  %s %s, %s\n", op, dest, lhs));
+        begin(op);
+        append(dest);
+        append(COMMA);
+        append(lhs);
+        appendByte('\n');
+    }
+    @Override
+    public void op1(String op, String dest, int imm) {
+        begin(op);
+        append(dest);
+        append(COMMA);
+        appendInt(imm);
+        appendByte('\n');
     }
+    @Override
+    public void mem(String op, String reg, int offset, String base) {
+        begin(op);
+        append(reg);
+        append(COMMA);
+        appendInt(offset);
+        appendByte('(');
+        append(base);
+        appendByte(')');
+        appendByte('\n');
+    }
+    @Override
     public void op0(String op, String dest) {
-        buffer.append(String.format("  %s %s\n", op, dest));
+        begin(op);
+        append(dest);
+        appendByte('\n');
+    }
+    @Override
+    public void op0(String op, int imm) {
+        begin(op);
+        appendInt(imm);
+        appendByte('\n');
     }
+    @Override
     public void op(String op) {
-        buffer.append(String.format("  %s\n", op));
+        append(INDENT);
+        append(op);
+        appendByte('\n');
     }
+    @Override
     public void newline() {
-        buffer.append("\n");
+        appendByte('\n');
+    }
+
+    private void begin(String op){
+        append(INDENT);
+        append(op);
+        appendByte(' ');
+    }
+
+    private void ensureCapacity(int extra){
+        if(size + extra > buffer.length){
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + extra)];
+            System.arraycopy(buffer, 0, newBuffer, 0, size);
+            buffer = newBuffer;
+        }
+    }
+
+    private void appendByte(int b){
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void append(byte[] bytes){
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void append(String text){
+        byte[] bytes = interned.get(text);
+        if(bytes != null){
+            append(bytes);
+            return;
+        }
+        int n = text.length();
+        ensureCapacity(n);
+        for(int i = 0; i < n; i++){
+            char c = text.charAt(i);
+            if(c >= 0x80){
+                //标签等一般都是ASCII，遇到非ASCII字符时退回到按UTF-8编码
+                append(text.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[size + i] = (byte) c;
+        }
+        size += n;
+    }
+
+    private void appendInt(int value){
+        if(value == Integer.MIN_VALUE){
+            append("-2147483648");
+            return;
+        }
+        ensureCapacity(11);
+        if(value < 0){
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for(int t = value; t >= 10; t /= 10){
+            digits++;
+        }
+        for(int i = size + digits - 1; i >= size; i--){
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
     }
 }
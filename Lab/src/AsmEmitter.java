@@ -0,0 +1,16 @@
+//汇编输出接口：AsmBuilder直接写出文本，AsmInstList先记录下来，方便后续在汇编层面做优化
+public interface AsmEmitter {
+    void label(String labelText);
+    void op2(String op, String dest, String lhs, String rhs);
+    void op2(String op, String dest, String lhs, int imm);
+    void op1(String op, String dest, String lhs);
+    void op1(String op, String dest, int imm);
+    //访存指令：op reg, offset(base)
+    void mem(String op, String reg, int offset, String base);
+    void op0(String op, String dest);
+    void op0(String op, int imm);
+    void op(String op);
+    void newline();
+    //已经输出的量（AsmBuilder是字节数，AsmInstList是指令数），用来判断一段生成有没有产生代码
+    int size();
+}
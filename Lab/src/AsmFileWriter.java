@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//流式写出汇编：每段汇编生成完就交给后台线程写入FileChannel，调用方可以同时生成下一段
+//同一时刻最多只有一段在写，submit会先等上一段写完，所以调用方轮流使用两个AsmBuilder即可保证内存有界
+public class AsmFileWriter implements AutoCloseable {
+    private final FileChannel channel;
+    private final ExecutorService executor;
+    private Future<?> pending;
+
+    public AsmFileWriter(String destPath) throws IOException {
+        channel = FileChannel.open(Paths.get(destPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "asm-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //异步写出builder中的内容。返回后上一次提交的builder已经写完，可以reset后复用
+    public void submit(AsmBuilder builder) throws IOException {
+        waitPending();
+        ByteBuffer bytes = builder.toByteBuffer();
+        pending = executor.submit(() -> {
+            while(bytes.hasRemaining()){
+                channel.write(bytes);
+            }
+            return null;
+        });
+    }
+
+    //等待上一次提交的写操作完成，写出时的异常在这里抛给调用方
+    public void waitPending() throws IOException {
+        if(pending == null) return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+        } finally {
+            pending = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            waitPending();
+        } finally {
+            executor.shutdown();
+            channel.close();
+        }
+    }
+}
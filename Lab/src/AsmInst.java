@@ -0,0 +1,143 @@
+//一条记录下来的汇编。字段含义按format区分：
+//  OP2  op dest, lhs, rhs   （hasImm时rhs换成imm）
+//  OP1  op dest, lhs        （hasImm时lhs换成imm）
+//  MEM  op dest, imm(lhs)
+//  OP0  op dest             （hasImm时dest换成imm）
+//  OP   op
+//  LABEL dest:
+//  NEWLINE 空行
+public class AsmInst {
+    public static final int LABEL = 0, NEWLINE = 1, OP = 2, OP0 = 3, OP1 = 4, OP2 = 5, MEM = 6;
+
+    public int format;
+    public String op;
+    public String dest;
+    public String lhs;
+    public String rhs;
+    public int imm;
+    public boolean hasImm;
+    public boolean deleted;
+
+    AsmInst(int format, String op, String dest, String lhs, String rhs, int imm, boolean hasImm){
+        this.format = format;
+        this.op = op;
+        this.dest = dest;
+        this.lhs = lhs;
+        this.rhs = rhs;
+        this.imm = imm;
+        this.hasImm = hasImm;
+    }
+
+    public boolean isNewline(){
+        return format == NEWLINE;
+    }
+
+    //标签、跳转、调用、伪指令等会改变控制流或者不是普通指令，窥孔窗口不跨过它们
+    public boolean isBarrier(){
+        if(format == LABEL || format == OP || format == OP0) return true;
+        if(format == OP1 || format == OP2) return isBranch();
+        return false;
+    }
+
+    public boolean isBranch(){
+        return op.charAt(0) == 'b';
+    }
+
+    //la的第二个操作数是符号名，即使和寄存器同名也不是读寄存器
+    public boolean isAddress(){
+        return format == OP1 && op.equals("la");
+    }
+
+    public boolean isStore(){
+        return format == MEM && op.charAt(0) == 's';
+    }
+
+    //这条指令写入的寄存器，没有时返回null
+    public String getDef(){
+        if(format == MEM) return isStore() ? null : dest;
+        if(format == OP1 || format == OP2) return isBranch() ? null : dest;
+        return null;
+    }
+
+    public boolean reads(String reg){
+        switch (format){
+            case MEM:
+                return reg.equals(lhs) || (isStore() && reg.equals(dest));
+            case OP2:
+                return reg.equals(lhs) || (!hasImm && !isBranch() && reg.equals(rhs)) || (isBranch() && reg.equals(dest));
+            case OP1:
+                return (!hasImm && !isBranch() && !isAddress() && reg.equals(lhs)) || (isBranch() && reg.equals(dest));
+            default:
+                return false;
+        }
+    }
+
+    //这条指令读取的寄存器，与reads一致
+    public String[] getUses(){
+        switch (format){
+            case MEM:
+                return isStore() ? new String[]{lhs, dest} : new String[]{lhs};
+            case OP2:
+                if(isBranch()) return new String[]{dest, lhs};
+                return hasImm ? new String[]{lhs} : new String[]{lhs, rhs};
+            case OP1:
+                if(isBranch()) return new String[]{dest};
+                return hasImm || isAddress() ? new String[0] : new String[]{lhs};
+            default:
+                return new String[0];
+        }
+    }
+
+    public boolean writes(String reg){
+        return reg.equals(getDef());
+    }
+
+    //把读取from的地方改为读取to，写入的寄存器不变
+    public void replaceUse(String from, String to){
+        switch (format){
+            case MEM:
+                if(from.equals(lhs)) lhs = to;
+                if(isStore() && from.equals(dest)) dest = to;
+                break;
+            case OP2:
+                if(from.equals(lhs)) lhs = to;
+                if(!hasImm && !isBranch() && from.equals(rhs)) rhs = to;
+                if(isBranch() && from.equals(dest)) dest = to;
+                break;
+            case OP1:
+                if(!hasImm && !isBranch() && !isAddress() && from.equals(lhs)) lhs = to;
+                if(isBranch() && from.equals(dest)) dest = to;
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void emitTo(AsmEmitter out){
+        switch (format){
+            case LABEL:
+                out.label(dest);
+                break;
+            case NEWLINE:
+                out.newline();
+                break;
+            case OP:
+                out.op(op);
+                break;
+            case OP0:
+                if(hasImm) out.op0(op, imm); else out.op0(op, dest);
+                break;
+            case OP1:
+                if(hasImm) out.op1(op, dest, imm); else out.op1(op, dest, lhs);
+                break;
+            case OP2:
+                if(hasImm) out.op2(op, dest, lhs, imm); else out.op2(op, dest, lhs, rhs);
+                break;
+            case MEM:
+                out.mem(op, dest, imm, lhs);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+
+//把一个函数的汇编先按指令记录下来，做完窥孔等汇编层面的优化后再写入AsmBuilder
+//删除指令只打标记，emitTo时跳过，避免在ArrayList中间反复移动元素
+public class AsmInstList implements AsmEmitter {
+    private final ArrayList<AsmInst> insts = new ArrayList<>();
+
+    @Override
+    public int size(){
+        return insts.size();
+    }
+
+    public AsmInst get(int i){
+        return insts.get(i);
+    }
+
+    public void set(int i, AsmInst inst){
+        insts.set(i, inst);
+    }
+
+    public void delete(int i){
+        insts.get(i).deleted = true;
+    }
+
+    //从i之后找下一条未删除的指令（跳过空行），找不到返回-1
+    public int next(int i){
+        for(int j = i + 1; j < insts.size(); j++){
+            AsmInst inst = insts.get(j);
+            if(!inst.deleted && !inst.isNewline()) return j;
+        }
+        return -1;
+    }
+
+    //从i之前找上一条未删除的指令（跳过空行），找不到返回-1
+    public int prev(int i){
+        for(int j = i - 1; j >= 0; j--){
+            AsmInst inst = insts.get(j);
+            if(!inst.deleted && !inst.isNewline()) return j;
+        }
+        return -1;
+    }
+
+    //reg在第i条指令之后是否不再被读取。只用于t0、t1这类临时寄存器，它们不会跨基本块活跃，遇到标签、跳转即可认为已死
+    public boolean isDeadAfter(int i, String reg){
+        for(int j = next(i); j != -1; j = next(j)){
+            AsmInst inst = insts.get(j);
+            if(inst.isBarrier()) return !inst.reads(reg);
+            if(inst.reads(reg)) return false;
+            if(inst.writes(reg)) return true;
+        }
+        return true;
+    }
+
+    //窥孔删掉一组指令之后两个空行会挨在一起，只保留有指令隔开的空行，标签之后的空行也不要
+    public void emitTo(AsmEmitter out){
+        boolean blank = true;
+        for(AsmInst inst : insts){
+            if(inst.deleted) continue;
+            if(inst.isNewline()){
+                if(blank) continue;
+                blank = true;
+            }else{
+                blank = inst.format == AsmInst.LABEL;
+            }
+            inst.emitTo(out);
+        }
+    }
+
+    @Override
+    public void label(String labelText) {
+        insts.add(new AsmInst(AsmInst.LABEL, null, labelText, null, null, 0, false));
+    }
+    @Override
+    public void op2(String op, String dest, String lhs, String rhs) {
+        insts.add(new AsmInst(AsmInst.OP2, op, dest, lhs, rhs, 0, false));
+    }
+    @Override
+    public void op2(String op, String dest, String lhs, int imm) {
+        insts.add(new AsmInst(AsmInst.OP2, op, dest, lhs, null, imm, true));
+    }
+    @Override
+    public void op1(String op, String dest, String lhs) {
+        insts.add(new AsmInst(AsmInst.OP1, op, dest, lhs, null, 0, false));
+    }
+    @Override
+    public void op1(String op, String dest, int imm) {
+        insts.add(new AsmInst(AsmInst.OP1, op, dest, null, null, imm, true));
+    }
+    @Override
+    public void mem(String op, String reg, int offset, String base) {
+        insts.add(new AsmInst(AsmInst.MEM, op, reg, base, null, offset, true));
+    }
+    @Override
+    public void op0(String op, String dest) {
+        insts.add(new AsmInst(AsmInst.OP0, op, dest, null, null, 0, false));
+    }
+    @Override
+    public void op0(String op, int imm) {
+        insts.add(new AsmInst(AsmInst.OP0, op, null, null, null, imm, true));
+    }
+    @Override
+    public void op(String op) {
+        insts.add(new AsmInst(AsmInst.OP, op, null, null, null, 0, false));
+    }
+    @Override
+    public void newline() {
+        insts.add(new AsmInst(AsmInst.NEWLINE, null, null, null, null, 0, false));
+    }
+}
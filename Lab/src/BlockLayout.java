@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+//基本块布局：按静态估计的边频率把基本块串成链，链内相邻的块之间的跳转可以省略（fall-through）
+//  边频率 = 源块的执行频率（10^循环深度）× 分支概率。跳出循环的边概率为0.1，其余条件跳转两边平分
+//  从频率最高的边开始，源块是某条链的尾、目标块是另一条链的头时把两条链接起来（Pettis-Hansen）
+//  回边比循环头到循环体的边略重，while循环被旋转成循环体在前、条件在后，每轮只剩一条条件跳转
+//  入口块所在的链固定在最前面，之后每次放与已放置的块联系最紧的链，循环体保持连续，冷的出口排到后面
+//  没有终结指令的块会顺序落入原来的下一个块，这两个块始终相邻
+public class BlockLayout {
+    private static final double EXIT_PROBABILITY = 0.1;
+
+    private final int[] order;
+    //按基本块下标索引，布局中紧跟在后面的块，最后一个块为-1
+    private final int[] next;
+    private final int fallThroughNum;
+    private final int listFallThroughNum;
+
+    public BlockLayout(IRFunction func, LoopInfo loopInfo, double[] blockWeight){
+        int n = func.blockNum;
+        //每个块所在链的头、尾，链用nextInChain串起来
+        int[] head = new int[n];
+        int[] tail = new int[n];
+        int[] nextInChain = new int[n];
+        for(int b = 0; b < n; b++){
+            head[b] = b;
+            tail[b] = b;
+            nextInChain[b] = -1;
+        }
+        List<double[]> edges = new ArrayList<>();
+        for(int b = 0; b < n; b++){
+            if(func.terminator[b] == -1){
+                if(b + 1 < n) link(b, b + 1, head, tail, nextInChain);
+                continue;
+            }
+            int[] succ = func.successors[b];
+            for(int s : succ){
+                edges.add(new double[]{edgeWeight(b, s, succ, loopInfo, blockWeight), b, s});
+            }
+        }
+        //频率相同时按原来的顺序，保证结果确定
+        edges.sort((x, y) -> Double.compare(y[0], x[0]));
+        for(double[] edge : edges){
+            int from = (int) edge[1], to = (int) edge[2];
+            if(to == 0 || tail[head[from]] != from || head[to] != to || head[from] == to) continue;
+            link(from, to, head, tail, nextInChain);
+        }
+        order = placeChains(n, head, nextInChain, edges);
+        next = new int[n];
+        for(int i = 0; i < n; i++){
+            next[order[i]] = i + 1 < n ? order[i + 1] : -1;
+        }
+        fallThroughNum = countFallThrough(func, next);
+        int[] listNext = new int[n];
+        for(int b = 0; b < n; b++){
+            listNext[b] = b + 1 < n ? b + 1 : -1;
+        }
+        listFallThroughNum = countFallThrough(func, listNext);
+    }
+
+    private static double edgeWeight(int from, int to, int[] succ, LoopInfo loopInfo, double[] blockWeight){
+        if(succ.length == 1) return blockWeight[from];
+        int exits = 0;
+        for(int s : succ){
+            if(loopInfo.getDepth(s) < loopInfo.getDepth(from)) exits++;
+        }
+        double probability = 1.0 / succ.length;
+        if(exits == 1){
+            probability = loopInfo.getDepth(to) < loopInfo.getDepth(from) ? EXIT_PROBABILITY : 1 - EXIT_PROBABILITY;
+        }
+        return blockWeight[from] * probability;
+    }
+
+    //把to所在的链接到from所在的链后面
+    private static void link(int from, int to, int[] head, int[] tail, int[] nextInChain){
+        int h = head[from], t = tail[to];
+        nextInChain[from] = to;
+        for(int b = to; b != -1; b = nextInChain[b]){
+            head[b] = h;
+        }
+        tail[h] = t;
+    }
+
+    //入口块的链放在最前面。已放置的块指向某条链中的块时，边频率累加到这条链上，每次取累计最大的链
+    //没有这样的链时（不可达的块）按原来的顺序取
+    private static int[] placeChains(int n, int[] head, int[] nextInChain, List<double[]> edges){
+        List<List<double[]>> outEdges = new ArrayList<>();
+        for(int b = 0; b < n; b++){
+            outEdges.add(new ArrayList<>());
+        }
+        for(double[] edge : edges){
+            outEdges.get((int) edge[1]).add(edge);
+        }
+        double[] connection = new double[n];
+        boolean[] placed = new boolean[n];
+        //队列中的项为{累计频率, 链头}，过时的项在取出时跳过
+        PriorityQueue<double[]> queue = new PriorityQueue<>((x, y) ->
+                x[0] != y[0] ? Double.compare(y[0], x[0]) : Double.compare(x[1], y[1]));
+        int[] order = new int[n];
+        int size = 0;
+        int scan = 0;
+        while(size < n){
+            int chain = -1;
+            if(size == 0){
+                chain = 0;
+            }
+            while(chain < 0 && !queue.isEmpty()){
+                double[] item = queue.poll();
+                int h = (int) item[1];
+                if(!placed[h] && item[0] == connection[h]) chain = h;
+            }
+            while(chain < 0){
+                if(head[scan] == scan && !placed[scan]) chain = scan;
+                scan++;
+            }
+            for(int b = chain; b != -1; b = nextInChain[b]){
+                placed[b] = true;
+                order[size++] = b;
+            }
+            for(int b = chain; b != -1; b = nextInChain[b]){
+                for(double[] edge : outEdges.get(b)){
+                    int h = head[(int) edge[2]];
+                    if(placed[h]) continue;
+                    connection[h] += edge[0];
+                    queue.add(new double[]{connection[h], h});
+                }
+            }
+        }
+        return order;
+    }
+
+    //布局中落入下一个块、不需要无条件跳转的块数
+    private static int countFallThrough(IRFunction func, int[] next){
+        int count = 0;
+        for(int b = 0; b < func.blockNum; b++){
+            if(func.terminator[b] == -1 || next[b] < 0) continue;
+            for(int s : func.successors[b]){
+                if(s == next[b]){
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int[] getOrder(){
+        return order;
+    }
+
+    public int getNext(int block){
+        return next[block];
+    }
+
+    //按布局生成时，终结指令跳到紧跟着的块而省略的跳转数
+    public int getFallThroughNum(){
+        return fallThroughNum;
+    }
+
+    //按前端生成的顺序时省略的跳转数
+    public int getListFallThroughNum(){
+        return listFallThroughNum;
+    }
+}
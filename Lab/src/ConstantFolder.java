@@ -0,0 +1,61 @@
+import java.util.IdentityHashMap;
+import java.util.function.Function;
+
+//在Java里对表达式求值，不依赖LLVM builder的隐式折叠。求值在生成IR之前进行，能求出值的子树直接生成常数
+//  按32位有符号数回绕，与i32的运算相同；除数为0、-2^31 / -1这类运行时才有定义（或未定义）的不折叠
+//  左值由调用者解析（常量、常量数组中下标都是常数的元素），折叠器不关心符号表
+//每个ExpContext的结果（包括"不是常数"）都缓存起来，外层表达式反复询问子树时不会重复遍历
+//语法树上同一个结点总在同一个作用域中求值，按结点缓存是安全的
+public class ConstantFolder {
+    private final Function<SysYParser.LValContext, Integer> lValValue;
+    private final IdentityHashMap<SysYParser.ExpContext, Integer> cache = new IdentityHashMap<>();
+
+    public ConstantFolder(Function<SysYParser.LValContext, Integer> lValValue){
+        this.lValValue = lValValue;
+    }
+
+    //ctx的值，不是常数时返回null
+    public Integer evaluate(SysYParser.ExpContext ctx){
+        if(cache.containsKey(ctx)) return cache.get(ctx);
+        Integer value = compute(ctx);
+        cache.put(ctx, value);
+        return value;
+    }
+
+    private Integer compute(SysYParser.ExpContext ctx){
+        if(ctx.number() != null){
+            return parseNumber(ctx.number().getText());
+        }else if(ctx.lVal() != null){
+            return lValValue.apply(ctx.lVal());
+        }else if(ctx.IDENT() != null){
+            return null;
+        }else if(ctx.unaryOp() != null){
+            Integer value = evaluate(ctx.exp(0));
+            if(value == null) return null;
+            if(ctx.unaryOp().MINUS() != null) return -value;
+            if(ctx.unaryOp().NOT() != null) return value == 0 ? 1 : 0;
+            return value;
+        }else if(ctx.exp().size() == 1){
+            return evaluate(ctx.exp(0));
+        }
+        Integer lhs = evaluate(ctx.exp(0));
+        Integer rhs = evaluate(ctx.exp(1));
+        if(lhs == null || rhs == null) return null;
+        if(ctx.PLUS() != null) return lhs + rhs;
+        if(ctx.MINUS() != null) return lhs - rhs;
+        if(ctx.MUL() != null) return lhs * rhs;
+        if(rhs == 0 || (lhs == Integer.MIN_VALUE && rhs == -1)) return null;
+        if(ctx.DIV() != null) return lhs / rhs;
+        return lhs % rhs;
+    }
+
+    //十进制、0开头的八进制、0x开头的十六进制。2147483648只能出现在负号后面，按回绕取-2^31
+    public static int parseNumber(String text){
+        if(text.startsWith("0x") || text.startsWith("0X")){
+            return (int) Long.parseLong(text.substring(2), 16);
+        }else if(text.startsWith("0") && text.length() > 1){
+            return (int) Long.parseLong(text.substring(1), 8);
+        }
+        return (int) Long.parseLong(text);
+    }
+}
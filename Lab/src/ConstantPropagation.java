@@ -0,0 +1,116 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//过程间常量传播
+//  参数都是常数的纯函数调用由IRInterpreter在编译时执行，调用换成结果
+//  所有调用处在同一个参数位置上传同一个常数时，把函数中的这个参数换成常数
+//求值有限制：每次调用不超过STEP_LIMIT条指令、递归不超过DEPTH_LIMIT层，整个module合计不超过TOTAL_STEPS条
+public class ConstantPropagation {
+    private static final int STEP_LIMIT = 100000;
+    private static final int DEPTH_LIMIT = 200;
+    private static final long TOTAL_STEPS = 2000000;
+
+    private final LLVMModuleRef module;
+    private int pureFunctions = 0;
+    private int evaluatedCalls = 0;
+    private int propagatedArguments = 0;
+
+    public ConstantPropagation(LLVMModuleRef module){
+        this.module = module;
+    }
+
+    public int getPureFunctions(){
+        return pureFunctions;
+    }
+
+    public int getEvaluatedCalls(){
+        return evaluatedCalls;
+    }
+
+    public int getPropagatedArguments(){
+        return propagatedArguments;
+    }
+
+    public void run(){
+        PurityAnalysis purity = new PurityAnalysis(module);
+        List<LLVMValueRef> functions = new ArrayList<>();
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            if(LLVMIsDeclaration(func) != 0) continue;
+            functions.add(func);
+            if(purity.isPure(func)) pureFunctions++;
+        }
+        evaluateCalls(functions, purity);
+        for(LLVMValueRef func : functions){
+            propagateArguments(func);
+        }
+    }
+
+    private void evaluateCalls(List<LLVMValueRef> functions, PurityAnalysis purity){
+        IRInterpreter interpreter = new IRInterpreter(STEP_LIMIT, DEPTH_LIMIT);
+        long budget = TOTAL_STEPS;
+        for(LLVMValueRef func : functions){
+            for(LLVMValueRef call : constantCalls(func, purity)){
+                if(budget <= 0) return;
+                int num = LLVMGetNumArgOperands(call);
+                long[] args = new long[num];
+                for(int k = 0; k < num; k++){
+                    args[k] = LLVMConstIntGetSExtValue(LLVMGetOperand(call, k));
+                }
+                Long result = interpreter.evaluate(LLVMGetCalledValue(call), args);
+                budget -= interpreter.getSteps();
+                if(result == null) continue;
+                LLVMTypeRef type = LLVMTypeOf(call);
+                if(LLVMGetTypeKind(type) != LLVMVoidTypeKind){
+                    LLVMReplaceAllUsesWith(call, LLVMConstInt(type, result, 1));
+                }
+                LLVMInstructionEraseFromParent(call);
+                evaluatedCalls++;
+            }
+        }
+    }
+
+    //func中调用纯函数、参数都是常数的call
+    private static List<LLVMValueRef> constantCalls(LLVMValueRef func, PurityAnalysis purity){
+        List<LLVMValueRef> calls = new ArrayList<>();
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                if(LLVMGetInstructionOpcode(inst) != LLVMCall || !purity.isPure(LLVMGetCalledValue(inst))) continue;
+                boolean constant = true;
+                for(int k = 0; k < LLVMGetNumArgOperands(inst); k++){
+                    constant &= LLVMIsAConstantInt(LLVMGetOperand(inst, k)) != null;
+                }
+                if(constant) calls.add(inst);
+            }
+        }
+        return calls;
+    }
+
+    //func的使用都是对它的直接调用时，各个参数位置上所有调用都传同一个常数的参数换成这个常数
+    private void propagateArguments(LLVMValueRef func){
+        if(LLVMGetValueName(func).getString().equals("main")) return;
+        List<LLVMValueRef> calls = new ArrayList<>();
+        for(LLVMUseRef use = LLVMGetFirstUse(func); use != null; use = LLVMGetNextUse(use)){
+            LLVMValueRef user = LLVMGetUser(use);
+            if(LLVMIsACallInst(user) == null || LLVMGetCalledValue(user).address() != func.address()) return;
+            calls.add(user);
+        }
+        if(calls.isEmpty()) return;
+        for(int i = 0; i < LLVMCountParams(func); i++){
+            LLVMValueRef param = LLVMGetParam(func, i);
+            if(LLVMGetFirstUse(param) == null) continue;
+            LLVMValueRef value = LLVMGetOperand(calls.get(0), i);
+            if(LLVMIsAConstantInt(value) == null) continue;
+            boolean same = true;
+            for(LLVMValueRef call : calls){
+                same &= LLVMGetOperand(call, i).address() == value.address();
+            }
+            if(!same) continue;
+            LLVMReplaceAllUsesWith(param, value);
+            propagatedArguments++;
+        }
+    }
+}
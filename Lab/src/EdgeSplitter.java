@@ -0,0 +1,74 @@
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//拆分从有多个后继的块流向含phi的块的边，中间插入只有一条br的块
+//phi的赋值只能生成在边上：写在来源块的终结指令之前，会覆盖在另一条出边上仍然活跃的值（循环回边上phi自己的旧值），
+//也会覆盖折叠进br的比较的操作数
+//拆分之后，后继中有phi的块都只有这一个后继，phi的赋值总在块尾、br之前按并行赋值生成
+public class EdgeSplitter {
+    //返回插入的块数
+    public static int split(LLVMModuleRef module){
+        LLVMContextRef context = LLVMGetModuleContext(module);
+        LLVMBuilderRef builder = LLVMCreateBuilderInContext(context);
+        int count = 0;
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            List<LLVMBasicBlockRef> blocks = new ArrayList<>();
+            for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+                blocks.add(bb);
+            }
+            for(LLVMBasicBlockRef bb : blocks){
+                LLVMValueRef term = LLVMGetBasicBlockTerminator(bb);
+                if(term == null || LLVMGetNumSuccessors(term) < 2) continue;
+                for(int k = 0; k < LLVMGetNumSuccessors(term); k++){
+                    LLVMBasicBlockRef succ = LLVMGetSuccessor(term, k);
+                    LLVMValueRef first = LLVMGetFirstInstruction(succ);
+                    if(first == null || LLVMGetInstructionOpcode(first) != LLVMPHI) continue;
+                    LLVMBasicBlockRef edge = LLVMInsertBasicBlockInContext(context, succ, "edge");
+                    LLVMPositionBuilderAtEnd(builder, edge);
+                    LLVMBuildBr(builder, succ);
+                    //br的两个目标相同时两条边一起拆，phi中来自bb的两项合并成来自edge的一项
+                    for(int j = k; j < LLVMGetNumSuccessors(term); j++){
+                        if(LLVMGetSuccessor(term, j).address() == succ.address()) LLVMSetSuccessor(term, j, edge);
+                    }
+                    replacePhiBlock(builder, succ, bb, edge);
+                    count++;
+                }
+            }
+        }
+        LLVMDisposeBuilder(builder);
+        return count;
+    }
+
+    //C API不能修改phi的来源块，重建phi：来自from的项改为来自to，只保留一项
+    private static void replacePhiBlock(LLVMBuilderRef builder, LLVMBasicBlockRef block, LLVMBasicBlockRef from, LLVMBasicBlockRef to){
+        List<LLVMValueRef> phis = new ArrayList<>();
+        for(LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null && LLVMGetInstructionOpcode(inst) == LLVMPHI;
+                inst = LLVMGetNextInstruction(inst)){
+            phis.add(inst);
+        }
+        for(LLVMValueRef phi : phis){
+            String name = LLVMGetValueName(phi).getString();
+            LLVMPositionBuilderBefore(builder, phi);
+            LLVMValueRef copy = LLVMBuildPhi(builder, LLVMTypeOf(phi), name);
+            boolean replaced = false;
+            for(int k = 0; k < LLVMCountIncoming(phi); k++){
+                LLVMBasicBlockRef incoming = LLVMGetIncomingBlock(phi, k);
+                if(incoming.address() == from.address()){
+                    if(replaced) continue;
+                    replaced = true;
+                    incoming = to;
+                }
+                LLVMValueRef[] values = {LLVMGetIncomingValue(phi, k)};
+                LLVMBasicBlockRef[] blocks = {incoming};
+                LLVMAddIncoming(copy, new PointerPointer<>(values), new PointerPointer<>(blocks), 1);
+            }
+            LLVMReplaceAllUsesWith(phi, copy);
+            LLVMInstructionEraseFromParent(phi);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+//栈帧布局（自底向上）：传给被调函数的栈参数、溢出栈槽、保存的ra和被调用者保存寄存器、栈上数组，总大小按16字节对齐
+//数组放在最上面，大数组不会把栈槽和保存区的偏移推出12位立即数的范围
+//溢出栈槽按活跃区间的冲突关系着色：互不相交的溢出变量共用一个栈槽，栈槽个数没有上限
+public class FrameLayout {
+    private static final int WORD = 4;
+
+    private final int outgoingSize;
+    private int slotNum;
+    private int spilledNum;
+    private final List<String> savedRegs = new ArrayList<>();
+    private boolean saveRa;
+    private int stackSize;
+    //栈上数组相对于数组区起点的偏移，按alloca的值编号索引
+    private final HashMap<Integer, Integer> arrayOffsets = new HashMap<>();
+    private int arraySize;
+
+    public FrameLayout(int outgoingSize){
+        this.outgoingSize = outgoingSize;
+    }
+
+    //按起点顺序为溢出的区间分配栈槽，优先沿用mv另一端的栈槽，其次取编号最小的不冲突的栈槽。可以重新计算的值不占栈槽
+    //mv的两端只在这条mv处相接时可以共用栈槽，此时生成的lw、sw读写同一个位置
+    public void assignSpillSlots(List<LiveInterval> intervals, List<LiveInterval[]> moves){
+        List<LiveInterval> spilled = new ArrayList<>();
+        for(LiveInterval interval : intervals){
+            if(needsSlot(interval)) spilled.add(interval);
+        }
+        spilled.sort(Comparator.comparingInt(LiveInterval::getStart));
+        IdentityHashMap<LiveInterval, List<LiveInterval>> partners = new IdentityHashMap<>();
+        for(LiveInterval[] move : moves){
+            if(!needsSlot(move[0]) || !needsSlot(move[1]) || move[0] == move[1]) continue;
+            partners.computeIfAbsent(move[0], k -> new ArrayList<>()).add(move[1]);
+            partners.computeIfAbsent(move[1], k -> new ArrayList<>()).add(move[0]);
+        }
+        //slots[s]为已经放进栈槽s、终点还没有被扫过的区间
+        List<List<LiveInterval>> slots = new ArrayList<>();
+        for(LiveInterval interval : spilled){
+            for(List<LiveInterval> members : slots){
+                members.removeIf(member -> member.getEnd() < interval.getStart());
+            }
+            List<LiveInterval> mine = partners.getOrDefault(interval, new ArrayList<>());
+            HashSet<LiveInterval> touchable = new HashSet<>(mine);
+            int slot = -1;
+            for(LiveInterval partner : mine){
+                int s = partner.getStackSlot();
+                if(s >= 0 && fits(interval, slots.get(s), touchable)){
+                    slot = s;
+                    break;
+                }
+            }
+            for(int s = 0; slot < 0 && s < slots.size(); s++){
+                if(fits(interval, slots.get(s), touchable)) slot = s;
+            }
+            if(slot < 0){
+                slot = slots.size();
+                slots.add(new ArrayList<>());
+            }
+            slots.get(slot).add(interval);
+            interval.setStackSlot(slot);
+        }
+        slotNum = slots.size();
+        spilledNum = spilled.size();
+    }
+
+    private static boolean needsSlot(LiveInterval interval){
+        return interval.isSpilled() && !interval.isRematerializable();
+    }
+
+    private static boolean fits(LiveInterval interval, List<LiveInterval> members, HashSet<LiveInterval> touchable){
+        for(LiveInterval member : members){
+            if(interval.intersects(member, touchable.contains(member))) return false;
+        }
+        return true;
+    }
+
+    public void addArray(int value, int size){
+        arrayOffsets.put(value, arraySize);
+        arraySize += size;
+    }
+
+    //在所有数组加入之后调用
+    public void setSavedRegs(List<String> regs, boolean saveRa){
+        savedRegs.clear();
+        savedRegs.addAll(regs);
+        this.saveRa = saveRa;
+        stackSize = (getArrayBase() + arraySize + 15) / 16 * 16;
+    }
+
+    private int getArrayBase(){
+        return getSavedBase() + (savedRegs.size() + (saveRa ? 1 : 0)) * WORD;
+    }
+
+    public int getArrayOffset(int value){
+        return getArrayBase() + arrayOffsets.get(value);
+    }
+
+    public int getArraySize(){
+        return arraySize;
+    }
+
+    public int getSlotOffset(LiveInterval interval){
+        return outgoingSize + interval.getStackSlot() * WORD;
+    }
+
+    public int getSavedBase(){
+        return outgoingSize + slotNum * WORD;
+    }
+
+    public int getStackSize(){
+        return stackSize;
+    }
+
+    public int getOutgoingSize(){
+        return outgoingSize;
+    }
+
+    public int getSlotNum(){
+        return slotNum;
+    }
+
+    public int getSpilledNum(){
+        return spilledNum;
+    }
+
+    public List<String> getSavedRegs(){
+        return savedRegs;
+    }
+
+    public boolean isRaSaved(){
+        return saveRa;
+    }
+}
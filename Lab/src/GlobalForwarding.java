@@ -0,0 +1,49 @@
+import java.util.Arrays;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//基本块内的全局变量转发：记录每个全局变量当前已知的值，后面的load直接改成读这个值
+//  store之后，已知值为store进去的值；没有已知值的load执行之后，已知值为load的结果
+//  call可能读写任何全局变量，已知值全部作废
+//不同全局变量之间、全局变量与局部变量之间都不会别名
+//SysY里没有指向全局变量的指针，数组元素的读写都经过GEP，不会与标量全局变量别名
+//改写后的load成为COPY，后端把它当作mv生成，寄存器分配时可以合并掉
+public class GlobalForwarding {
+    private int forwardedNum;
+
+    public GlobalForwarding(IRFunction func, int globalNum){
+        //按全局变量下标记录已知值的(kind, value)，kind为-1表示未知
+        int[] knownKind = new int[globalNum];
+        int[] knownValue = new int[globalNum];
+        for(int b = 0; b < func.blockNum; b++){
+            Arrays.fill(knownKind, -1);
+            for(int inst = func.blockStart[b]; inst <= func.getLastInstruction(b); inst++){
+                int op = func.opcode[inst];
+                if(op == LLVMCall){
+                    Arrays.fill(knownKind, -1);
+                }else if(op == LLVMStore && func.getOperandKind(inst, 1) == IRFunction.GLOBAL){
+                    int global = func.getOperandValue(inst, 1);
+                    knownKind[global] = func.getOperandKind(inst, 0);
+                    knownValue[global] = func.getOperandValue(inst, 0);
+                }else if(op == LLVMLoad && func.getOperandKind(inst, 0) == IRFunction.GLOBAL){
+                    int global = func.getOperandValue(inst, 0);
+                    if(isForwardable(knownKind[global])){
+                        func.rewriteAsCopy(inst, knownKind[global], knownValue[global]);
+                        forwardedNum++;
+                    }else{
+                        knownKind[global] = IRFunction.VALUE;
+                        knownValue[global] = inst;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isForwardable(int kind){
+        return kind == IRFunction.VALUE || kind == IRFunction.ARGUMENT || kind == IRFunction.CONST;
+    }
+
+    public int getForwardedNum(){
+        return forwardedNum;
+    }
+}
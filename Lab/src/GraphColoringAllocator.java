@@ -0,0 +1,369 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+//图着色寄存器分配（Chaitin-Briggs，带迭代合并，参考Appel《现代编译原理》11.4节）
+//没有预着色结点；溢出的变量通过t0/t1中转，不需要重写代码再来一轮，直接为它们分配栈槽即可
+public class GraphColoringAllocator implements RegisterAllocator {
+    private static final int SIMPLIFY = 0, FREEZE = 1, SPILL = 2, SPILLED = 3, COALESCED = 4, COLORED = 5, SELECT = 6;
+    private static final int MOVE_WORKLIST = 0, MOVE_ACTIVE = 1, MOVE_DONE = 2;
+
+    private final int regNum;
+    //按寄存器下标标记是否为被调用者保存的寄存器
+    private final boolean[] calleeSaved;
+
+    private int n;
+    private List<LiveInterval> nodes;
+    private HashSet<Long> adjSet;
+    private List<List<Integer>> adjList;
+    private int[] degree;
+    private int[] alias;
+    private int[] state;
+
+    private int[][] moves;
+    private int[] moveState;
+    private List<List<Integer>> moveList;
+    private ArrayDeque<Integer> worklistMoves;
+
+    private LinkedHashSet<Integer> simplifyWorklist;
+    private LinkedHashSet<Integer> freezeWorklist;
+    private LinkedHashSet<Integer> spillWorklist;
+    private ArrayDeque<Integer> selectStack;
+
+    public GraphColoringAllocator(int regNum, boolean[] calleeSaved){
+        this.regNum = regNum;
+        this.calleeSaved = calleeSaved;
+    }
+
+    @Override
+    public void allocate(List<LiveInterval> intervals, List<LiveInterval[]> moveIntervals){
+        n = intervals.size();
+        nodes = new ArrayList<>(intervals);
+        for(int i = 0; i < n; i++){
+            nodes.get(i).setReg(-1);
+            nodes.get(i).setSpilled(false);
+        }
+        build(moveIntervals);
+        makeWorklist();
+        while(!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty() || !freezeWorklist.isEmpty() || !spillWorklist.isEmpty()){
+            if(!simplifyWorklist.isEmpty()){
+                simplify();
+            }else if(!worklistMoves.isEmpty()){
+                coalesce();
+            }else if(!freezeWorklist.isEmpty()){
+                freeze();
+            }else{
+                selectSpill();
+            }
+        }
+        assignColors();
+    }
+
+    //冲突图：活跃区间有重叠即冲突；mv的源与目标若只在这条mv处重叠则不算冲突
+    private void build(List<LiveInterval[]> moveIntervals){
+        adjSet = new HashSet<>();
+        adjList = new ArrayList<>();
+        moveList = new ArrayList<>();
+        degree = new int[n];
+        alias = new int[n];
+        state = new int[n];
+        for(int i = 0; i < n; i++){
+            adjList.add(new ArrayList<>());
+            moveList.add(new ArrayList<>());
+            alias[i] = i;
+        }
+        Integer[] order = new Integer[n];
+        for(int i = 0; i < n; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> nodes.get(i).getStart()));
+        HashSet<Long> moveKeys = new HashSet<>();
+        List<int[]> moveTemp = new ArrayList<>();
+        IdentityHashMap<LiveInterval, Integer> id = new IdentityHashMap<>();
+        for(int i = 0; i < n; i++){
+            id.put(nodes.get(i), i);
+        }
+        for(LiveInterval[] move : moveIntervals){
+            if(!id.containsKey(move[0]) || !id.containsKey(move[1]) || move[0] == move[1]) continue;
+            int dest = id.get(move[0]), src = id.get(move[1]);
+            moveTemp.add(new int[]{dest, src});
+            moveKeys.add(edgeKey(dest, src));
+        }
+        //按起点扫描，新区间只可能与尚未结束的区间冲突，再逐段比较排除落在空洞里的
+        List<Integer> active = new ArrayList<>();
+        for(int k = 0; k < n; k++){
+            int u = order[k];
+            LiveInterval cur = nodes.get(u);
+            List<Integer> stillActive = new ArrayList<>();
+            for(int v : active){
+                LiveInterval other = nodes.get(v);
+                if(other.getEnd() < cur.getStart()) continue;
+                stillActive.add(v);
+                if(cur.intersects(other, moveKeys.contains(edgeKey(u, v)))){
+                    addEdge(u, v);
+                }
+            }
+            stillActive.add(u);
+            active = stillActive;
+        }
+        moves = moveTemp.toArray(new int[0][]);
+        moveState = new int[moves.length];
+        worklistMoves = new ArrayDeque<>();
+        for(int m = 0; m < moves.length; m++){
+            moveList.get(moves[m][0]).add(m);
+            moveList.get(moves[m][1]).add(m);
+            worklistMoves.add(m);
+        }
+    }
+
+    private static long edgeKey(int u, int v){
+        return u < v ? ((long) u << 32) | v : ((long) v << 32) | u;
+    }
+
+    private void addEdge(int u, int v){
+        if(u != v && adjSet.add(edgeKey(u, v))){
+            adjList.get(u).add(v);
+            adjList.get(v).add(u);
+            degree[u]++;
+            degree[v]++;
+        }
+    }
+
+    private void makeWorklist(){
+        simplifyWorklist = new LinkedHashSet<>();
+        freezeWorklist = new LinkedHashSet<>();
+        spillWorklist = new LinkedHashSet<>();
+        selectStack = new ArrayDeque<>();
+        for(int i = 0; i < n; i++){
+            if(degree[i] >= regNum){
+                state[i] = SPILL;
+                spillWorklist.add(i);
+            }else if(moveRelated(i)){
+                state[i] = FREEZE;
+                freezeWorklist.add(i);
+            }else{
+                state[i] = SIMPLIFY;
+                simplifyWorklist.add(i);
+            }
+        }
+    }
+
+    private List<Integer> adjacent(int u){
+        List<Integer> ans = new ArrayList<>();
+        for(int v : adjList.get(u)){
+            if(state[v] != SELECT && state[v] != COALESCED){
+                ans.add(v);
+            }
+        }
+        return ans;
+    }
+
+    private List<Integer> nodeMoves(int u){
+        List<Integer> ans = new ArrayList<>();
+        for(int m : moveList.get(u)){
+            if(moveState[m] == MOVE_ACTIVE || moveState[m] == MOVE_WORKLIST){
+                ans.add(m);
+            }
+        }
+        return ans;
+    }
+
+    private boolean moveRelated(int u){
+        return !nodeMoves(u).isEmpty();
+    }
+
+    private void simplify(){
+        int u = simplifyWorklist.iterator().next();
+        simplifyWorklist.remove(u);
+        state[u] = SELECT;
+        selectStack.push(u);
+        for(int v : adjacent(u)){
+            decrementDegree(v);
+        }
+    }
+
+    private void decrementDegree(int u){
+        int d = degree[u]--;
+        if(d == regNum){
+            List<Integer> related = adjacent(u);
+            related.add(u);
+            enableMoves(related);
+            spillWorklist.remove(u);
+            if(moveRelated(u)){
+                state[u] = FREEZE;
+                freezeWorklist.add(u);
+            }else{
+                state[u] = SIMPLIFY;
+                simplifyWorklist.add(u);
+            }
+        }
+    }
+
+    private void enableMoves(List<Integer> related){
+        for(int u : related){
+            for(int m : nodeMoves(u)){
+                if(moveState[m] == MOVE_ACTIVE){
+                    moveState[m] = MOVE_WORKLIST;
+                    worklistMoves.add(m);
+                }
+            }
+        }
+    }
+
+    private void coalesce(){
+        int m = worklistMoves.poll();
+        int u = getAlias(moves[m][0]);
+        int v = getAlias(moves[m][1]);
+        if(u == v){
+            moveState[m] = MOVE_DONE;
+            addWorklist(u);
+        }else if(adjSet.contains(edgeKey(u, v))){
+            moveState[m] = MOVE_DONE;
+            addWorklist(u);
+            addWorklist(v);
+        }else if(conservative(u, v)){
+            moveState[m] = MOVE_DONE;
+            combine(u, v);
+            addWorklist(u);
+        }else{
+            moveState[m] = MOVE_ACTIVE;
+        }
+    }
+
+    private void addWorklist(int u){
+        if(state[u] == FREEZE && !moveRelated(u) && degree[u] < regNum){
+            freezeWorklist.remove(u);
+            state[u] = SIMPLIFY;
+            simplifyWorklist.add(u);
+        }
+    }
+
+    //Briggs准则：合并后高度数邻居少于K个，则合并不会让图变得不可着色
+    private boolean conservative(int u, int v){
+        HashSet<Integer> neighbours = new HashSet<>(adjacent(u));
+        neighbours.addAll(adjacent(v));
+        int k = 0;
+        for(int t : neighbours){
+            if(degree[t] >= regNum) k++;
+        }
+        return k < regNum;
+    }
+
+    private int getAlias(int u){
+        while(state[u] == COALESCED){
+            u = alias[u];
+        }
+        return u;
+    }
+
+    private void combine(int u, int v){
+        if(!freezeWorklist.remove(v)){
+            spillWorklist.remove(v);
+        }
+        state[v] = COALESCED;
+        alias[v] = u;
+        moveList.get(u).addAll(moveList.get(v));
+        List<Integer> single = new ArrayList<>();
+        single.add(v);
+        enableMoves(single);
+        for(int t : adjacent(v)){
+            addEdge(t, u);
+            decrementDegree(t);
+        }
+        if(degree[u] >= regNum && freezeWorklist.remove(u)){
+            state[u] = SPILL;
+            spillWorklist.add(u);
+        }
+        //合并后的结点代价为两者之和；其中一个跨调用，合并后的结点也只能用被调用者保存的寄存器
+        nodes.get(u).addSpillCost(nodes.get(v).getSpillCost());
+        if(nodes.get(v).isCallCrossing()){
+            nodes.get(u).setCallCrossing(true);
+        }
+    }
+
+    private void freeze(){
+        int u = freezeWorklist.iterator().next();
+        freezeWorklist.remove(u);
+        state[u] = SIMPLIFY;
+        simplifyWorklist.add(u);
+        freezeMoves(u);
+    }
+
+    private void freezeMoves(int u){
+        for(int m : nodeMoves(u)){
+            int x = moves[m][0], y = moves[m][1];
+            int v = (getAlias(y) == getAlias(u) ? getAlias(x) : getAlias(y));
+            moveState[m] = MOVE_DONE;
+            if(state[v] == FREEZE && nodeMoves(v).isEmpty() && degree[v] < regNum){
+                freezeWorklist.remove(v);
+                state[v] = SIMPLIFY;
+                simplifyWorklist.add(v);
+            }
+        }
+    }
+
+    //选择溢出代价/度数最小的结点作为潜在溢出
+    private void selectSpill(){
+        int best = -1;
+        double bestRatio = Double.MAX_VALUE;
+        for(int u : spillWorklist){
+            double ratio = nodes.get(u).getSpillCost() / Math.max(degree[u], 1);
+            if(ratio < bestRatio){
+                bestRatio = ratio;
+                best = u;
+            }
+        }
+        spillWorklist.remove(best);
+        state[best] = SIMPLIFY;
+        simplifyWorklist.add(best);
+        freezeMoves(best);
+    }
+
+    private void assignColors(){
+        while(!selectStack.isEmpty()){
+            int u = selectStack.pop();
+            BitSet okColors = new BitSet(regNum);
+            okColors.set(0, regNum);
+            for(int w : adjList.get(u)){
+                int a = getAlias(w);
+                if(state[a] == COLORED){
+                    okColors.clear(nodes.get(a).getReg());
+                }
+            }
+            int c = pickColor(nodes.get(u), okColors);
+            if(c < 0){
+                state[u] = SPILLED;
+                nodes.get(u).setSpilled(true);
+            }else{
+                state[u] = COLORED;
+                nodes.get(u).setReg(c);
+            }
+        }
+        for(int u = 0; u < n; u++){
+            if(state[u] == COALESCED && state[getAlias(u)] == COLORED){
+                nodes.get(u).setReg(nodes.get(getAlias(u)).getReg());
+            }else if(state[u] == COALESCED){
+                nodes.get(u).setSpilled(true);
+            }
+        }
+    }
+
+    //跨调用的结点只能用被调用者保存的寄存器；其余结点优先用调用者保存的寄存器
+    private int pickColor(LiveInterval interval, BitSet okColors){
+        if(!interval.isCallCrossing()){
+            for(int c = okColors.nextSetBit(0); c >= 0; c = okColors.nextSetBit(c + 1)){
+                if(!calleeSaved[c]) return c;
+            }
+        }
+        for(int c = okColors.nextSetBit(0); c >= 0; c = okColors.nextSetBit(c + 1)){
+            if(calleeSaved[c]) return c;
+        }
+        return -1;
+    }
+}
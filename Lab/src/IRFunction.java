@@ -0,0 +1,372 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//函数的紧凑快照。值用稠密的int编号：0..argNum-1为参数，之后按基本块顺序依次为每条指令
+//操作数统一编码为(kind, value)两个int：
+//  VALUE    value为指令的值编号
+//  ARGUMENT value为参数下标
+//  CONST    value为常数本身（i1按0/1，其余按有符号数）。优化pass留下的undef、poison按0
+//  GLOBAL   value为全局变量在IRModule中的下标
+//  BLOCK    value为基本块下标
+//  FUNCTION value为函数在IRModule中的下标
+//  ADDRESS  value为常量地址表的下标，表项为全局变量加上编译期确定的字节偏移（下标全是常数的GEP常量表达式）
+//为了方便后端使用，部分指令的操作数顺序与LLVM不同：
+//  br：条件跳转为[cond, trueBlock, falseBlock]，无条件跳转为[block]
+//  phi：[value0, block0, value1, block1, ...]
+//  call：[callee, arg0, arg1, ...]
+//后端的优化可能改写指令，例如把全局变量的load改成直接读前面store进去的值，此时它变成COPY
+//类型为数组的alloca是栈上的数组，其余alloca是放在寄存器里的局部变量
+public class IRFunction {
+    public static final int VALUE = 0, ARGUMENT = 1, CONST = 2, GLOBAL = 3, BLOCK = 4, FUNCTION = 5, ADDRESS = 6, OTHER = 7;
+
+    //参数的"操作码"，LLVM的操作码从1开始，0不会与它们冲突
+    public static final int ARG_OPCODE = 0;
+    //复制（后端改写出的或者freeze），结果就是第0个操作数
+    public static final int COPY_OPCODE = -1;
+
+    public final String name;
+    public final int argNum;
+    public final int valueNum;
+
+    //按值编号索引
+    public final int[] opcode;
+    public final String[] valueName;
+    public final boolean[] hasResult;
+    //icmp的谓词
+    public final int[] predicate;
+    public final int[] blockOf;
+    public final int[] operandStart;
+    public final int[] operandKind;
+    public final int[] operandValue;
+    //GEP的第k个操作数（下标）每加1，地址增加的字节数。按操作数下标索引，其余指令为0
+    public final int[] operandStride;
+    //栈上数组的字节数，其余为0
+    public final int[] arraySize;
+
+    //常量地址表
+    public final int[] addressGlobal;
+    public final int[] addressOffset;
+
+    //编译期确定的地址：栈上数组本身，以及基址为全局变量或栈上数组、下标全是常数的GEP
+    //这些值不占寄存器，后端在每次使用处用la或sp加偏移重新算出来。基址种类为GLOBAL或VALUE（数组的alloca），不是常量地址时为-1
+    private final int[] constAddressKind;
+    private final int[] constAddressBase;
+    private final int[] constAddressOffset;
+
+    //按基本块下标索引，块内指令为[blockStart, blockEnd)
+    public final int blockNum;
+    public final String[] blockName;
+    public final int[] blockStart;
+    public final int[] blockEnd;
+    //块内第一条终结指令（br、ret、unreachable），没有时为-1。前端在return、break之后还会继续往同一个块里生成指令，这些指令不可达
+    public final int[] terminator;
+    public final int[][] successors;
+
+    IRFunction(LLVMValueRef func, HashMap<Long, Integer> globalIndex, HashMap<Long, Integer> functionIndex){
+        name = LLVMGetValueName(func).getString();
+        argNum = LLVMCountParams(func);
+        //第一遍：给参数、基本块、指令编号，phi等指令可能引用后面的值，所以要先编号再翻译操作数
+        HashMap<Long, Integer> valueIndex = new HashMap<>();
+        HashMap<Long, Integer> blockIndex = new HashMap<>();
+        List<LLVMValueRef> insts = new ArrayList<>();
+        List<LLVMBasicBlockRef> blocks = new ArrayList<>();
+        for(int i = 0; i < argNum; i++){
+            valueIndex.put(LLVMGetParam(func, i).address(), i);
+        }
+        for (LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)) {
+            blockIndex.put(bb.address(), blocks.size());
+            blocks.add(bb);
+            for (LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)) {
+                valueIndex.put(inst.address(), argNum + insts.size());
+                insts.add(inst);
+            }
+        }
+        valueNum = argNum + insts.size();
+        blockNum = blocks.size();
+        opcode = new int[valueNum];
+        valueName = new String[valueNum];
+        hasResult = new boolean[valueNum];
+        predicate = new int[valueNum];
+        blockOf = new int[valueNum];
+        operandStart = new int[valueNum + 1];
+        blockName = new String[blockNum];
+        blockStart = new int[blockNum];
+        blockEnd = new int[blockNum];
+        terminator = new int[blockNum];
+        successors = new int[blockNum][];
+        arraySize = new int[valueNum];
+        for(int i = 0; i < argNum; i++){
+            opcode[i] = ARG_OPCODE;
+            valueName[i] = LLVMGetValueName(LLVMGetParam(func, i)).getString();
+            hasResult[i] = true;
+            blockOf[i] = -1;
+        }
+        //第二遍：翻译每条指令
+        List<Integer> kinds = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        List<Integer> strides = new ArrayList<>();
+        List<Integer> addressGlobals = new ArrayList<>();
+        List<Integer> addressOffsets = new ArrayList<>();
+        int id = argNum;
+        for(int b = 0; b < blockNum; b++){
+            LLVMBasicBlockRef bb = blocks.get(b);
+            blockName[b] = LLVMGetBasicBlockName(bb).getString();
+            blockStart[b] = id;
+            terminator[b] = -1;
+            for (LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)) {
+                opcode[id] = LLVMGetInstructionOpcode(inst);
+                //freeze只对undef/poison有意义，寄存器里总是确定的值，当作复制处理
+                if(opcode[id] == LLVMFreeze) opcode[id] = COPY_OPCODE;
+                valueName[id] = LLVMGetValueName(inst).getString();
+                hasResult[id] = LLVMGetTypeKind(LLVMTypeOf(inst)) != LLVMVoidTypeKind;
+                blockOf[id] = b;
+                operandStart[id] = kinds.size();
+                if(terminator[b] == -1 && (opcode[id] == LLVMBr || opcode[id] == LLVMRet || opcode[id] == LLVMUnreachable)){
+                    terminator[b] = id;
+                }
+                if(opcode[id] == LLVMICmp){
+                    predicate[id] = LLVMGetICmpPredicate(inst);
+                }
+                if(opcode[id] == LLVMAlloca && LLVMGetTypeKind(LLVMGetAllocatedType(inst)) == LLVMArrayTypeKind){
+                    arraySize[id] = typeSize(LLVMGetAllocatedType(inst));
+                }
+                List<LLVMValueRef> operands = new ArrayList<>();
+                if(opcode[id] == LLVMBr){
+                    if(LLVMIsConditional(inst) != 0){
+                        operands.add(LLVMGetCondition(inst));
+                    }
+                    for(int i = 0; i < LLVMGetNumSuccessors(inst); i++){
+                        operands.add(LLVMBasicBlockAsValue(LLVMGetSuccessor(inst, i)));
+                    }
+                }else if(opcode[id] == LLVMPHI){
+                    for(int i = 0; i < LLVMCountIncoming(inst); i++){
+                        operands.add(LLVMGetIncomingValue(inst, i));
+                        operands.add(LLVMBasicBlockAsValue(LLVMGetIncomingBlock(inst, i)));
+                    }
+                }else if(opcode[id] == LLVMCall){
+                    operands.add(LLVMGetCalledValue(inst));
+                    for(int i = 0; i < LLVMGetNumArgOperands(inst); i++){
+                        operands.add(LLVMGetOperand(inst, i));
+                    }
+                }else{
+                    for(int i = 0; i < LLVMGetNumOperands(inst); i++){
+                        operands.add(LLVMGetOperand(inst, i));
+                    }
+                }
+                for(LLVMValueRef operand : operands){
+                    lowerOperand(operand, valueIndex, blockIndex, globalIndex, functionIndex, kinds, values, addressGlobals, addressOffsets);
+                }
+                int[] gepStrides = opcode[id] == LLVMGetElementPtr ? getStrides(inst) : new int[operands.size()];
+                for(int stride : gepStrides){
+                    strides.add(stride);
+                }
+                id++;
+            }
+            blockEnd[b] = id;
+        }
+        operandStart[valueNum] = kinds.size();
+        operandKind = new int[kinds.size()];
+        operandValue = new int[values.size()];
+        operandStride = new int[strides.size()];
+        for(int i = 0; i < kinds.size(); i++){
+            operandKind[i] = kinds.get(i);
+            operandValue[i] = values.get(i);
+            operandStride[i] = strides.get(i);
+        }
+        addressGlobal = addressGlobals.stream().mapToInt(Integer::intValue).toArray();
+        addressOffset = addressOffsets.stream().mapToInt(Integer::intValue).toArray();
+        constAddressKind = new int[valueNum];
+        constAddressBase = new int[valueNum];
+        constAddressOffset = new int[valueNum];
+        for(int v = 0; v < valueNum; v++){
+            constAddressKind[v] = -2;
+        }
+        for(int v = 0; v < valueNum; v++){
+            computeConstantAddress(v);
+        }
+        //后继块取自终结指令中的BLOCK操作数
+        for(int b = 0; b < blockNum; b++){
+            List<Integer> succ = new ArrayList<>();
+            if(terminator[b] != -1){
+                int term = terminator[b];
+                if(opcode[term] == LLVMBr){
+                    for(int i = 0; i < getOperandNum(term); i++){
+                        if(getOperandKind(term, i) == BLOCK) succ.add(getOperandValue(term, i));
+                    }
+                }
+            }
+            successors[b] = succ.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static void lowerOperand(LLVMValueRef operand, HashMap<Long, Integer> valueIndex, HashMap<Long, Integer> blockIndex,
+                                     HashMap<Long, Integer> globalIndex, HashMap<Long, Integer> functionIndex,
+                                     List<Integer> kinds, List<Integer> values,
+                                     List<Integer> addressGlobals, List<Integer> addressOffsets){
+        int kind = OTHER, value = 0;
+        if(LLVMValueIsBasicBlock(operand) != 0){
+            kind = BLOCK;
+            value = blockIndex.get(LLVMValueAsBasicBlock(operand).address());
+        }else if(LLVMIsAConstantInt(operand) != null){
+            kind = CONST;
+            if(LLVMGetIntTypeWidth(LLVMTypeOf(operand)) == 1){
+                value = (int) LLVMConstIntGetZExtValue(operand);
+            }else{
+                value = (int) LLVMConstIntGetSExtValue(operand);
+            }
+        }else if(LLVMIsUndef(operand) != 0){
+            kind = CONST;
+        }else if(LLVMIsAFunction(operand) != null){
+            kind = FUNCTION;
+            value = functionIndex.get(operand.address());
+        }else if(LLVMIsAGlobalVariable(operand) != null){
+            kind = GLOBAL;
+            value = globalIndex.get(operand.address());
+        }else if(LLVMIsAConstantExpr(operand) != null && LLVMGetConstOpcode(operand) == LLVMGetElementPtr){
+            int offset = 0;
+            LLVMValueRef base = operand;
+            while(LLVMIsAConstantExpr(base) != null && LLVMGetConstOpcode(base) == LLVMGetElementPtr){
+                int[] strides = getStrides(base);
+                for(int i = 1; i < strides.length; i++){
+                    offset += (int) LLVMConstIntGetSExtValue(LLVMGetOperand(base, i)) * strides[i];
+                }
+                base = LLVMGetOperand(base, 0);
+            }
+            if(LLVMIsAGlobalVariable(base) != null){
+                kind = ADDRESS;
+                value = addressGlobals.size();
+                addressGlobals.add(globalIndex.get(base.address()));
+                addressOffsets.add(offset);
+            }
+        }else if(valueIndex.containsKey(operand.address())){
+            kind = (LLVMIsAArgument(operand) != null ? ARGUMENT : VALUE);
+            value = valueIndex.get(operand.address());
+        }
+        kinds.add(kind);
+        values.add(value);
+    }
+
+    //GEP（指令或常量表达式）各操作数的步长，第0个操作数是基址，步长为0
+    private static int[] getStrides(LLVMValueRef gep){
+        int[] strides = new int[LLVMGetNumOperands(gep)];
+        LLVMTypeRef type = LLVMGetElementType(LLVMTypeOf(LLVMGetOperand(gep, 0)));
+        for(int i = 1; i < strides.length; i++){
+            strides[i] = typeSize(type);
+            if(LLVMGetTypeKind(type) == LLVMArrayTypeKind) type = LLVMGetElementType(type);
+        }
+        return strides;
+    }
+
+    //在RV32上占的字节数，i32、i1和指针都按4字节
+    static int typeSize(LLVMTypeRef type){
+        if(LLVMGetTypeKind(type) == LLVMArrayTypeKind){
+            return LLVMGetArrayLength(type) * typeSize(LLVMGetElementType(type));
+        }
+        return 4;
+    }
+
+    //-2表示还没有算过。GEP的基址可能排在它后面，所以按需递归
+    private void computeConstantAddress(int v){
+        if(constAddressKind[v] != -2) return;
+        constAddressKind[v] = -1;
+        if(isArray(v)){
+            constAddressKind[v] = VALUE;
+            constAddressBase[v] = v;
+            return;
+        }
+        if(opcode[v] != LLVMGetElementPtr) return;
+        int offset = 0;
+        for(int k = 1; k < getOperandNum(v); k++){
+            if(getOperandKind(v, k) != CONST) return;
+            offset += getOperandValue(v, k) * operandStride[operandStart[v] + k];
+        }
+        int kind = getOperandKind(v, 0), base = getOperandValue(v, 0);
+        if(kind == GLOBAL){
+            constAddressKind[v] = GLOBAL;
+            constAddressBase[v] = base;
+        }else if(kind == ADDRESS){
+            constAddressKind[v] = GLOBAL;
+            constAddressBase[v] = addressGlobal[base];
+            offset += addressOffset[base];
+        }else if(kind == VALUE){
+            computeConstantAddress(base);
+            if(constAddressKind[base] < 0) return;
+            constAddressKind[v] = constAddressKind[base];
+            constAddressBase[v] = constAddressBase[base];
+            offset += constAddressOffset[base];
+        }
+        constAddressOffset[v] = offset;
+    }
+
+    //栈上的数组（类型为数组的alloca）
+    public boolean isArray(int id){
+        return arraySize[id] > 0;
+    }
+
+    //放在寄存器里的局部变量（类型为i32或指针的alloca）
+    public boolean isLocalVariable(int id){
+        return opcode[id] == LLVMAlloca && !isArray(id);
+    }
+
+    public boolean isConstantAddress(int id){
+        return constAddressKind[id] >= 0;
+    }
+
+    public int getAddressBaseKind(int id){
+        return constAddressKind[id];
+    }
+
+    public int getAddressBase(int id){
+        return constAddressBase[id];
+    }
+
+    public int getAddressOffset(int id){
+        return constAddressOffset[id];
+    }
+
+    public int getOperandStride(int id, int i){
+        return operandStride[operandStart[id] + i];
+    }
+
+    //块内最后一条需要生成代码的指令，终结指令之后的不可达指令不算
+    public int getLastInstruction(int b){
+        return terminator[b] != -1 ? terminator[b] : blockEnd[b] - 1;
+    }
+
+    public boolean isInstruction(int id){
+        return id >= argNum;
+    }
+
+    public int getOperandNum(int id){
+        return operandStart[id + 1] - operandStart[id];
+    }
+
+    public int getOperandKind(int id, int i){
+        return operandKind[operandStart[id] + i];
+    }
+
+    public int getOperandValue(int id, int i){
+        return operandValue[operandStart[id] + i];
+    }
+
+    public void setOperand(int id, int i, int kind, int value){
+        operandKind[operandStart[id] + i] = kind;
+        operandValue[operandStart[id] + i] = value;
+    }
+
+    //把只有一个操作数的指令（load）改写为COPY，结果等于给出的操作数
+    public void rewriteAsCopy(int id, int kind, int value){
+        opcode[id] = COPY_OPCODE;
+        setOperand(id, 0, kind, value);
+    }
+
+    //函数声明（没有函数体）不需要生成代码
+    public boolean isDeclaration(){
+        return blockNum == 0;
+    }
+}
@@ -0,0 +1,452 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.HashMap;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//在编译时执行纯函数的解释器，用于把参数都是常数的调用替换成结果
+//  函数第一次被调用时解码成数组形式（与IRFunction的编号方式相同），之后不再经过LLVM的C API
+//  整数只有i1和i32，i1取0/1；内存按i32的字编址，指针是（数组，下标）
+//  执行的指令数、调用深度都有上限，超出、遇到未定义行为（除以0、越界、过大的移位）或不支持的指令时放弃，返回null
+public class IRInterpreter {
+    private static final int CONST = 0, VALUE = 1, ARGUMENT = 2, BLOCK = 3, POINTER = 4, FUNCTION = 5;
+
+    //求值失败，不需要调用栈
+    private static class EvaluationFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EvaluationFailed(){
+            super(null, null, false, false);
+        }
+    }
+
+    private static final EvaluationFailed FAILED = new EvaluationFailed();
+
+    private static final class Pointer {
+        final int[] memory;
+        final int index;
+
+        Pointer(int[] memory, int index){
+            this.memory = memory;
+            this.index = index;
+        }
+    }
+
+    private static final class Operand {
+        final int kind;
+        final long value;
+        final Object ref;
+
+        Operand(int kind, long value, Object ref){
+            this.kind = kind;
+            this.value = value;
+            this.ref = ref;
+        }
+    }
+
+    //解码后的函数。解码失败（含不支持的指令或类型）时valid为false
+    private static final class Code {
+        boolean valid = true;
+        int[] blockStart;
+        int[] blockEnd;
+        int[] opcode;
+        int[] width;
+        //icmp的谓词，alloca的字数
+        int[] extra;
+        Operand[][] operands;
+        //GEP每个下标的步长（字），phi每个来源的块
+        int[][] table;
+    }
+
+    private final int stepLimit;
+    private final int depthLimit;
+    private final HashMap<Long, Code> codes = new HashMap<>();
+    private final HashMap<Long, int[]> globals = new HashMap<>();
+    private long steps;
+
+    public IRInterpreter(int stepLimit, int depthLimit){
+        this.stepLimit = stepLimit;
+        this.depthLimit = depthLimit;
+    }
+
+    //上一次求值执行的指令数
+    public long getSteps(){
+        return steps;
+    }
+
+    //用整数参数调用func，返回值（void函数返回0），不能在限制内求出时返回null
+    public Long evaluate(LLVMValueRef func, long[] args){
+        Code code = decode(func);
+        if(!code.valid) return null;
+        steps = 0;
+        Object[] values = new Object[args.length];
+        for(int i = 0; i < args.length; i++){
+            values[i] = args[i];
+        }
+        try{
+            Object result = execute(code, values, 0);
+            return result == null ? 0L : (Long) result;
+        }catch(EvaluationFailed e){
+            return null;
+        }
+    }
+
+    private Object execute(Code code, Object[] args, int depth){
+        if(depth > depthLimit) throw FAILED;
+        Object[] values = new Object[code.opcode.length];
+        int block = 0, previous = -1;
+        while(true){
+            int inst = code.blockStart[block];
+            //phi按并行赋值处理
+            int phiEnd = inst;
+            while(phiEnd < code.blockEnd[block] && code.opcode[phiEnd] == LLVMPHI) phiEnd++;
+            if(phiEnd > inst){
+                Object[] incoming = new Object[phiEnd - inst];
+                for(int phi = inst; phi < phiEnd; phi++){
+                    int[] blocks = code.table[phi];
+                    int k = 0;
+                    while(k < blocks.length && blocks[k] != previous) k++;
+                    if(k == blocks.length) throw FAILED;
+                    incoming[phi - inst] = get(code.operands[phi][k], values, args);
+                }
+                System.arraycopy(incoming, 0, values, inst, incoming.length);
+                inst = phiEnd;
+            }
+            int next = -1;
+            for(; next < 0; inst++){
+                if(++steps > stepLimit) throw FAILED;
+                Operand[] ops = code.operands[inst];
+                switch(code.opcode[inst]){
+                    case LLVMBr:
+                        if(ops.length == 1){
+                            next = (int) ops[0].value;
+                        }else{
+                            next = (int) (integer(ops[0], values, args) != 0 ? ops[2].value : ops[1].value);
+                        }
+                        break;
+                    case LLVMRet:
+                        return ops.length == 0 ? null : get(ops[0], values, args);
+                    case LLVMICmp:
+                        values[inst] = compare(code.extra[inst], integer(ops[0], values, args), integer(ops[1], values, args),
+                                widthOf(ops[0], code)) ? 1L : 0L;
+                        break;
+                    case LLVMZExt:
+                        values[inst] = integer(ops[0], values, args);
+                        break;
+                    case LLVMSExt:
+                        values[inst] = signed(integer(ops[0], values, args), widthOf(ops[0], code));
+                        break;
+                    case LLVMTrunc:
+                        values[inst] = wrap(integer(ops[0], values, args), code.width[inst]);
+                        break;
+                    case LLVMSelect:
+                        values[inst] = get(integer(ops[0], values, args) != 0 ? ops[1] : ops[2], values, args);
+                        break;
+                    case LLVMAlloca:
+                        values[inst] = new Pointer(new int[code.extra[inst]], 0);
+                        break;
+                    case LLVMGetElementPtr:{
+                        Pointer base = pointer(ops[0], values, args);
+                        int index = base.index;
+                        int[] stride = code.table[inst];
+                        for(int k = 1; k < ops.length; k++){
+                            index += (int) integer(ops[k], values, args) * stride[k - 1];
+                        }
+                        values[inst] = new Pointer(base.memory, index);
+                        break;
+                    }
+                    case LLVMLoad:{
+                        Pointer p = pointer(ops[0], values, args);
+                        if(p.index < 0 || p.index >= p.memory.length) throw FAILED;
+                        values[inst] = (long) p.memory[p.index];
+                        break;
+                    }
+                    case LLVMStore:{
+                        Pointer p = pointer(ops[1], values, args);
+                        if(p.index < 0 || p.index >= p.memory.length) throw FAILED;
+                        p.memory[p.index] = (int) integer(ops[0], values, args);
+                        break;
+                    }
+                    case LLVMCall:{
+                        Code callee = (Code) ops[ops.length - 1].ref;
+                        //递归调用解码时被调函数可能还没有解码完，执行时再检查一次
+                        if(!callee.valid) throw FAILED;
+                        Object[] callArgs = new Object[ops.length - 1];
+                        for(int k = 0; k < callArgs.length; k++){
+                            callArgs[k] = get(ops[k], values, args);
+                        }
+                        values[inst] = execute(callee, callArgs, depth + 1);
+                        break;
+                    }
+                    default:
+                        values[inst] = binary(code.opcode[inst], integer(ops[0], values, args), integer(ops[1], values, args),
+                                code.width[inst]);
+                }
+            }
+            previous = block;
+            block = next;
+        }
+    }
+
+    private static Object get(Operand op, Object[] values, Object[] args){
+        switch(op.kind){
+            case CONST: return op.value;
+            case VALUE: return values[(int) op.value];
+            case ARGUMENT: return args[(int) op.value];
+            default: return op.ref;
+        }
+    }
+
+    private static long integer(Operand op, Object[] values, Object[] args){
+        Object value = get(op, values, args);
+        if(!(value instanceof Long)) throw FAILED;
+        return (Long) value;
+    }
+
+    private static Pointer pointer(Operand op, Object[] values, Object[] args){
+        Object value = get(op, values, args);
+        if(!(value instanceof Pointer)) throw FAILED;
+        return (Pointer) value;
+    }
+
+    private static int widthOf(Operand op, Code code){
+        return op.kind == VALUE ? code.width[(int) op.value] : (op.ref == null ? 32 : (Integer) op.ref);
+    }
+
+    //i1的1作为有符号数是-1
+    private static long signed(long value, int width){
+        return width == 1 ? -value : value;
+    }
+
+    private static long wrap(long value, int width){
+        return width == 1 ? value & 1 : (int) value;
+    }
+
+    private static boolean compare(int predicate, long a, long b, int width){
+        int ua = (int) a, ub = (int) b;
+        long sa = signed(a, width), sb = signed(b, width);
+        switch(predicate){
+            case LLVMIntEQ: return a == b;
+            case LLVMIntNE: return a != b;
+            case LLVMIntSLT: return sa < sb;
+            case LLVMIntSLE: return sa <= sb;
+            case LLVMIntSGT: return sa > sb;
+            case LLVMIntSGE: return sa >= sb;
+            case LLVMIntULT: return Integer.compareUnsigned(ua, ub) < 0;
+            case LLVMIntULE: return Integer.compareUnsigned(ua, ub) <= 0;
+            case LLVMIntUGT: return Integer.compareUnsigned(ua, ub) > 0;
+            default: return Integer.compareUnsigned(ua, ub) >= 0;
+        }
+    }
+
+    private static long binary(int opcode, long a, long b, int width){
+        int x = (int) a, y = (int) b;
+        int result;
+        switch(opcode){
+            case LLVMAdd: result = x + y; break;
+            case LLVMSub: result = x - y; break;
+            case LLVMMul: result = x * y; break;
+            case LLVMAnd: result = x & y; break;
+            case LLVMOr: result = x | y; break;
+            case LLVMXor: result = x ^ y; break;
+            case LLVMShl:
+            case LLVMLShr:
+            case LLVMAShr:
+                if(y < 0 || y >= width) throw FAILED;
+                result = opcode == LLVMShl ? x << y : opcode == LLVMLShr ? x >>> y : x >> y;
+                break;
+            default:
+                if(y == 0) throw FAILED;
+                if((opcode == LLVMSDiv || opcode == LLVMSRem) && x == Integer.MIN_VALUE && y == -1) throw FAILED;
+                if(opcode == LLVMSDiv) result = x / y;
+                else if(opcode == LLVMSRem) result = x % y;
+                else if(opcode == LLVMUDiv) result = Integer.divideUnsigned(x, y);
+                else result = Integer.remainderUnsigned(x, y);
+        }
+        return wrap(result, width);
+    }
+
+    private Code decode(LLVMValueRef func){
+        Code code = codes.get(func.address());
+        if(code != null) return code;
+        code = new Code();
+        codes.put(func.address(), code);
+        try{
+            decodeBody(func, code);
+        }catch(EvaluationFailed e){
+            code.valid = false;
+        }
+        return code;
+    }
+
+    private void decodeBody(LLVMValueRef func, Code code){
+        HashMap<Long, Integer> index = new HashMap<>();
+        for(int i = 0; i < LLVMCountParams(func); i++){
+            index.put(LLVMGetParam(func, i).address(), i);
+        }
+        int blockNum = 0, instNum = 0;
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            index.put(LLVMBasicBlockAsValue(bb).address(), blockNum++);
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                index.put(inst.address(), instNum++);
+            }
+        }
+        code.blockStart = new int[blockNum];
+        code.blockEnd = new int[blockNum];
+        code.opcode = new int[instNum];
+        code.width = new int[instNum];
+        code.extra = new int[instNum];
+        code.operands = new Operand[instNum][];
+        code.table = new int[instNum][];
+        int b = 0, id = 0;
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb), b++){
+            code.blockStart[b] = id;
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst), id++){
+                int opcode = LLVMGetInstructionOpcode(inst);
+                code.opcode[id] = opcode;
+                LLVMTypeRef type = LLVMTypeOf(inst);
+                if(LLVMGetTypeKind(type) == LLVMIntegerTypeKind){
+                    code.width[id] = checkWidth(type);
+                }
+                if(opcode == LLVMPHI){
+                    int count = LLVMCountIncoming(inst);
+                    code.operands[id] = new Operand[count];
+                    code.table[id] = new int[count];
+                    for(int k = 0; k < count; k++){
+                        code.operands[id][k] = operand(LLVMGetIncomingValue(inst, k), index);
+                        code.table[id][k] = index.get(LLVMBasicBlockAsValue(LLVMGetIncomingBlock(inst, k)).address());
+                    }
+                    continue;
+                }
+                if(!isSupported(opcode)) throw FAILED;
+                int num = LLVMGetNumOperands(inst);
+                code.operands[id] = new Operand[num];
+                for(int k = 0; k < num; k++){
+                    code.operands[id][k] = operand(LLVMGetOperand(inst, k), index);
+                }
+                if(opcode == LLVMICmp){
+                    code.extra[id] = LLVMGetICmpPredicate(inst);
+                }else if(opcode == LLVMAlloca){
+                    code.extra[id] = words(LLVMGetAllocatedType(inst));
+                }else if(opcode == LLVMGetElementPtr){
+                    code.table[id] = strides(LLVMGetElementType(LLVMTypeOf(LLVMGetOperand(inst, 0))), num - 1);
+                }else if(opcode == LLVMCall){
+                    Code callee = (Code) code.operands[id][num - 1].ref;
+                    if(callee == null || !callee.valid) throw FAILED;
+                }
+            }
+            code.blockEnd[b] = id;
+        }
+    }
+
+    private static boolean isSupported(int opcode){
+        switch(opcode){
+            case LLVMAdd: case LLVMSub: case LLVMMul: case LLVMSDiv: case LLVMSRem: case LLVMUDiv: case LLVMURem:
+            case LLVMShl: case LLVMLShr: case LLVMAShr: case LLVMAnd: case LLVMOr: case LLVMXor:
+            case LLVMICmp: case LLVMZExt: case LLVMSExt: case LLVMTrunc: case LLVMSelect:
+            case LLVMBr: case LLVMRet: case LLVMCall: case LLVMAlloca: case LLVMGetElementPtr: case LLVMLoad: case LLVMStore:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int checkWidth(LLVMTypeRef type){
+        int width = LLVMGetIntTypeWidth(type);
+        if(width != 1 && width != 32) throw FAILED;
+        return width;
+    }
+
+    private Operand operand(LLVMValueRef value, HashMap<Long, Integer> index){
+        if(LLVMIsAConstantInt(value) != null){
+            int width = checkWidth(LLVMTypeOf(value));
+            return new Operand(CONST, wrap(LLVMConstIntGetSExtValue(value), width), width);
+        }
+        if(LLVMIsUndef(value) != 0){
+            return new Operand(CONST, 0, null);
+        }
+        if(LLVMValueIsBasicBlock(value) != 0){
+            return new Operand(BLOCK, index.get(value.address()), null);
+        }
+        if(LLVMIsAArgument(value) != null){
+            return new Operand(ARGUMENT, index.get(value.address()), null);
+        }
+        if(LLVMIsAInstruction(value) != null){
+            return new Operand(VALUE, index.get(value.address()), null);
+        }
+        if(LLVMIsAFunction(value) != null){
+            return new Operand(FUNCTION, 0, decode(value));
+        }
+        return new Operand(POINTER, 0, constantPointer(value));
+    }
+
+    //常量全局变量及其上的常量GEP
+    private Pointer constantPointer(LLVMValueRef value){
+        if(PurityAnalysis.isConstantGlobal(value)){
+            int[] memory = globals.get(value.address());
+            if(memory == null){
+                LLVMValueRef init = LLVMGetInitializer(value);
+                memory = new int[words(LLVMTypeOf(init))];
+                flatten(init, memory, 0);
+                globals.put(value.address(), memory);
+            }
+            return new Pointer(memory, 0);
+        }
+        if(LLVMIsAConstantExpr(value) != null && LLVMGetConstOpcode(value) == LLVMGetElementPtr){
+            Pointer base = constantPointer(LLVMGetOperand(value, 0));
+            int num = LLVMGetNumOperands(value);
+            int[] stride = strides(LLVMGetElementType(LLVMTypeOf(LLVMGetOperand(value, 0))), num - 1);
+            int offset = base.index;
+            for(int k = 1; k < num; k++){
+                LLVMValueRef idx = LLVMGetOperand(value, k);
+                if(LLVMIsAConstantInt(idx) == null) throw FAILED;
+                offset += (int) LLVMConstIntGetSExtValue(idx) * stride[k - 1];
+            }
+            return new Pointer(base.memory, offset);
+        }
+        throw FAILED;
+    }
+
+    private static void flatten(LLVMValueRef init, int[] memory, int offset){
+        LLVMTypeRef type = LLVMTypeOf(init);
+        if(LLVMIsAConstantInt(init) != null){
+            memory[offset] = (int) LLVMConstIntGetSExtValue(init);
+        }else if(LLVMIsAConstantAggregateZero(init) != null){
+            return;
+        }else if(LLVMGetTypeKind(type) == LLVMArrayTypeKind){
+            int n = LLVMGetArrayLength(type);
+            int size = words(LLVMGetElementType(type));
+            for(int i = 0; i < n; i++){
+                LLVMValueRef element = LLVMIsAConstantDataSequential(init) != null
+                        ? LLVMGetElementAsConstant(init, i) : LLVMGetOperand(init, i);
+                flatten(element, memory, offset + i * size);
+            }
+        }else{
+            throw FAILED;
+        }
+    }
+
+    //GEP的第一个下标按指向的类型整体移动，之后每个下标进入一层数组
+    private static int[] strides(LLVMTypeRef type, int count){
+        int[] stride = new int[count];
+        for(int k = 0; k < count; k++){
+            if(k > 0){
+                if(LLVMGetTypeKind(type) != LLVMArrayTypeKind) throw FAILED;
+                type = LLVMGetElementType(type);
+            }
+            stride[k] = words(type);
+        }
+        return stride;
+    }
+
+    private static int words(LLVMTypeRef type){
+        if(LLVMGetTypeKind(type) == LLVMIntegerTypeKind){
+            if(LLVMGetIntTypeWidth(type) != 32) throw FAILED;
+            return 1;
+        }
+        if(LLVMGetTypeKind(type) == LLVMArrayTypeKind){
+            return LLVMGetArrayLength(type) * words(LLVMGetElementType(type));
+        }
+        throw FAILED;
+    }
+}
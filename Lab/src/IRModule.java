@@ -0,0 +1,78 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//后端使用的模块快照：一次性把LLVM module中的全局变量和函数读到Java堆上，之后的所有后端处理都不再调用LLVM
+public class IRModule {
+    public final List<String> globalNames = new ArrayList<>();
+    //全局变量的字节数
+    public final List<Integer> globalSizes = new ArrayList<>();
+    //初值按字游程编码：(值, 重复次数)依次排列，全为0时为空数组，这样的变量放进.bss
+    public final List<int[]> globalRuns = new ArrayList<>();
+    public final List<IRFunction> functions = new ArrayList<>();
+
+    public IRModule(LLVMModuleRef module){
+        //全局变量、函数按地址编号，函数体中引用它们时直接用编号
+        HashMap<Long, Integer> globalIndex = new HashMap<>();
+        for (LLVMValueRef value = LLVMGetFirstGlobal(module); value != null; value = LLVMGetNextGlobal(value)) {
+            globalIndex.put(value.address(), globalNames.size());
+            globalNames.add(LLVMGetValueName(value).getString());
+            LLVMTypeRef type = LLVMGetElementType(LLVMTypeOf(value));
+            globalSizes.add(IRFunction.typeSize(type));
+            List<Integer> runs = new ArrayList<>();
+            flattenInit(LLVMGetInitializer(value), type, runs);
+            boolean allZero = true;
+            for(int i = 0; i < runs.size(); i += 2){
+                allZero &= runs.get(i) == 0;
+            }
+            globalRuns.add(allZero ? new int[0] : runs.stream().mapToInt(Integer::intValue).toArray());
+        }
+        HashMap<Long, Integer> functionIndex = new HashMap<>();
+        List<LLVMValueRef> functionRefs = new ArrayList<>();
+        for (LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)) {
+            functionIndex.put(func.address(), functionRefs.size());
+            functionRefs.add(func);
+        }
+        for(LLVMValueRef func : functionRefs){
+            functions.add(new IRFunction(func, globalIndex, functionIndex));
+        }
+    }
+
+    //按行优先把常量初值展开成游程，zeroinitializer整块算作一段0，不逐个展开
+    private static void flattenInit(LLVMValueRef init, LLVMTypeRef type, List<Integer> runs){
+        if(LLVMGetTypeKind(type) != LLVMArrayTypeKind){
+            addRun(runs, (int) LLVMConstIntGetSExtValue(init), 1);
+        }else if(LLVMIsAConstantAggregateZero(init) != null){
+            addRun(runs, 0, IRFunction.typeSize(type) / 4);
+        }else if(LLVMIsAConstantDataArray(init) != null){
+            for(int i = 0; i < LLVMGetArrayLength(type); i++){
+                addRun(runs, (int) LLVMConstIntGetSExtValue(LLVMGetElementAsConstant(init, i)), 1);
+            }
+        }else{
+            for(int i = 0; i < LLVMGetArrayLength(type); i++){
+                flattenInit(LLVMGetOperand(init, i), LLVMGetElementType(type), runs);
+            }
+        }
+    }
+
+    private static void addRun(List<Integer> runs, int value, int count){
+        int n = runs.size();
+        if(n > 0 && runs.get(n - 2) == value){
+            runs.set(n - 1, runs.get(n - 1) + count);
+        }else{
+            runs.add(value);
+            runs.add(count);
+        }
+    }
+
+    public IRFunction getFunction(String name){
+        for(IRFunction function : functions){
+            if(function.name.equals(name)) return function;
+        }
+        return null;
+    }
+}
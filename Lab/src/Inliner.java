@@ -0,0 +1,357 @@
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//把小函数的函数体复制到调用处，省掉传参、prologue/epilogue和调用前后保存寄存器的开销
+//  代价按被调函数的指令数计算，不超过阈值才内联；调用处在循环中时阈值加倍
+//  同一个强连通分量中的函数（直接或间接递归）互不内联
+//  按调用图自底向上处理，被调函数自己的调用已经内联过，大小是内联后的大小
+//  调用者的大小超过上限后不再往里内联，避免后端的寄存器分配面对过大的函数
+//内联后没有调用者的函数（main除外）被删除
+public class Inliner {
+    //调用者最多这么多条指令
+    private static final int MAX_CALLER_SIZE = 3000;
+
+    private final LLVMModuleRef module;
+    private final LLVMBuilderRef builder;
+    private final int threshold;
+    private int inlinedCalls = 0;
+    private int inlinedInLoops = 0;
+    private int removedFunctions = 0;
+
+    public Inliner(LLVMModuleRef module, int threshold){
+        this.module = module;
+        this.builder = LLVMCreateBuilderInContext(LLVMGetModuleContext(module));
+        this.threshold = threshold;
+    }
+
+    public int getInlinedCalls(){
+        return inlinedCalls;
+    }
+
+    public int getInlinedInLoops(){
+        return inlinedInLoops;
+    }
+
+    public int getRemovedFunctions(){
+        return removedFunctions;
+    }
+
+    public void run(){
+        List<LLVMValueRef> functions = new ArrayList<>();
+        HashMap<Long, Integer> index = new HashMap<>();
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            if(LLVMIsDeclaration(func) != 0) continue;
+            index.put(func.address(), functions.size());
+            functions.add(func);
+        }
+        int n = functions.size();
+        List<List<Integer>> callees = new ArrayList<>();
+        for(LLVMValueRef func : functions){
+            List<Integer> list = new ArrayList<>();
+            for(LLVMValueRef call : calls(func)){
+                Integer callee = index.get(LLVMGetCalledValue(call).address());
+                if(callee != null) list.add(callee);
+            }
+            callees.add(list);
+        }
+        //Tarjan算法按逆拓扑序给出强连通分量，被调函数所在的分量先于调用者
+        int[] component = new int[n];
+        List<Integer> order = new ArrayList<>();
+        new Tarjan(callees, component, order).run();
+        for(int f : order){
+            LLVMValueRef caller = functions.get(f);
+            int size = countInstructions(caller);
+            //内联会拆分块，先记下每个调用处是否在循环中
+            boolean[] inLoop = loopBlocks(caller);
+            HashMap<Long, Integer> blockIndex = blockIndex(caller);
+            List<LLVMValueRef> sites = calls(caller);
+            boolean[] siteInLoop = new boolean[sites.size()];
+            for(int i = 0; i < sites.size(); i++){
+                siteInLoop[i] = inLoop[blockIndex.get(LLVMGetInstructionParent(sites.get(i)).address())];
+            }
+            for(int i = 0; i < sites.size(); i++){
+                LLVMValueRef call = sites.get(i);
+                Integer callee = index.get(LLVMGetCalledValue(call).address());
+                if(callee == null || component[callee] == component[f]) continue;
+                boolean loop = siteInLoop[i];
+                int cost = countInstructions(functions.get(callee));
+                if(cost > (loop ? 2 * threshold : threshold) || size + cost > MAX_CALLER_SIZE) continue;
+                inline(call, functions.get(callee));
+                size += cost;
+                inlinedCalls++;
+                if(loop) inlinedInLoops++;
+            }
+        }
+        for(LLVMValueRef func : functions){
+            if(LLVMGetFirstUse(func) == null && !LLVMGetValueName(func).getString().equals("main")){
+                LLVMDeleteFunction(func);
+                removedFunctions++;
+            }
+        }
+        LLVMDisposeBuilder(builder);
+    }
+
+    //func中对有函数体的函数的调用
+    private static List<LLVMValueRef> calls(LLVMValueRef func){
+        List<LLVMValueRef> calls = new ArrayList<>();
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                if(LLVMGetInstructionOpcode(inst) != LLVMCall) continue;
+                LLVMValueRef callee = LLVMGetCalledValue(inst);
+                if(LLVMIsAFunction(callee) != null && LLVMIsDeclaration(callee) == 0) calls.add(inst);
+            }
+        }
+        return calls;
+    }
+
+    private static int countInstructions(LLVMValueRef func){
+        int count = 0;
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static HashMap<Long, Integer> blockIndex(LLVMValueRef func){
+        HashMap<Long, Integer> index = new HashMap<>();
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            index.put(bb.address(), index.size());
+        }
+        return index;
+    }
+
+    //在CFG的非平凡强连通分量中（或有自环）的块属于某个循环
+    private static boolean[] loopBlocks(LLVMValueRef func){
+        HashMap<Long, Integer> index = blockIndex(func);
+        List<List<Integer>> successors = new ArrayList<>();
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            List<Integer> list = new ArrayList<>();
+            LLVMValueRef term = LLVMGetBasicBlockTerminator(bb);
+            for(int k = 0; term != null && k < LLVMGetNumSuccessors(term); k++){
+                list.add(index.get(LLVMGetSuccessor(term, k).address()));
+            }
+            successors.add(list);
+        }
+        int n = successors.size();
+        int[] component = new int[n];
+        new Tarjan(successors, component, new ArrayList<>()).run();
+        int[] componentSize = new int[n];
+        for(int b = 0; b < n; b++){
+            componentSize[component[b]]++;
+        }
+        boolean[] inLoop = new boolean[n];
+        for(int b = 0; b < n; b++){
+            inLoop[b] = componentSize[component[b]] > 1 || successors.get(b).contains(b);
+        }
+        return inLoop;
+    }
+
+    //把call所在的块在call之后断开，中间插入callee的副本：参数换成实参，ret换成跳到后半块，返回值在后半块开头用phi合并
+    private void inline(LLVMValueRef call, LLVMValueRef callee){
+        LLVMBasicBlockRef block = LLVMGetInstructionParent(call);
+        LLVMValueRef caller = LLVMGetBasicBlockParent(block);
+        LLVMBasicBlockRef after = LLVMAppendBasicBlockInContext(LLVMGetModuleContext(module), caller,
+                LLVMGetValueName(callee).getString() + "Return");
+        LLVMMoveBasicBlockAfter(after, block);
+        List<LLVMValueRef> tail = new ArrayList<>();
+        for(LLVMValueRef inst = LLVMGetNextInstruction(call); inst != null; inst = LLVMGetNextInstruction(inst)){
+            tail.add(inst);
+        }
+        LLVMPositionBuilderAtEnd(builder, after);
+        for(LLVMValueRef inst : tail){
+            String name = LLVMGetValueName(inst).getString();
+            LLVMInstructionRemoveFromParent(inst);
+            LLVMInsertIntoBuilderWithName(builder, inst, name);
+        }
+        //终结指令搬到了后半块，后继中phi的来源块跟着换
+        LLVMValueRef term = LLVMGetBasicBlockTerminator(after);
+        for(int k = 0; term != null && k < LLVMGetNumSuccessors(term); k++){
+            replacePhiBlock(LLVMGetSuccessor(term, k), block, after);
+        }
+
+        //先复制块和指令（操作数仍指向callee），全部复制完再替换操作数，phi和前向引用都不用特殊处理顺序
+        HashMap<Long, LLVMValueRef> valueMap = new HashMap<>();
+        for(int i = 0; i < LLVMCountParams(callee); i++){
+            valueMap.put(LLVMGetParam(callee, i).address(), LLVMGetOperand(call, i));
+        }
+        List<LLVMValueRef[]> phis = new ArrayList<>();
+        List<LLVMValueRef> clones = new ArrayList<>();
+        List<LLVMValueRef> returnValues = new ArrayList<>();
+        List<LLVMBasicBlockRef> returnBlocks = new ArrayList<>();
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(callee); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            LLVMBasicBlockRef copy = LLVMInsertBasicBlockInContext(LLVMGetModuleContext(module), after,
+                    LLVMGetValueName(callee).getString() + "_" + LLVMGetBasicBlockName(bb).getString());
+            valueMap.put(LLVMBasicBlockAsValue(bb).address(), LLVMBasicBlockAsValue(copy));
+        }
+        LLVMBasicBlockRef entry = LLVMGetEntryBasicBlock(caller);
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(callee); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            LLVMBasicBlockRef copy = LLVMValueAsBasicBlock(valueMap.get(LLVMBasicBlockAsValue(bb).address()));
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                int opcode = LLVMGetInstructionOpcode(inst);
+                String name = LLVMGetValueName(inst).getString();
+                LLVMValueRef clone;
+                if(opcode == LLVMRet){
+                    LLVMPositionBuilderAtEnd(builder, copy);
+                    LLVMBuildBr(builder, after);
+                    returnValues.add(LLVMGetNumOperands(inst) > 0 ? LLVMGetOperand(inst, 0) : null);
+                    returnBlocks.add(copy);
+                    continue;
+                }else if(opcode == LLVMPHI){
+                    LLVMPositionBuilderAtEnd(builder, copy);
+                    clone = LLVMBuildPhi(builder, LLVMTypeOf(inst), name);
+                    phis.add(new LLVMValueRef[]{inst, clone});
+                }else{
+                    clone = LLVMInstructionClone(inst);
+                    //栈上数组放到调用者的入口块，内联进循环也只分配一次
+                    if(opcode == LLVMAlloca){
+                        LLVMPositionBuilderBefore(builder, LLVMGetFirstInstruction(entry));
+                    }else{
+                        LLVMPositionBuilderAtEnd(builder, copy);
+                    }
+                    LLVMInsertIntoBuilderWithName(builder, clone, name);
+                    clones.add(clone);
+                }
+                valueMap.put(inst.address(), clone);
+            }
+        }
+        for(LLVMValueRef clone : clones){
+            for(int k = 0; k < LLVMGetNumOperands(clone); k++){
+                LLVMValueRef operand = valueMap.get(LLVMGetOperand(clone, k).address());
+                if(operand != null) LLVMSetOperand(clone, k, operand);
+            }
+        }
+        for(LLVMValueRef[] phi : phis){
+            int count = LLVMCountIncoming(phi[0]);
+            for(int k = 0; k < count; k++){
+                LLVMValueRef value = map(valueMap, LLVMGetIncomingValue(phi[0], k));
+                LLVMValueRef from = valueMap.get(LLVMBasicBlockAsValue(LLVMGetIncomingBlock(phi[0], k)).address());
+                addIncoming(phi[1], value, LLVMValueAsBasicBlock(from));
+            }
+        }
+
+        //call换成跳到副本的入口
+        LLVMPositionBuilderAtEnd(builder, block);
+        LLVMBuildBr(builder, LLVMValueAsBasicBlock(valueMap.get(LLVMBasicBlockAsValue(LLVMGetEntryBasicBlock(callee)).address())));
+        if(LLVMGetTypeKind(LLVMTypeOf(call)) != LLVMVoidTypeKind){
+            LLVMValueRef result;
+            if(returnValues.isEmpty()){
+                result = LLVMGetUndef(LLVMTypeOf(call));
+            }else if(returnValues.size() == 1){
+                result = map(valueMap, returnValues.get(0));
+            }else{
+                LLVMPositionBuilderBefore(builder, LLVMGetFirstInstruction(after));
+                result = LLVMBuildPhi(builder, LLVMTypeOf(call), "result");
+                for(int k = 0; k < returnValues.size(); k++){
+                    addIncoming(result, map(valueMap, returnValues.get(k)), returnBlocks.get(k));
+                }
+            }
+            LLVMReplaceAllUsesWith(call, result);
+        }
+        LLVMInstructionEraseFromParent(call);
+    }
+
+    private static void addIncoming(LLVMValueRef phi, LLVMValueRef value, LLVMBasicBlockRef block){
+        LLVMValueRef[] values = {value};
+        LLVMBasicBlockRef[] blocks = {block};
+        LLVMAddIncoming(phi, new PointerPointer<>(values), new PointerPointer<>(blocks), 1);
+    }
+
+    private static LLVMValueRef map(HashMap<Long, LLVMValueRef> valueMap, LLVMValueRef value){
+        LLVMValueRef mapped = valueMap.get(value.address());
+        return mapped != null ? mapped : value;
+    }
+
+    //C API不能修改phi的来源块，重建一个来源块替换后的phi
+    private void replacePhiBlock(LLVMBasicBlockRef block, LLVMBasicBlockRef from, LLVMBasicBlockRef to){
+        List<LLVMValueRef> phis = new ArrayList<>();
+        for(LLVMValueRef inst = LLVMGetFirstInstruction(block); inst != null && LLVMGetInstructionOpcode(inst) == LLVMPHI;
+                inst = LLVMGetNextInstruction(inst)){
+            phis.add(inst);
+        }
+        for(LLVMValueRef phi : phis){
+            int count = LLVMCountIncoming(phi);
+            boolean found = false;
+            for(int k = 0; k < count; k++){
+                found |= LLVMGetIncomingBlock(phi, k).address() == from.address();
+            }
+            if(!found) continue;
+            String name = LLVMGetValueName(phi).getString();
+            LLVMPositionBuilderBefore(builder, phi);
+            LLVMValueRef copy = LLVMBuildPhi(builder, LLVMTypeOf(phi), name);
+            for(int k = 0; k < count; k++){
+                LLVMBasicBlockRef incoming = LLVMGetIncomingBlock(phi, k);
+                if(incoming.address() == from.address()) incoming = to;
+                addIncoming(copy, LLVMGetIncomingValue(phi, k), incoming);
+            }
+            LLVMReplaceAllUsesWith(phi, copy);
+            LLVMInstructionEraseFromParent(phi);
+        }
+    }
+
+    //图的强连通分量（非递归Tarjan），component按完成顺序编号，order按逆拓扑序给出所有结点
+    private static class Tarjan {
+        private final List<List<Integer>> edges;
+        private final int[] component;
+        private final List<Integer> order;
+
+        Tarjan(List<List<Integer>> edges, int[] component, List<Integer> order){
+            this.edges = edges;
+            this.component = component;
+            this.order = order;
+        }
+
+        void run(){
+            int n = edges.size();
+            int[] low = new int[n], number = new int[n], next = new int[n];
+            boolean[] onStack = new boolean[n];
+            int[] stack = new int[n], callStack = new int[n];
+            int counter = 0, top = 0, components = 0;
+            for(int root = 0; root < n; root++){
+                if(number[root] != 0) continue;
+                int depth = 0;
+                callStack[depth++] = root;
+                number[root] = low[root] = ++counter;
+                stack[top++] = root;
+                onStack[root] = true;
+                while(depth > 0){
+                    int v = callStack[depth - 1];
+                    if(next[v] < edges.get(v).size()){
+                        int w = edges.get(v).get(next[v]++);
+                        if(number[w] == 0){
+                            number[w] = low[w] = ++counter;
+                            stack[top++] = w;
+                            onStack[w] = true;
+                            callStack[depth++] = w;
+                        }else if(onStack[w]){
+                            low[v] = Math.min(low[v], number[w]);
+                        }
+                        continue;
+                    }
+                    depth--;
+                    if(depth > 0){
+                        int parent = callStack[depth - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if(low[v] == number[v]){
+                        int w;
+                        do{
+                            w = stack[--top];
+                            onStack[w] = false;
+                            component[w] = components;
+                            order.add(w);
+                        }while(w != v);
+                        components++;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+//寄存器分配之后的基本块内表调度，面向单发射顺序执行的核，把load、乘除法和用到它们结果的指令拉开
+//  以标签、跳转、调用等为界把汇编切成区域。跳转、调用本身作为区域的最后一个结点，依赖区域内所有指令
+//  依赖图：写后读按前驱的延迟；读后写、写后写只保证先后顺序
+//         访存之间只要有一个是store就保持顺序，除非两者基址相同（中间没有改写）且偏移不同
+//  按到区域末尾的关键路径长度为优先级，逐周期从就绪的指令中选一条发射，没有就绪的指令时停顿一个周期
+//按同一个模型估算调度前后的周期数，调度后不更快的区域保留原来的顺序
+public class InstructionScheduler {
+    //区域的最大指令数，依赖图的访存部分是平方复杂度，很长的直线代码分段调度
+    private static final int MAX_REGION = 256;
+
+    private final LatencyModel model;
+    private long cyclesBefore;
+    private long cyclesAfter;
+    private int scheduledRegions;
+
+    public InstructionScheduler(LatencyModel model){
+        this.model = model;
+    }
+
+    public void run(AsmInstList insts){
+        List<Integer> region = new ArrayList<>();
+        for(int i = 0; i < insts.size(); i++){
+            AsmInst inst = insts.get(i);
+            if(inst.deleted || inst.isNewline()) continue;
+            if(inst.format == AsmInst.LABEL){
+                schedule(insts, region);
+                region.clear();
+                continue;
+            }
+            region.add(i);
+            if(inst.isBarrier() || region.size() >= MAX_REGION){
+                schedule(insts, region);
+                region.clear();
+            }
+        }
+        schedule(insts, region);
+    }
+
+    //调度前按原顺序估算的周期数
+    public long getCyclesBefore(){
+        return cyclesBefore;
+    }
+
+    public long getCyclesAfter(){
+        return cyclesAfter;
+    }
+
+    //顺序被改变了的区域数
+    public int getScheduledRegions(){
+        return scheduledRegions;
+    }
+
+    private int latency(AsmInst inst){
+        return model.getLatency(inst.op);
+    }
+
+    private void schedule(AsmInstList insts, List<Integer> region){
+        int n = region.size();
+        if(n == 0) return;
+        AsmInst[] code = new AsmInst[n];
+        for(int k = 0; k < n; k++){
+            code[k] = insts.get(region.get(k));
+        }
+        DependenceGraph graph = new DependenceGraph(code);
+        int before = graph.simulate(identity(n));
+        if(n < 3){
+            cyclesBefore += before;
+            cyclesAfter += before;
+            return;
+        }
+        int[] order = graph.listSchedule();
+        int after = graph.simulate(order);
+        cyclesBefore += before;
+        if(after >= before){
+            cyclesAfter += before;
+            return;
+        }
+        cyclesAfter += after;
+        scheduledRegions++;
+        for(int k = 0; k < n; k++){
+            insts.set(region.get(k), code[order[k]]);
+        }
+    }
+
+    private static int[] identity(int n){
+        int[] order = new int[n];
+        for(int k = 0; k < n; k++){
+            order[k] = k;
+        }
+        return order;
+    }
+
+    private class DependenceGraph {
+        private final int n;
+        private final AsmInst[] code;
+        //边按起点存：succ[k]中的每一项为{终点, 延迟}
+        private final List<List<int[]>> succ = new ArrayList<>();
+        private final List<List<int[]>> pred = new ArrayList<>();
+        //到区域末尾的关键路径长度
+        private final int[] height;
+
+        DependenceGraph(AsmInst[] code){
+            this.code = code;
+            this.n = code.length;
+            for(int k = 0; k < n; k++){
+                succ.add(new ArrayList<>());
+                pred.add(new ArrayList<>());
+            }
+            buildEdges();
+            height = new int[n];
+            for(int k = n - 1; k >= 0; k--){
+                height[k] = latency(code[k]);
+                for(int[] edge : succ.get(k)){
+                    height[k] = Math.max(height[k], edge[1] + height[edge[0]]);
+                }
+            }
+        }
+
+        private void addEdge(int from, int to, int latency){
+            succ.get(from).add(new int[]{to, latency});
+            pred.get(to).add(new int[]{from, latency});
+        }
+
+        private void buildEdges(){
+            HashMap<String, Integer> lastDef = new HashMap<>();
+            HashMap<String, List<Integer>> readers = new HashMap<>();
+            //访存指令的基址在它读取时由哪条指令写入，-1为区域之前
+            int[] baseVersion = new int[n];
+            for(int j = 0; j < n; j++){
+                AsmInst inst = code[j];
+                if(inst.isBarrier()){
+                    //跳转、调用最后执行；调用和返回隐式地读取参数寄存器，保守地认为读取了所有结果
+                    boolean implicitReads = inst.format == AsmInst.OP || inst.format == AsmInst.OP0;
+                    for(int k = 0; k < j; k++){
+                        String def = code[k].getDef();
+                        boolean raw = def != null && (implicitReads || inst.reads(def));
+                        addEdge(k, j, raw ? latency(code[k]) : 0);
+                    }
+                    continue;
+                }
+                for(String reg : inst.getUses()){
+                    if(reg.equals("zero")) continue;
+                    Integer def = lastDef.get(reg);
+                    if(def != null) addEdge(def, j, latency(code[def]));
+                    readers.computeIfAbsent(reg, r -> new ArrayList<>()).add(j);
+                }
+                if(inst.format == AsmInst.MEM){
+                    baseVersion[j] = lastDef.getOrDefault(inst.lhs, -1);
+                    for(int k = 0; k < j; k++){
+                        if(code[k].format != AsmInst.MEM || (!code[k].isStore() && !inst.isStore())) continue;
+                        if(code[k].lhs.equals(inst.lhs) && baseVersion[k] == baseVersion[j] && code[k].imm != inst.imm) continue;
+                        //store之后的load要等store写完，其余只保证顺序
+                        addEdge(k, j, code[k].isStore() && !inst.isStore() ? 1 : 0);
+                    }
+                }
+                String def = inst.getDef();
+                if(def != null && !def.equals("zero")){
+                    List<Integer> oldReaders = readers.remove(def);
+                    if(oldReaders != null){
+                        for(int r : oldReaders){
+                            if(r != j) addEdge(r, j, 0);
+                        }
+                    }
+                    Integer oldDef = lastDef.get(def);
+                    if(oldDef != null) addEdge(oldDef, j, 0);
+                    lastDef.put(def, j);
+                }
+            }
+        }
+
+        //按给定顺序单发射执行，每条指令不早于上一条的下一个周期、不早于各前驱的结果就绪，返回总周期数
+        int simulate(int[] order){
+            int[] issue = new int[n];
+            int cycle = 0;
+            for(int k : order){
+                int t = cycle;
+                for(int[] edge : pred.get(k)){
+                    t = Math.max(t, issue[edge[0]] + edge[1]);
+                }
+                issue[k] = t;
+                cycle = t + 1;
+            }
+            return cycle;
+        }
+
+        //表调度：就绪且结果已经可用的指令中选关键路径最长的，相同时选原来靠前的
+        int[] listSchedule(){
+            int[] remaining = new int[n];
+            int[] earliest = new int[n];
+            boolean[] ready = new boolean[n];
+            for(int k = 0; k < n; k++){
+                remaining[k] = pred.get(k).size();
+                ready[k] = remaining[k] == 0;
+            }
+            int[] order = new int[n];
+            int size = 0;
+            int cycle = 0;
+            while(size < n){
+                int best = -1;
+                for(int k = 0; k < n; k++){
+                    if(!ready[k] || earliest[k] > cycle) continue;
+                    if(best < 0 || height[k] > height[best]) best = k;
+                }
+                if(best < 0){
+                    cycle++;
+                    continue;
+                }
+                ready[best] = false;
+                order[size++] = best;
+                for(int[] edge : succ.get(best)){
+                    int s = edge[0];
+                    earliest[s] = Math.max(earliest[s], cycle + edge[1]);
+                    if(--remaining[s] == 0) ready[s] = true;
+                }
+                cycle++;
+            }
+            return order;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+import java.util.Arrays;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//基于代价的树模式指令选择（BURS）
+//只被同一基本块内的一条指令使用的icmp、zext、xor看作树的内部结点，其余指令都是树根，各自在原来的位置生成
+//自底向上为每个结点的每个非终结符求最小代价和对应规则，再从树根自顶向下确定要折叠进父结点的子树
+//非终结符：
+//  REG  值在寄存器中
+//  IMM  能放进12位立即数的常数
+//  CMP  还没有算出来的比较，交给条件跳转直接使用（blt、beqz等）
+//  DEST 直接算到父结点的目标寄存器里（zext这类不改变值的指令）
+//  STMT 没有结果的指令（br）
+public class InstructionSelector {
+    public static final int REG = 0, IMM = 1, CMP = 2, DEST = 3, STMT = 4;
+    private static final int NT_NUM = 5;
+
+    //REG规则
+    public static final int R_ADD = 1, R_ADDI = 2, R_ADDI_SWAP = 3, R_SUB = 4, R_SUBI = 5,
+            R_MUL = 6, R_SLLI = 7, R_SLLI_SWAP = 8, R_DIV = 9, R_REM = 10, R_XOR = 11, R_XORI = 12,
+            R_SET = 13, R_SETI = 14, R_SETZ = 15, R_ZEXT_MV = 16, R_ZEXT_DEST = 17, R_BOOL_PASS = 18;
+    //CMP规则
+    public static final int C_ICMP = 20, C_ZEXT = 21, C_NOT = 22, C_BOOL = 23, C_ZEXT_REG = 24;
+    //STMT规则
+    public static final int S_JUMP = 30, S_BR_CMP = 31, S_BR_REG = 32;
+    //一个操作数为常数的乘除法，见StrengthReduction
+    public static final int R_MULC = 40, R_MULC_SWAP = 41, R_DIVC = 42, R_REMC = 43;
+    //LLVM的优化pass生成的指令：移位、按位与或、无符号除法，i1的sext、trunc，select
+    public static final int R_BINARY = 44, R_BINARY_IMM = 45, R_SEXT = 46, R_TRUNC = 47, R_SELECT = 48;
+
+    //各类指令的代价，乘除法按延迟计
+    private static final int ALU_COST = 1, MUL_COST = 3, DIV_COST = 20;
+    private static final int INF = 1 << 20;
+
+    private final IRFunction func;
+    private final int[] useCount;
+    //没有使用者的纯运算（优化pass可能留下），不生成代码，也不算作对操作数的使用
+    private final boolean[] dead;
+    private final int[][] cost;
+    private final int[][] rule;
+    //折叠进父结点的子树在父结点中的非终结符，树根为-1
+    private final int[] goal;
+    //每条指令实际在哪条树根指令的位置生成
+    private final int[] root;
+
+    private int selectedNum;
+    private int selectedCost;
+
+    public InstructionSelector(IRFunction func){
+        this.func = func;
+        int n = func.valueNum;
+        useCount = new int[n];
+        cost = new int[n][NT_NUM];
+        rule = new int[n][NT_NUM];
+        goal = new int[n];
+        root = new int[n];
+        dead = new boolean[n];
+        for(int v = func.argNum; v < n; v++){
+            for(int i = 0; i < func.getOperandNum(v); i++){
+                if(func.getOperandKind(v, i) == IRFunction.VALUE) useCount[func.getOperandValue(v, i)]++;
+            }
+        }
+        //除了phi，操作数都在使用者之前，倒序一遍就能删掉整条死代码链
+        for(int v = n - 1; v >= func.argNum; v--){
+            if(useCount[v] != 0 || !isPure(func.opcode[v])) continue;
+            dead[v] = true;
+            for(int i = 0; i < func.getOperandNum(v); i++){
+                if(func.getOperandKind(v, i) == IRFunction.VALUE) useCount[func.getOperandValue(v, i)]--;
+            }
+        }
+        //操作数总在使用者之前，按编号顺序即为自底向上
+        for(int v = func.argNum; v < n; v++){
+            label(v);
+        }
+        //使用者总在操作数之后，倒序即为自顶向下
+        Arrays.fill(goal, -1);
+        for(int v = n - 1; v >= func.argNum; v--){
+            if(goal[v] != -1) continue;
+            root[v] = v;
+            if(cost[v][STMT] < INF){
+                reduce(v, STMT);
+            }else if(cost[v][REG] < INF){
+                reduce(v, REG);
+            }
+        }
+    }
+
+    //是否由选择器负责生成，其余指令（load、store、ret等）仍按固定模板生成
+    public boolean isSelected(int v){
+        return cost[v][REG] < INF || cost[v][STMT] < INF;
+    }
+
+    public boolean isDead(int v){
+        return dead[v];
+    }
+
+    private static boolean isPure(int op){
+        return op == LLVMAdd || op == LLVMSub || op == LLVMMul || op == LLVMXor || op == LLVMZExt || op == LLVMICmp
+                || op == LLVMShl || op == LLVMLShr || op == LLVMAShr || op == LLVMAnd || op == LLVMOr
+                || op == LLVMSExt || op == LLVMTrunc || op == LLVMSelect;
+    }
+
+    //是否已经折叠进了别的指令，折叠的指令不单独生成，也不分配寄存器
+    public boolean isFolded(int v){
+        return goal[v] != -1;
+    }
+
+    public int getGoal(int v){
+        return goal[v];
+    }
+
+    public int getRoot(int v){
+        return root[v];
+    }
+
+    public int getRule(int v, int nt){
+        return rule[v][nt];
+    }
+
+    public int getSelectedNum(){
+        return selectedNum;
+    }
+
+    public int getSelectedCost(){
+        return selectedCost;
+    }
+
+    //比较的左右操作数下标：常数在左边时交换到右边，谓词也相应交换
+    public int cmpLhs(int v){
+        return isSwapped(v) ? 1 : 0;
+    }
+
+    public int cmpRhs(int v){
+        return isSwapped(v) ? 0 : 1;
+    }
+
+    public int cmpPred(int v){
+        return isSwapped(v) ? swapPred(func.predicate[v]) : func.predicate[v];
+    }
+
+    private boolean isSwapped(int v){
+        return isConst(v, 0) && !isConst(v, 1);
+    }
+
+    public static int swapPred(int pred){
+        if(pred == LLVMIntSLT) return LLVMIntSGT;
+        if(pred == LLVMIntSGT) return LLVMIntSLT;
+        if(pred == LLVMIntSLE) return LLVMIntSGE;
+        if(pred == LLVMIntSGE) return LLVMIntSLE;
+        if(pred == LLVMIntULT) return LLVMIntUGT;
+        if(pred == LLVMIntUGT) return LLVMIntULT;
+        if(pred == LLVMIntULE) return LLVMIntUGE;
+        if(pred == LLVMIntUGE) return LLVMIntULE;
+        return pred;
+    }
+
+    public static int invertPred(int pred){
+        if(pred == LLVMIntEQ) return LLVMIntNE;
+        if(pred == LLVMIntNE) return LLVMIntEQ;
+        if(pred == LLVMIntSLT) return LLVMIntSGE;
+        if(pred == LLVMIntSGE) return LLVMIntSLT;
+        if(pred == LLVMIntSGT) return LLVMIntSLE;
+        if(pred == LLVMIntSLE) return LLVMIntSGT;
+        if(pred == LLVMIntULT) return LLVMIntUGE;
+        if(pred == LLVMIntUGE) return LLVMIntULT;
+        if(pred == LLVMIntUGT) return LLVMIntULE;
+        return LLVMIntUGT;
+    }
+
+    //无符号比较（优化pass在知道操作数非负时会用到）
+    public static boolean isUnsigned(int pred){
+        return pred == LLVMIntULT || pred == LLVMIntULE || pred == LLVMIntUGT || pred == LLVMIntUGE;
+    }
+
+    //无符号比较对应的有符号谓词，生成时只差在用sltu还是slt
+    public static int toSigned(int pred){
+        if(pred == LLVMIntULT) return LLVMIntSLT;
+        if(pred == LLVMIntULE) return LLVMIntSLE;
+        if(pred == LLVMIntUGT) return LLVMIntSGT;
+        if(pred == LLVMIntUGE) return LLVMIntSGE;
+        return pred;
+    }
+
+    //R_BINARY、R_BINARY_IMM对应的指令
+    public static String binaryOp(int opcode, boolean imm){
+        String op;
+        if(opcode == LLVMShl){
+            op = "sll";
+        }else if(opcode == LLVMLShr){
+            op = "srl";
+        }else if(opcode == LLVMAShr){
+            op = "sra";
+        }else if(opcode == LLVMAnd){
+            op = "and";
+        }else if(opcode == LLVMOr){
+            op = "or";
+        }else if(opcode == LLVMUDiv){
+            return "divu";
+        }else{
+            return "remu";
+        }
+        return imm ? op + "i" : op;
+    }
+
+    public static boolean fitsImm12(long value){
+        return value >= -2048 && value <= 2047;
+    }
+
+    public static boolean isPowerOfTwo(int value){
+        return value > 0 && (value & (value - 1)) == 0;
+    }
+
+    //比较结果写入寄存器需要的指令数，imm为true时右操作数是立即数c
+    public static int setSize(int pred, boolean imm){
+        pred = toSigned(pred);
+        if(pred == LLVMIntSLT) return 1;
+        if(pred == LLVMIntSGT) return imm ? 2 : 1;
+        if(pred == LLVMIntSLE) return imm ? 1 : 2;
+        return 2;
+    }
+
+    //li一个常数需要的指令数，0直接用zero寄存器
+    public static int loadImmSize(int value){
+        if(value == 0) return 0;
+        return fitsImm12(value) ? 1 : 2;
+    }
+
+    private boolean isConst(int v, int i){
+        return func.getOperandKind(v, i) == IRFunction.CONST;
+    }
+
+    private boolean isZero(int v, int i){
+        return isConst(v, i) && func.getOperandValue(v, i) == 0;
+    }
+
+    //第i个操作数是否为指定操作码的指令
+    private boolean isOpcode(int v, int i, int opcode){
+        return func.getOperandKind(v, i) == IRFunction.VALUE && func.isInstruction(func.getOperandValue(v, i))
+                && func.opcode[func.getOperandValue(v, i)] == opcode;
+    }
+
+    //只有一个使用者、且在同一基本块中的比较类指令才能折叠进使用者
+    private boolean canFold(int v, int user){
+        int op = func.opcode[v];
+        return useCount[v] == 1 && func.blockOf[v] == func.blockOf[user]
+                && (op == LLVMICmp || op == LLVMZExt || op == LLVMXor);
+    }
+
+    //第i个操作数作为非终结符nt的代价。不能折叠的指令作为树根单独计算代价，这里按0计
+    private int child(int v, int i, int nt){
+        int kind = func.getOperandKind(v, i);
+        int value = func.getOperandValue(v, i);
+        if(kind == IRFunction.CONST){
+            if(nt == REG) return loadImmSize(value) * ALU_COST;
+            if(nt == IMM) return fitsImm12(value) ? 0 : INF;
+            return INF;
+        }
+        if(kind == IRFunction.VALUE && func.isInstruction(value)){
+            if(canFold(value, v)) return cost[value][nt];
+            return nt == REG ? 0 : INF;
+        }
+        return nt == REG ? 0 : INF;
+    }
+
+    private void consider(int v, int nt, int r, int c){
+        if(c < cost[v][nt]){
+            cost[v][nt] = c;
+            rule[v][nt] = r;
+        }
+    }
+
+    private void label(int v){
+        Arrays.fill(cost[v], INF);
+        if(dead[v]) return;
+        int op = func.opcode[v];
+        if(op == LLVMAdd){
+            consider(v, REG, R_ADD, ALU_COST + child(v, 0, REG) + child(v, 1, REG));
+            consider(v, REG, R_ADDI, ALU_COST + child(v, 0, REG) + child(v, 1, IMM));
+            consider(v, REG, R_ADDI_SWAP, ALU_COST + child(v, 1, REG) + child(v, 0, IMM));
+        }else if(op == LLVMSub){
+            consider(v, REG, R_SUB, ALU_COST + child(v, 0, REG) + child(v, 1, REG));
+            if(isConst(v, 1) && fitsImm12(-(long) func.getOperandValue(v, 1))){
+                consider(v, REG, R_SUBI, ALU_COST + child(v, 0, REG));
+            }
+        }else if(op == LLVMMul){
+            consider(v, REG, R_MUL, MUL_COST + child(v, 0, REG) + child(v, 1, REG));
+            if(isConst(v, 1) && isPowerOfTwo(func.getOperandValue(v, 1))){
+                consider(v, REG, R_SLLI, ALU_COST + child(v, 0, REG));
+            }
+            if(isConst(v, 0) && isPowerOfTwo(func.getOperandValue(v, 0))){
+                consider(v, REG, R_SLLI_SWAP, ALU_COST + child(v, 1, REG));
+            }
+            if(isConst(v, 1) && StrengthReduction.mulSize(func.getOperandValue(v, 1)) != -1){
+                consider(v, REG, R_MULC, StrengthReduction.mulSize(func.getOperandValue(v, 1)) * ALU_COST + child(v, 0, REG));
+            }
+            if(isConst(v, 0) && StrengthReduction.mulSize(func.getOperandValue(v, 0)) != -1){
+                consider(v, REG, R_MULC_SWAP, StrengthReduction.mulSize(func.getOperandValue(v, 0)) * ALU_COST + child(v, 1, REG));
+            }
+        }else if(op == LLVMSDiv){
+            consider(v, REG, R_DIV, DIV_COST + child(v, 0, REG) + child(v, 1, REG));
+            if(isConst(v, 1) && StrengthReduction.canDivide(func.getOperandValue(v, 1))){
+                int d = func.getOperandValue(v, 1);
+                int mulh = StrengthReduction.usesMulh(d) ? MUL_COST - ALU_COST : 0;
+                consider(v, REG, R_DIVC, StrengthReduction.divSize(d) * ALU_COST + mulh + child(v, 0, REG));
+            }
+        }else if(op == LLVMSRem){
+            consider(v, REG, R_REM, DIV_COST + child(v, 0, REG) + child(v, 1, REG));
+            if(isConst(v, 1) && StrengthReduction.canDivide(func.getOperandValue(v, 1))){
+                int d = func.getOperandValue(v, 1);
+                int mul = (StrengthReduction.usesMulh(d) ? MUL_COST - ALU_COST : 0)
+                        + (StrengthReduction.remUsesMul(d) ? MUL_COST - ALU_COST : 0);
+                consider(v, REG, R_REMC, StrengthReduction.remSize(d) * ALU_COST + mul + child(v, 0, REG));
+            }
+        }else if(op == LLVMXor){
+            consider(v, REG, R_XOR, ALU_COST + child(v, 0, REG) + child(v, 1, REG));
+            consider(v, REG, R_XORI, ALU_COST + child(v, 0, REG) + child(v, 1, IMM));
+            //i1的取反：xor cmp, true
+            if(isOpcode(v, 0, LLVMICmp) && isConst(v, 1) && func.getOperandValue(v, 1) == 1){
+                consider(v, CMP, C_NOT, child(v, 0, CMP));
+            }
+        }else if(op == LLVMShl || op == LLVMLShr || op == LLVMAShr || op == LLVMAnd || op == LLVMOr){
+            consider(v, REG, R_BINARY, ALU_COST + child(v, 0, REG) + child(v, 1, REG));
+            boolean shift = (op == LLVMShl || op == LLVMLShr || op == LLVMAShr);
+            if(isConst(v, 1) && (!shift || (func.getOperandValue(v, 1) >= 0 && func.getOperandValue(v, 1) < 32))){
+                consider(v, REG, R_BINARY_IMM, ALU_COST + child(v, 0, REG) + child(v, 1, IMM));
+            }
+        }else if(op == LLVMUDiv || op == LLVMURem){
+            consider(v, REG, R_BINARY, DIV_COST + child(v, 0, REG) + child(v, 1, REG));
+        }else if(op == LLVMSExt){
+            //SysY只有i32和i1，设置了data layout之后pass也不会引入别的宽度：sext i1是0或-1
+            consider(v, REG, R_SEXT, ALU_COST + child(v, 0, REG));
+        }else if(op == LLVMTrunc){
+            consider(v, REG, R_TRUNC, ALU_COST + child(v, 0, REG));
+        }else if(op == LLVMSelect){
+            //不用跳转，按位选择：b ^ ((a ^ b) & -c)
+            consider(v, REG, R_SELECT, 4 * ALU_COST + child(v, 0, REG) + child(v, 1, REG) + child(v, 2, REG));
+        }else if(op == LLVMZExt){
+            //i1本身就是0/1，zext不需要任何指令
+            consider(v, REG, R_ZEXT_MV, ALU_COST + child(v, 0, REG));
+            consider(v, REG, R_ZEXT_DEST, child(v, 0, DEST));
+            consider(v, CMP, C_ZEXT, child(v, 0, CMP));
+            //操作数不能折叠时（比如phi），直接和0比较
+            consider(v, CMP, C_ZEXT_REG, child(v, 0, REG));
+        }else if(op == LLVMICmp){
+            int l = cmpLhs(v), r = cmpRhs(v), pred = cmpPred(v);
+            boolean eqOrNe = (pred == LLVMIntEQ || pred == LLVMIntNE);
+            consider(v, CMP, C_ICMP, child(v, l, REG) + child(v, r, REG));
+            consider(v, REG, R_SET, setSize(pred, false) * ALU_COST + child(v, l, REG) + child(v, r, REG));
+            if(isConst(v, r)){
+                long c = func.getOperandValue(v, r);
+                boolean plusOne = (toSigned(pred) == LLVMIntSLE || toSigned(pred) == LLVMIntSGT);
+                //无符号比较c + 1回绕到0时不能改写
+                boolean wraps = plusOne && isUnsigned(pred) && c == -1;
+                if(fitsImm12(plusOne ? c + 1 : c) && !wraps){
+                    consider(v, REG, R_SETI, setSize(pred, true) * ALU_COST + child(v, l, REG));
+                }
+            }
+            if(eqOrNe && isZero(v, r)){
+                consider(v, REG, R_SETZ, ALU_COST + child(v, l, REG));
+                //(zext b) != 0 就是b本身，(zext b) == 0 是b取反
+                if(isOpcode(v, l, LLVMZExt)){
+                    consider(v, CMP, C_BOOL, child(v, l, CMP));
+                    if(pred == LLVMIntNE){
+                        consider(v, REG, R_BOOL_PASS, child(v, l, DEST));
+                    }
+                }
+            }
+        }else if(op == LLVMBr){
+            if(func.getOperandNum(v) == 1){
+                consider(v, STMT, S_JUMP, ALU_COST);
+            }else{
+                consider(v, STMT, S_BR_CMP, ALU_COST + child(v, 0, CMP));
+                consider(v, STMT, S_BR_REG, ALU_COST + child(v, 0, REG));
+            }
+        }
+        cost[v][DEST] = cost[v][REG];
+        rule[v][DEST] = rule[v][REG];
+    }
+
+    private void reduce(int v, int nt){
+        int r = rule[v][nt];
+        int pred = (func.opcode[v] == LLVMICmp ? cmpPred(v) : 0);
+        selectedCost += (goal[v] == -1 ? cost[v][nt] : 0);
+        //规则本身的指令数，加上用li装入寄存器的常数操作数
+        switch (r){
+            case R_SET:
+                selectedNum += setSize(pred, false) + constLoads(v);
+                break;
+            case R_SETI:
+                selectedNum += setSize(pred, true) + constLoads(v, cmpLhs(v));
+                break;
+            case R_ADDI: case R_SUBI: case R_SLLI: case R_XORI: case R_BINARY_IMM:
+                selectedNum += 1 + constLoads(v, 0);
+                break;
+            case R_SETZ:
+                selectedNum += 1 + constLoads(v, cmpLhs(v));
+                break;
+            case R_ADDI_SWAP: case R_SLLI_SWAP:
+                selectedNum += 1 + constLoads(v, 1);
+                break;
+            case R_MULC:
+                selectedNum += StrengthReduction.mulSize(func.getOperandValue(v, 1)) + constLoads(v, 0);
+                break;
+            case R_MULC_SWAP:
+                selectedNum += StrengthReduction.mulSize(func.getOperandValue(v, 0)) + constLoads(v, 1);
+                break;
+            case R_DIVC:
+                selectedNum += StrengthReduction.divSize(func.getOperandValue(v, 1)) + constLoads(v, 0);
+                break;
+            case R_REMC:
+                selectedNum += StrengthReduction.remSize(func.getOperandValue(v, 1)) + constLoads(v, 0);
+                break;
+            case R_SELECT:
+                selectedNum += 4 + constLoads(v) + constLoads(v, 2);
+                break;
+            case R_ZEXT_DEST: case R_BOOL_PASS: case C_ZEXT: case C_NOT: case C_BOOL:
+                break;
+            case C_ICMP: case C_ZEXT_REG:
+                selectedNum += constLoads(v);
+                break;
+            case S_BR_CMP:
+                selectedNum += 1;
+                break;
+            case S_BR_REG:
+                selectedNum += 1 + constLoads(v, 0);
+                break;
+            case R_ADD: case R_SUB: case R_MUL: case R_DIV: case R_REM: case R_XOR: case R_ZEXT_MV:
+            case R_BINARY: case R_SEXT: case R_TRUNC: case S_JUMP:
+                selectedNum += 1 + constLoads(v);
+                break;
+            default:
+                throw new IllegalStateException("unknown rule " + r + " for instruction " + v + " in " + func.name);
+        }
+        //折叠子树
+        if(r == R_ZEXT_DEST){
+            fold(v, 0, DEST);
+        }else if(r == R_BOOL_PASS){
+            fold(v, cmpLhs(v), DEST);
+        }else if(r == C_ZEXT || r == C_NOT){
+            fold(v, 0, CMP);
+        }else if(r == C_BOOL){
+            fold(v, cmpLhs(v), CMP);
+        }else if(r == S_BR_CMP){
+            fold(v, 0, CMP);
+        }
+    }
+
+    private void fold(int v, int i, int nt){
+        int c = func.getOperandValue(v, i);
+        goal[c] = nt;
+        root[c] = root[v];
+        reduce(c, nt);
+    }
+
+    private int constLoads(int v){
+        int n = 0;
+        for(int i = 0; i < Math.min(func.getOperandNum(v), 2); i++){
+            n += constLoads(v, i);
+        }
+        return n;
+    }
+
+    private int constLoads(int v, int i){
+        return isConst(v, i) ? loadImmSize(func.getOperandValue(v, i)) : 0;
+    }
+}
@@ -0,0 +1,70 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//instcombine会把取绝对值、取最值的写法合并成llvm.abs/smin/smax/umin/umax，汇编里没有这些符号
+//生成代码之前把它们展开成icmp和select，由指令选择按select生成；其余的intrinsic后端不支持，直接报错
+public class IntrinsicExpander {
+    //返回展开的调用数
+    public static int expand(LLVMModuleRef module){
+        LLVMBuilderRef builder = LLVMCreateBuilderInContext(LLVMGetModuleContext(module));
+        int count = 0;
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+                List<LLVMValueRef> calls = new ArrayList<>();
+                for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                    if(LLVMGetInstructionOpcode(inst) == LLVMCall && calleeName(inst).startsWith("llvm.")) calls.add(inst);
+                }
+                for(LLVMValueRef call : calls){
+                    LLVMPositionBuilderBefore(builder, call);
+                    LLVMValueRef value = expandCall(builder, call);
+                    LLVMReplaceAllUsesWith(call, value);
+                    LLVMInstructionEraseFromParent(call);
+                    count++;
+                }
+            }
+        }
+        LLVMDisposeBuilder(builder);
+        //去掉已经没有调用的intrinsic声明
+        List<LLVMValueRef> unused = new ArrayList<>();
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            if(LLVMGetValueName(func).getString().startsWith("llvm.") && LLVMGetFirstUse(func) == null) unused.add(func);
+        }
+        for(LLVMValueRef func : unused){
+            LLVMDeleteFunction(func);
+        }
+        return count;
+    }
+
+    private static String calleeName(LLVMValueRef call){
+        return LLVMGetValueName(LLVMGetCalledValue(call)).getString();
+    }
+
+    private static LLVMValueRef expandCall(LLVMBuilderRef builder, LLVMValueRef call){
+        String name = calleeName(call);
+        String result = LLVMGetValueName(call).getString();
+        LLVMValueRef a = LLVMGetOperand(call, 0);
+        if(name.startsWith("llvm.abs.")){
+            //第二个参数只影响INT_MIN是否为poison，补码取负时INT_MIN还是自己，两种情况都满足
+            LLVMValueRef negative = LLVMBuildICmp(builder, LLVMIntSLT, a, LLVMConstNull(LLVMTypeOf(a)), "");
+            return LLVMBuildSelect(builder, negative, LLVMBuildNeg(builder, a, ""), a, result);
+        }
+        int predicate;
+        if(name.startsWith("llvm.smin.")){
+            predicate = LLVMIntSLT;
+        }else if(name.startsWith("llvm.smax.")){
+            predicate = LLVMIntSGT;
+        }else if(name.startsWith("llvm.umin.")){
+            predicate = LLVMIntULT;
+        }else if(name.startsWith("llvm.umax.")){
+            predicate = LLVMIntUGT;
+        }else{
+            throw new IllegalStateException("unsupported intrinsic: " + name);
+        }
+        LLVMValueRef b = LLVMGetOperand(call, 1);
+        return LLVMBuildSelect(builder, LLVMBuildICmp(builder, predicate, a, b, ""), a, b, result);
+    }
+}
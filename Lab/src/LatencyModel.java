@@ -0,0 +1,50 @@
+import java.util.HashMap;
+
+//指令延迟模型：一条指令发射后再过多少个周期，它的结果才能被后面的指令使用
+//单发射顺序执行的核上，后面的指令在结果就绪之前只能停顿
+//默认值按常见的顺序流水线：load-use停顿2个周期，乘法3个周期，除法、取余（包括无符号的）不流水，其余指令1个周期
+public class LatencyModel {
+    private final HashMap<String, Integer> latencies = new HashMap<>();
+    private int defaultLatency = 1;
+
+    public static LatencyModel defaultModel(){
+        LatencyModel model = new LatencyModel();
+        model.setLatency("lw", 3);
+        model.setLatency("mul", 3);
+        model.setLatency("mulh", 3);
+        model.setLatency("div", 20);
+        model.setLatency("rem", 20);
+        model.setLatency("divu", 20);
+        model.setLatency("remu", 20);
+        return model;
+    }
+
+    //在默认模型上按"lw=2,mul=4,default=1"的形式覆盖，default为表中没有的指令的延迟
+    public static LatencyModel parse(String spec){
+        LatencyModel model = defaultModel();
+        for(String item : spec.split(",")){
+            String[] pair = item.split("=");
+            if(pair.length != 2){
+                throw new IllegalArgumentException("bad latency entry: " + item);
+            }
+            int cycles = Integer.parseInt(pair[1].trim());
+            if(cycles < 1){
+                throw new IllegalArgumentException("latency must be at least 1: " + item);
+            }
+            if(pair[0].trim().equals("default")){
+                model.defaultLatency = cycles;
+            }else{
+                model.setLatency(pair[0].trim(), cycles);
+            }
+        }
+        return model;
+    }
+
+    public void setLatency(String op, int cycles){
+        latencies.put(op, cycles);
+    }
+
+    public int getLatency(String op){
+        return latencies.getOrDefault(op, defaultLatency);
+    }
+}
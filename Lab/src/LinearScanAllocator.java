@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+//线性扫描寄存器分配（Poletto & Sarkar），按Wimmer & Mössenböck的做法利用区间的空洞
+//区间按起点排序依次处理；active按终点有序，溢出时直接取终点最远的区间
+//当前位置落在空洞里的区间移到inactive，它的寄存器可以分给与它不相交的区间，到下一段开始时再移回active
+//区间的回收由按终点分桶的索引驱动，每推进一个位置只处理恰好在此结束的区间，不再扫描全部区间
+//mv和phi赋值的另一端已经分到寄存器时优先沿用它（register hint），两端在同一个寄存器里这条mv就不用生成
+//沿用时两端可能同时在active/inactive里占着同一个寄存器（只在mv处相接、各自的空洞里是对方），所以按寄存器记录active中的占用数
+public class LinearScanAllocator implements RegisterAllocator {
+    private static final Comparator<LiveInterval> byEnd =
+            Comparator.comparingInt(LiveInterval::getEnd).thenComparingInt(LiveInterval::getStart)
+                    .thenComparingInt(LiveInterval::getValue);
+
+    private final int regNum;
+    //按寄存器下标标记是否为被调用者保存的寄存器
+    private final boolean[] calleeSaved;
+
+    private final TreeSet<LiveInterval> active = new TreeSet<>(byEnd);
+    private final List<LiveInterval> inactive = new ArrayList<>();
+
+    //active之外的寄存器，同一类寄存器中按下标从小到大取，保证分配顺序与allRegs一致
+    private final BitSet freeRegs = new BitSet();
+    //active中占着每个寄存器的区间数，减到0时寄存器才空出来
+    private int[] holders;
+    //被inactive中与当前区间相交的区间占着的寄存器
+    private final BitSet blockedRegs = new BitSet();
+
+    //每个区间在moves中的另一端
+    private final IdentityHashMap<LiveInterval, List<LiveInterval>> partners = new IdentityHashMap<>();
+
+    //回收索引：expireHead[end]是终点为end的第一个区间在sorted中的下标，expireNext串起同一个桶里的其余区间
+    private int[] expireHead;
+    private int[] expireNext;
+    private int expiredUpTo;
+
+    public LinearScanAllocator(int regNum, boolean[] calleeSaved){
+        this.regNum = regNum;
+        this.calleeSaved = calleeSaved;
+    }
+
+    @Override
+    public void allocate(List<LiveInterval> intervals, List<LiveInterval[]> moves){
+        List<LiveInterval> sorted = new ArrayList<>(intervals);
+        sorted.sort(Comparator.comparingInt(LiveInterval::getStart));
+        active.clear();
+        inactive.clear();
+        freeRegs.clear();
+        freeRegs.set(0, regNum);
+        holders = new int[regNum];
+        partners.clear();
+        for(LiveInterval[] move : moves){
+            if(move[0] == move[1]) continue;
+            partners.computeIfAbsent(move[0], k -> new ArrayList<>()).add(move[1]);
+            partners.computeIfAbsent(move[1], k -> new ArrayList<>()).add(move[0]);
+        }
+        buildExpireIndex(sorted);
+        for(LiveInterval interval : sorted){
+            expireOldIntervals(sorted, interval.getStart());
+            updateInactive(interval);
+            int reg = pickHintReg(interval);
+            if(reg < 0){
+                reg = pickFreeReg(interval);
+            }
+            if(reg < 0){
+                spillAtInterval(interval);
+            }else{
+                hold(reg);
+                interval.setReg(reg);
+                active.add(interval);
+            }
+        }
+    }
+
+    //另一端已经分到的寄存器，如果占着它的区间都不与当前区间相交，就沿用它
+    //与另一端只在mv（phi的赋值）处相接不算相交，和图着色里mv两端的处理一样
+    private int pickHintReg(LiveInterval interval){
+        List<LiveInterval> list = partners.get(interval);
+        if(list == null) return -1;
+        for(LiveInterval partner : list){
+            int r = partner.getReg();
+            if(r < 0 || partner.isSpilled() || !canUse(interval, r) || blockedRegs.get(r)) continue;
+            boolean usable = true;
+            for(LiveInterval other : active){
+                if(other.getReg() == r && other.intersects(interval, list.contains(other))){
+                    usable = false;
+                    break;
+                }
+            }
+            if(usable) return r;
+        }
+        return -1;
+    }
+
+    private void hold(int reg){
+        if(holders[reg]++ == 0) freeRegs.clear(reg);
+    }
+
+    private void release(int reg){
+        if(--holders[reg] == 0) freeRegs.set(reg);
+    }
+
+    //跨调用的区间只取被调用者保存的寄存器；其余区间先取调用者保存的，没有了再取被调用者保存的
+    private int pickFreeReg(LiveInterval interval){
+        if(!interval.isCallCrossing()){
+            for(int r = freeRegs.nextSetBit(0); r >= 0; r = freeRegs.nextSetBit(r + 1)){
+                if(!calleeSaved[r] && !blockedRegs.get(r)) return r;
+            }
+        }
+        for(int r = freeRegs.nextSetBit(0); r >= 0; r = freeRegs.nextSetBit(r + 1)){
+            if(calleeSaved[r] && !blockedRegs.get(r)) return r;
+        }
+        return -1;
+    }
+
+    //推进到interval的起点：active中在此处有空洞的移到inactive，inactive中重新活跃的移回active，已结束的丢掉
+    //顺序不能颠倒：移回active的区间可能与刚移出的区间共用同一个寄存器
+    private void updateInactive(LiveInterval interval){
+        int position = interval.getStart();
+        for(Iterator<LiveInterval> it = active.iterator(); it.hasNext(); ){
+            LiveInterval other = it.next();
+            if(!other.covers(position)){
+                it.remove();
+                inactive.add(other);
+                release(other.getReg());
+            }
+        }
+        blockedRegs.clear();
+        for(Iterator<LiveInterval> it = inactive.iterator(); it.hasNext(); ){
+            LiveInterval other = it.next();
+            if(other.getEnd() < position){
+                it.remove();
+            }else if(other.covers(position)){
+                it.remove();
+                active.add(other);
+                hold(other.getReg());
+            }else if(other.intersects(interval, false)){
+                blockedRegs.set(other.getReg());
+            }
+        }
+    }
+
+    private boolean canUse(LiveInterval interval, int reg){
+        return !interval.isCallCrossing() || calleeSaved[reg];
+    }
+
+    private void buildExpireIndex(List<LiveInterval> sorted){
+        int maxEnd = -1;
+        for(LiveInterval interval : sorted){
+            maxEnd = Math.max(maxEnd, interval.getEnd());
+        }
+        expireHead = new int[maxEnd + 1];
+        expireNext = new int[sorted.size()];
+        Arrays.fill(expireHead, -1);
+        for(int i = 0; i < sorted.size(); i++){
+            int end = sorted.get(i).getEnd();
+            expireNext[i] = expireHead[end];
+            expireHead[end] = i;
+        }
+        expiredUpTo = 0;
+    }
+
+    //回收所有终点小于position的区间，寄存器还给freeRegs。inactive中的区间留给updateInactive处理
+    private void expireOldIntervals(List<LiveInterval> sorted, int position){
+        for(; expiredUpTo < position && expiredUpTo < expireHead.length; expiredUpTo++){
+            for(int i = expireHead[expiredUpTo]; i >= 0; i = expireNext[i]){
+                LiveInterval interval = sorted.get(i);
+                if(!interval.isSpilled() && active.remove(interval)){
+                    release(interval.getReg());
+                }
+            }
+        }
+    }
+
+    //从终点最远的区间开始，找第一个寄存器能给当前区间用的，而且这个寄存器没有被inactive中相交的区间占着，也没有和别的区间共用
+    private void spillAtInterval(LiveInterval interval){
+        LiveInterval spill = null;
+        for(Iterator<LiveInterval> it = active.descendingIterator(); it.hasNext(); ){
+            LiveInterval candidate = it.next();
+            int r = candidate.getReg();
+            if(canUse(interval, r) && !blockedRegs.get(r) && holders[r] == 1){
+                spill = candidate;
+                break;
+            }
+        }
+        if(spill != null && spill.getEnd() > interval.getEnd()){
+            //抢占终点最远的区间的寄存器，被抢占者整体放到栈上
+            interval.setReg(spill.getReg());
+            spill.setReg(-1);
+            spill.setSpilled(true);
+            active.remove(spill);
+            active.add(interval);
+        }else{
+            interval.setSpilled(true);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+//活跃区间，由若干段互不相交的闭区间[from, to]组成，段与段之间是空洞，单位是函数内指令的线性编号
+//start、end为第一段的起点和最后一段的终点
+public class LiveInterval {
+    //对应的值编号
+    private final int value;
+    private int start;
+    private int end;
+    //各段按起点从小到大排列，ranges[2k]、ranges[2k+1]为第k段的起点、终点
+    private int[] ranges = new int[4];
+    private int rangeNum;
+    //分配结果：寄存器下标（对应allRegs），溢出时为-1。溢出的区间由FrameLayout分配栈槽
+    private int reg = -1;
+    private boolean spilled;
+    private int stackSlot = -1;
+    //溢出代价：每次定值、使用按所在循环深度加权后累加
+    private double spillCost;
+    //区间内有函数调用，只能放在被调用者保存的寄存器里
+    private boolean callCrossing;
+    //值可以用li重新算出来，溢出后不占栈槽
+    private boolean rematerializable;
+
+    public LiveInterval(int value){
+        this.value = value;
+    }
+
+    public LiveInterval(int value, int start){
+        this(value);
+        addRange(start, start);
+        finishRanges();
+    }
+
+    public int getValue(){
+        return value;
+    }
+
+    public int getStart(){
+        return start;
+    }
+
+    public int getEnd(){
+        return end;
+    }
+
+    public int getRangeNum(){
+        return rangeNum;
+    }
+
+    public int getRangeFrom(int k){
+        return ranges[2 * k];
+    }
+
+    public int getRangeTo(int k){
+        return ranges[2 * k + 1];
+    }
+
+    //活跃分析从后往前构造区间，新加的段不晚于之前加的所有段，与最前一段相邻或重叠时直接合并
+    //构造期间段按加入顺序存放（从后往前），finishRanges之后才按起点排列
+    public void addRange(int from, int to){
+        if(rangeNum > 0){
+            int last = 2 * (rangeNum - 1);
+            if(ranges[last] <= to + 1){
+                ranges[last] = Math.min(ranges[last], from);
+                ranges[last + 1] = Math.max(ranges[last + 1], to);
+                return;
+            }
+        }
+        if(2 * rangeNum == ranges.length){
+            ranges = Arrays.copyOf(ranges, ranges.length * 2);
+        }
+        ranges[2 * rangeNum] = from;
+        ranges[2 * rangeNum + 1] = to;
+        rangeNum++;
+    }
+
+    //在pos处定值：截断覆盖pos的最前一段；值在定值之后没有使用时只占pos一个位置
+    public void setFrom(int pos){
+        if(rangeNum > 0){
+            int last = 2 * (rangeNum - 1);
+            if(ranges[last] <= pos && pos <= ranges[last + 1]){
+                ranges[last] = pos;
+                return;
+            }
+        }
+        addRange(pos, pos);
+    }
+
+    //构造结束，把段翻转成按起点从小到大排列
+    public void finishRanges(){
+        for(int i = 0, j = rangeNum - 1; i < j; i++, j--){
+            int from = ranges[2 * i], to = ranges[2 * i + 1];
+            ranges[2 * i] = ranges[2 * j];
+            ranges[2 * i + 1] = ranges[2 * j + 1];
+            ranges[2 * j] = from;
+            ranges[2 * j + 1] = to;
+        }
+        start = ranges[0];
+        end = ranges[2 * rangeNum - 1];
+    }
+
+    public boolean covers(int pos){
+        for(int k = 0; k < rangeNum; k++){
+            if(pos < ranges[2 * k]) return false;
+            if(pos <= ranges[2 * k + 1]) return true;
+        }
+        return false;
+    }
+
+    //在pos前后都活跃：pos严格落在某一段内部，或者pos是块首、从前驱流入的值的段恰好从pos开始。在pos处定值的不算
+    public boolean isLiveAcross(int pos){
+        for(int k = 0; k < rangeNum; k++){
+            if(pos < ranges[2 * k] || pos == value) return false;
+            if(pos < ranges[2 * k + 1]) return true;
+        }
+        return false;
+    }
+
+    //两个区间是否有公共位置。allowTouch时，一段恰好在另一段开始的位置结束不算冲突，用于mv的两端
+    public boolean intersects(LiveInterval other, boolean allowTouch){
+        int i = 0, j = 0;
+        while(i < rangeNum && j < other.rangeNum){
+            int from1 = ranges[2 * i], to1 = ranges[2 * i + 1];
+            int from2 = other.ranges[2 * j], to2 = other.ranges[2 * j + 1];
+            int lo = Math.max(from1, from2), hi = Math.min(to1, to2);
+            if(lo <= hi){
+                boolean touch = lo == hi && ((to1 == lo && from2 == lo) || (to2 == lo && from1 == lo));
+                if(!allowTouch || !touch) return true;
+            }
+            if(to1 < to2) i++; else j++;
+        }
+        return false;
+    }
+
+    public int getReg(){
+        return reg;
+    }
+
+    public void setReg(int reg){
+        this.reg = reg;
+    }
+
+    public int getStackSlot(){
+        return stackSlot;
+    }
+
+    public void setStackSlot(int stackSlot){
+        this.stackSlot = stackSlot;
+    }
+
+    //可以重新计算的值溢出后没有sw，每次使用的li与lw相当，代价按一半计
+    public double getSpillCost(){
+        return rematerializable ? spillCost / 2 : spillCost;
+    }
+
+    public void addSpillCost(double cost){
+        this.spillCost += cost;
+    }
+
+    public boolean isCallCrossing(){
+        return callCrossing;
+    }
+
+    public void setCallCrossing(boolean callCrossing){
+        this.callCrossing = callCrossing;
+    }
+
+    public boolean isRematerializable(){
+        return rematerializable;
+    }
+
+    public void setRematerializable(boolean rematerializable){
+        this.rematerializable = rematerializable;
+    }
+
+    public boolean isSpilled(){
+        return spilled;
+    }
+
+    public void setSpilled(boolean spilled){
+        this.spilled = spilled;
+        this.stackSlot = -1;
+    }
+}
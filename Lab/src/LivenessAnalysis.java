@@ -0,0 +1,235 @@
+import java.util.Arrays;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//基于CFG的活跃变量分析：在基本块上迭代求live-in/live-out（按值编号的位向量），再据此构造带空洞的活跃区间
+//位置即值编号：参数占0..argNum-1，指令按基本块顺序依次编号
+//  局部变量（alloca）直接放在寄存器里，store是对它重新定值，load是对它的使用
+//  phi的操作数在对应前驱块的终结指令处使用，phi在所在块开头定值，可以与来源共用位置（赋值按并行赋值生成）
+//  流向phi所在块的边已由EdgeSplitter拆开，前驱都只有这一个后继
+//  折叠进使用者的icmp等在树根处生成，它们的操作数也在树根处使用，自身不占区间
+//  栈上数组和常量地址在使用处重新算出，不占区间
+public class LivenessAnalysis {
+    private final IRFunction func;
+    private final InstructionSelector selector;
+    private final int words;
+    //按基本块下标索引的位向量
+    private final long[][] use;
+    private final long[][] def;
+    //沿边b->succ被succ中的phi使用的值，并入b的live-out。后继没有phi的块为null
+    private final long[][] phiUse;
+    private final long[][] liveIn;
+    private final long[][] liveOut;
+    private final LiveInterval[] intervals;
+    private int iterations;
+
+    public LivenessAnalysis(IRFunction func, InstructionSelector selector, double[] blockWeight){
+        this.func = func;
+        this.selector = selector;
+        this.words = (func.valueNum + 63) >>> 6;
+        int n = func.blockNum;
+        use = new long[n][words];
+        def = new long[n][words];
+        phiUse = new long[n][];
+        liveIn = new long[n][words];
+        liveOut = new long[n][words];
+        intervals = new LiveInterval[func.valueNum];
+        computeLocalSets();
+        solve();
+        buildIntervals(blockWeight);
+    }
+
+    //按值编号索引，没有结果或被折叠的指令为null
+    public LiveInterval[] getIntervals(){
+        return intervals;
+    }
+
+    //数据流方程迭代到不动点所用的轮数
+    public int getIterations(){
+        return iterations;
+    }
+
+    //第k个操作数是不是对值的使用。phi的操作数单独处理，store写入的局部变量是定值
+    private boolean isUse(int inst, int k){
+        if(selector.isDead(inst)) return false;
+        int kind = func.getOperandKind(inst, k);
+        if(kind == IRFunction.ARGUMENT) return true;
+        if(kind != IRFunction.VALUE) return false;
+        int value = func.getOperandValue(inst, k);
+        if(selector.isFolded(value) || func.isConstantAddress(value)) return false;
+        return !(k == 1 && isLocalStore(inst));
+    }
+
+    private boolean isLocalStore(int inst){
+        return func.opcode[inst] == LLVMStore && func.getOperandKind(inst, 1) == IRFunction.VALUE
+                && func.isLocalVariable(func.getOperandValue(inst, 1));
+    }
+
+    private boolean definesSelf(int inst){
+        return func.hasResult[inst] && !selector.isFolded(inst) && !selector.isDead(inst) && !func.isConstantAddress(inst);
+    }
+
+    private void computeLocalSets(){
+        for(int b = 0; b < func.blockNum; b++){
+            long[] u = use[b], d = def[b];
+            for(int inst = func.blockStart[b]; inst <= func.getLastInstruction(b); inst++){
+                if(func.opcode[inst] == LLVMPHI){
+                    set(d, inst);
+                    for(int k = 0; k + 1 < func.getOperandNum(inst); k += 2){
+                        int kind = func.getOperandKind(inst, k);
+                        if(kind != IRFunction.VALUE && kind != IRFunction.ARGUMENT) continue;
+                        int pred = func.getOperandValue(inst, k + 1);
+                        if(phiUse[pred] == null) phiUse[pred] = new long[words];
+                        set(phiUse[pred], func.getOperandValue(inst, k));
+                    }
+                    continue;
+                }
+                for(int k = 0; k < func.getOperandNum(inst); k++){
+                    if(!isUse(inst, k)) continue;
+                    int value = func.getOperandValue(inst, k);
+                    if(!get(d, value)) set(u, value);
+                }
+                if(definesSelf(inst)) set(d, inst);
+                if(isLocalStore(inst)) set(d, func.getOperandValue(inst, 1));
+            }
+        }
+    }
+
+    //逆向问题按后序迭代：live-out(b) = ∪(live-in(s) ∪ phiUse(b))，live-in(b) = use(b) ∪ (live-out(b) - def(b))
+    private void solve(){
+        int[] order = postOrder();
+        long[] out = new long[words];
+        boolean changed = true;
+        iterations = 0;
+        while(changed){
+            changed = false;
+            iterations++;
+            for(int b : order){
+                if(phiUse[b] != null){
+                    System.arraycopy(phiUse[b], 0, out, 0, words);
+                }else{
+                    Arrays.fill(out, 0);
+                }
+                for(int succ : func.successors[b]){
+                    long[] in = liveIn[succ];
+                    for(int w = 0; w < words; w++){
+                        out[w] |= in[w];
+                    }
+                }
+                long[] oldOut = liveOut[b], in = liveIn[b], u = use[b], d = def[b];
+                for(int w = 0; w < words; w++){
+                    if(out[w] != oldOut[w]){
+                        oldOut[w] = out[w];
+                        changed = true;
+                    }
+                    in[w] = u[w] | (out[w] & ~d[w]);
+                }
+            }
+        }
+    }
+
+    //从入口块开始的非递归DFS后序，不可达的块排在最后
+    private int[] postOrder(){
+        int n = func.blockNum;
+        int[] order = new int[n];
+        int size = 0;
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n];
+        int[] nextSucc = new int[n];
+        for(int root = 0; root < n; root++){
+            if(visited[root]) continue;
+            int top = 0;
+            stack[top++] = root;
+            visited[root] = true;
+            while(top > 0){
+                int b = stack[top - 1];
+                if(nextSucc[b] < func.successors[b].length){
+                    int succ = func.successors[b][nextSucc[b]++];
+                    if(!visited[succ]){
+                        visited[succ] = true;
+                        stack[top++] = succ;
+                    }
+                }else{
+                    order[size++] = b;
+                    top--;
+                }
+            }
+        }
+        return order;
+    }
+
+    //按基本块逆序、块内指令逆序构造区间：live-out的值先覆盖整个块，遇到定值截断，遇到使用再从块首延伸到使用处
+    private void buildIntervals(double[] blockWeight){
+        for(int b = func.blockNum - 1; b >= 0; b--){
+            int from = func.blockStart[b], to = func.blockEnd[b] - 1;
+            if(from > to) continue;
+            double weight = blockWeight[b];
+            long[] out = liveOut[b];
+            for(int w = 0; w < words; w++){
+                for(long bits = out[w]; bits != 0; bits &= bits - 1){
+                    getInterval((w << 6) + Long.numberOfTrailingZeros(bits)).addRange(from, to);
+                }
+            }
+            //后继块的phi在本块末尾赋值，两侧都计入溢出代价
+            int term = func.getLastInstruction(b);
+            for(int succ : func.successors[b]){
+                for(int phi = func.blockStart[succ]; phi < func.blockEnd[succ] && func.opcode[phi] == LLVMPHI; phi++){
+                    for(int k = 0; k + 1 < func.getOperandNum(phi); k += 2){
+                        if(func.getOperandValue(phi, k + 1) != b) continue;
+                        getInterval(phi).addSpillCost(weight);
+                        int kind = func.getOperandKind(phi, k);
+                        if(kind == IRFunction.VALUE || kind == IRFunction.ARGUMENT){
+                            getInterval(func.getOperandValue(phi, k)).addSpillCost(weight);
+                        }
+                    }
+                }
+            }
+            for(int inst = term; inst >= from; inst--){
+                if(func.opcode[inst] == LLVMPHI){
+                    getInterval(inst).setFrom(from);
+                    continue;
+                }
+                if(definesSelf(inst)){
+                    getInterval(inst).setFrom(inst);
+                    getInterval(inst).addSpillCost(weight);
+                }
+                if(isLocalStore(inst)){
+                    LiveInterval var = getInterval(func.getOperandValue(inst, 1));
+                    var.setFrom(inst);
+                    var.addSpillCost(weight);
+                }
+                int line = selector.getRoot(inst);
+                for(int k = 0; k < func.getOperandNum(inst); k++){
+                    if(!isUse(inst, k)) continue;
+                    LiveInterval interval = getInterval(func.getOperandValue(inst, k));
+                    interval.addRange(from, line);
+                    interval.addSpillCost(weight);
+                }
+            }
+        }
+        //参数在函数入口同时传入，全都从0开始，保证彼此分到不同的位置
+        for(int i = 0; i < func.argNum; i++){
+            LiveInterval interval = getInterval(i);
+            interval.addRange(0, func.argNum - 1);
+            interval.addSpillCost(1);
+        }
+        for(LiveInterval interval : intervals){
+            if(interval != null) interval.finishRanges();
+        }
+    }
+
+    private LiveInterval getInterval(int value){
+        if(intervals[value] == null){
+            intervals[value] = new LiveInterval(value);
+        }
+        return intervals[value];
+    }
+
+    private static boolean get(long[] bits, int i){
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void set(long[] bits, int i){
+        bits[i >>> 6] |= 1L << i;
+    }
+}
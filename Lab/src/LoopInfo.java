@@ -0,0 +1,80 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+//循环信息：找出CFG中的回边，求出每条回边对应的自然循环，得到每个基本块的循环嵌套深度
+//基本块用0..n-1编号，0号为入口块
+public class LoopInfo {
+    private final int[] depth;
+
+    public LoopInfo(int[][] successors){
+        int n = successors.length;
+        depth = new int[n];
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for(int i = 0; i < n; i++){
+            predecessors.add(new ArrayList<>());
+        }
+        for(int i = 0; i < n; i++){
+            for(int succ : successors[i]){
+                predecessors.get(succ).add(i);
+            }
+        }
+        //非递归DFS，onStack的块位于当前搜索路径上，指向它们的边就是回边
+        int[] state = new int[n];//0未访问，1在栈上，2已完成
+        int[] nextSucc = new int[n];
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        List<int[]> backEdges = new ArrayList<>();
+        if(n > 0){
+            stack.push(0);
+            state[0] = 1;
+        }
+        while(!stack.isEmpty()){
+            int b = stack.peek();
+            if(nextSucc[b] < successors[b].length){
+                int succ = successors[b][nextSucc[b]++];
+                if(state[succ] == 0){
+                    state[succ] = 1;
+                    stack.push(succ);
+                }else if(state[succ] == 1){
+                    backEdges.add(new int[]{b, succ});
+                }
+            }else{
+                state[b] = 2;
+                stack.pop();
+            }
+        }
+        //同一个循环头的多条回边合并成一个循环，避免深度被重复计算
+        boolean[][] inLoop = new boolean[n][];
+        for(int[] edge : backEdges){
+            int header = edge[1];
+            if(inLoop[header] == null){
+                inLoop[header] = new boolean[n];
+                inLoop[header][header] = true;
+            }
+            boolean[] body = inLoop[header];
+            ArrayDeque<Integer> work = new ArrayDeque<>();
+            if(!body[edge[0]]){
+                body[edge[0]] = true;
+                work.push(edge[0]);
+            }
+            while(!work.isEmpty()){
+                for(int pred : predecessors.get(work.pop())){
+                    if(!body[pred]){
+                        body[pred] = true;
+                        work.push(pred);
+                    }
+                }
+            }
+        }
+        for(boolean[] body : inLoop){
+            if(body == null) continue;
+            for(int i = 0; i < n; i++){
+                if(body[i]) depth[i]++;
+            }
+        }
+    }
+
+    public int getDepth(int block){
+        return depth[block];
+    }
+}
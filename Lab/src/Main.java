@@ -3,6 +3,7 @@ import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 //把前面实验的输出注释掉，避免影响后续实验。最后完工后可以把这些输出全部取消注释
 public  class Main {
@@ -64,7 +65,61 @@ public  class Main {
             System.err.println("input path is required");
         }
         String RiscVPath = args[1];
-        MyRISCVGenerator riscvGenerator = new MyRISCVGenerator(llvmIRVisitor.module, args[1]);
+        //可选参数：-regalloc=graph使用图着色寄存器分配（默认线性扫描），-stats输出后端统计信息，-parallel并行生成各个函数，-peephole=off关闭窥孔优化
+        //-schedule=off关闭指令调度，-latency=lw=2,mul=4修改调度用的指令延迟
+        //-O0/-O1/-O2在生成汇编之前运行LLVM的优化pass（默认-O0），-passes=mem2reg,gvn指定pass序列，-stats时输出每个pass的用时
+        //-inline-threshold=40设置内联的大小阈值（-O1起内联）
+        //-emit-llvm=main.ll把优化之后、送进后端的LLVM IR写到文件，默认不写
+        boolean useGraphColoring = false;
+        boolean printStats = false;
+        boolean parallel = false;
+        boolean usePeephole = true;
+        LatencyModel latencyModel = LatencyModel.defaultModel();
+        PassPipeline pipeline = PassPipeline.forLevel(0);
+        int inlineThreshold = -1;
+        String irPath = null;
+        for(int i = 2; i < args.length; i++){
+            if(args[i].equals("-regalloc=graph")){
+                useGraphColoring = true;
+            }else if(args[i].equals("-regalloc=linear")){
+                useGraphColoring = false;
+            }else if(args[i].equals("-stats")){
+                printStats = true;
+            }else if(args[i].equals("-parallel")){
+                parallel = true;
+            }else if(args[i].equals("-peephole=off")){
+                usePeephole = false;
+            }else if(args[i].equals("-peephole=on")){
+                usePeephole = true;
+            }else if(args[i].equals("-schedule=off")){
+                latencyModel = null;
+            }else if(args[i].startsWith("-latency=")){
+                latencyModel = LatencyModel.parse(args[i].substring("-latency=".length()));
+            }else if(args[i].matches("-O[0-2]")){
+                pipeline = PassPipeline.forLevel(args[i].charAt(2) - '0');
+            }else if(args[i].startsWith("-passes=")){
+                pipeline = PassPipeline.parse(args[i].substring("-passes=".length()));
+            }else if(args[i].startsWith("-inline-threshold=")){
+                inlineThreshold = Integer.parseInt(args[i].substring("-inline-threshold=".length()));
+            }else if(args[i].startsWith("-emit-llvm=")){
+                irPath = args[i].substring("-emit-llvm=".length());
+            }
+        }
+        pipeline.setPrintTimes(printStats);
+        if(inlineThreshold >= 0){
+            pipeline.setInlineThreshold(inlineThreshold);
+        }
+        pipeline.run(llvmIRVisitor.module);
+        if(irPath != null){
+            llvmIRVisitor.printModule(irPath);
+        }
+        MyRISCVGenerator riscvGenerator = new MyRISCVGenerator(llvmIRVisitor.module, args[1], useGraphColoring);
+        riscvGenerator.setPrintStats(printStats);
+        riscvGenerator.setPeephole(usePeephole);
+        riscvGenerator.setLatencyModel(latencyModel);
+        if(parallel){
+            riscvGenerator.setParallel(ForkJoinPool.commonPool());
+        }
         riscvGenerator.generateRiscVCode();
 
     }
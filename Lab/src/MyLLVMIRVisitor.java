@@ -1,3 +1,4 @@
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.RuleNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
@@ -41,18 +42,28 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     private HashMap<String, LLVMValueRef> llvmSymbolTable;
 
+    //标量局部变量和参数不放在内存里，由ssa直接构造SSA，这里记录名字对应的变量编号
+    //同名的数组、常量会覆盖它，反之亦然
+    private HashMap<String, Integer> localVariables;
+
+    private SSABuilder ssa;
+
+    //常量表达式在生成IR之前求值，按语法树结点缓存
+    private final ConstantFolder constants = new ConstantFolder(this::constLValValue);
+
     private final HashMap<String, LLVMTypeRef> llvmFuncTypeTable;
 
     private boolean isGlobal = true;
 
     private LLVMValueRef currentFunction;
 
-    private Stack<LLVMBasicBlockRef> trueBlock = new Stack<>();
-
     private Stack<LLVMBasicBlockRef> whileCondBlock = new Stack<>();
 
     private Stack<LLVMBasicBlockRef> whileNextBlock = new Stack<>();
 
+    //不超过这么多元素的局部数组逐个store清零，更大的用循环
+    private static final int UNROLLED_ZERO_FILL = 16;
+
     public MyLLVMIRVisitor(){
         //初始化LLVM
         LLVMInitializeCore(LLVMGetGlobalPassRegistry());
@@ -62,6 +73,9 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         LLVMInitializeNativeTarget();
         //创建module
         module = LLVMModuleCreateWithName("module");
+        //目标是RV32，指针占4字节。优化pass按data layout决定GEP下标的宽度，不设置时会把下标扩展成i64
+        LLVMSetTarget(module, "riscv32-unknown-elf");
+        LLVMSetDataLayout(module, "e-m:e-p:32:32-i64:64-n32-S128");
         //初始化IRBuilder，后续将使用这个builder去生成LLVM IR
         builder = LLVMCreateBuilder();
         //类型重命名，方便以后使用
@@ -73,70 +87,333 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         llvmFuncTypeTable = new HashMap<>();
     }
 
-    //在这里处理输出
-    @Override
-    public LLVMValueRef visitProgram(SysYParser.ProgramContext ctx) {
-        super.visitProgram(ctx);
+    //把module写成.ll文件。只在命令行指定-emit-llvm时调用，编译时不再往当前目录里写main.ll
+    public void printModule(String path){
         BytePointer error = new BytePointer();
-        if (LLVMPrintModuleToFile(module, "main.ll", error) != 0) {
+        if (LLVMPrintModuleToFile(module, path, error) != 0) {
+            System.err.println("cannot write " + path + ": " + error.getString());
             LLVMDisposeMessage(error);
         }
-        return null;
     }
 
     @Override
     public LLVMValueRef visitConstDef(SysYParser.ConstDefContext ctx) {
-        if(isGlobal){
-            LLVMValueRef pointer = LLVMAddGlobal(module, i32Type, ctx.IDENT().getText());
+        String name = ctx.IDENT().getText();
+        int[] dims = getDims(ctx.constExp());
+        if(dims.length == 0){
+            //标量常量在编译时求出，局部常量直接以常数放入符号表，使用处不再load
             LLVMValueRef initVal = visitExp(ctx.constInitVal().constExp().exp());
-            LLVMSetInitializer(pointer, initVal);
+            if(isGlobal){
+                LLVMValueRef pointer = LLVMAddGlobal(module, i32Type, name);
+                LLVMSetInitializer(pointer, initVal);
+                LLVMSetGlobalConstant(pointer, 1);
+            }else{
+                defineLocal(name, initVal);
+            }
         }else{
-            //申请一块能存放int型的内存
-            LLVMValueRef pointer = LLVMBuildAlloca(builder, i32Type, ctx.IDENT().getText());
-            //将数值存入该内存
-            LLVMValueRef initVal = visitExp(ctx.constInitVal().constExp().exp());
-            LLVMBuildStore(builder, initVal, pointer);
-            //同时将该内存对应的LLVMValueRef放入符号表，以备后续使用
-            llvmSymbolTable.put(ctx.IDENT().getText(), pointer);
+            //常量数组不会被修改，局部的也放到全局数据区，省去每次进入函数时的初始化
+            String globalName = isGlobal ? name : LLVMGetValueName(currentFunction).getString() + "." + name;
+            LLVMValueRef pointer = LLVMAddGlobal(module, arrayType(dims, 0), globalName);
+            LLVMSetInitializer(pointer, buildConstArray(flattenArrayInit(ctx.constInitVal(), dims), dims, 0, 0));
+            LLVMSetGlobalConstant(pointer, 1);
+            if(!isGlobal) defineLocal(name, pointer);
         }
         return null;
     }
 
     @Override
     public LLVMValueRef visitVarDef(SysYParser.VarDefContext ctx) {
+        String name = ctx.IDENT().getText();
+        int[] dims = getDims(ctx.constExp());
+        LLVMTypeRef type = arrayType(dims, 0);
         if(isGlobal){
-            LLVMValueRef pointer = LLVMAddGlobal(module, i32Type, ctx.IDENT().getText());
-            if(ctx.ASSIGN() != null){
-                LLVMValueRef initVal = visitExp(ctx.initVal().exp());
-                LLVMSetInitializer(pointer, initVal);
+            LLVMValueRef pointer = LLVMAddGlobal(module, type, name);
+            if(ctx.ASSIGN() == null){
+                LLVMSetInitializer(pointer, LLVMConstNull(type));
+            }else if(dims.length == 0){
+                LLVMSetInitializer(pointer, visitExp(ctx.initVal().exp()));
             }else{
-                LLVMSetInitializer(pointer, zero);
+                LLVMSetInitializer(pointer, buildConstArray(flattenArrayInit(ctx.initVal(), dims), dims, 0, 0));
             }
+        }else if(dims.length == 0){
+            //没有初值的局部变量按0处理
+            LLVMValueRef initVal = ctx.ASSIGN() != null ? visitExp(ctx.initVal().exp()) : zero;
+            int variable = declareVariable(name, i32Type);
+            ssa.writeVariable(variable, LLVMGetInsertBlock(builder), initVal);
         }else{
-            LLVMValueRef pointer = LLVMBuildAlloca(builder, i32Type, ctx.IDENT().getText());
+            LLVMValueRef pointer = LLVMBuildAlloca(builder, type, name);
             if(ctx.ASSIGN() != null){
-                LLVMValueRef initVal = visitExp(ctx.initVal().exp());
-                LLVMBuildStore(builder, initVal, pointer);
-            }else{
-                LLVMBuildStore(builder, zero, pointer);
+                initLocalArray(pointer, flattenArrayInit(ctx.initVal(), dims));
             }
-            llvmSymbolTable.put(ctx.IDENT().getText(), pointer);
+            defineLocal(name, pointer);
         }
         return null;
     }
 
+    //数组各维的长度，标量为空数组
+    private int[] getDims(List<SysYParser.ConstExpContext> constExps){
+        int[] dims = new int[constExps.size()];
+        for(int i = 0; i < dims.length; i++){
+            dims[i] = constValue(constExps.get(i).exp());
+        }
+        return dims;
+    }
+
+    //数组维度等必须在编译时求出的常量表达式
+    private int constValue(SysYParser.ExpContext exp){
+        Integer value = constants.evaluate(exp);
+        if(value == null){
+            throw new IllegalArgumentException("not a constant expression: " + exp.getText());
+        }
+        return value;
+    }
+
+    //常量标量，以及常量数组中下标全是常数的元素，在编译时取值，其余返回null
+    private Integer constLValValue(SysYParser.LValContext ctx){
+        String name = ctx.IDENT().getText();
+        if(localVariables != null && localVariables.containsKey(name)) return null;
+        LLVMValueRef value = lookupSymbol(name);
+        if(value == null) return null;
+        if(LLVMIsAGlobalVariable(value) != null){
+            if(LLVMIsGlobalConstant(value) == 0) return null;
+            value = LLVMGetInitializer(value);
+        }
+        for(SysYParser.ExpContext exp : ctx.exp()){
+            Integer index = constants.evaluate(exp);
+            LLVMTypeRef type = LLVMTypeOf(value);
+            if(index == null || LLVMGetTypeKind(type) != LLVMArrayTypeKind) return null;
+            if(index < 0 || index >= LLVMGetArrayLength(type)) return null;
+            if(LLVMIsAConstantAggregateZero(value) != null){
+                value = LLVMConstNull(LLVMGetElementType(type));
+            }else if(LLVMIsAConstantDataSequential(value) != null){
+                value = LLVMGetElementAsConstant(value, index);
+            }else{
+                value = LLVMGetOperand(value, index);
+            }
+        }
+        if(LLVMIsAConstantInt(value) == null) return null;
+        return (int) LLVMConstIntGetSExtValue(value);
+    }
+
+    //dims[level..]对应的类型，level到头时为i32
+    private LLVMTypeRef arrayType(int[] dims, int level){
+        LLVMTypeRef type = i32Type;
+        for(int i = dims.length - 1; i >= level; i--){
+            type = LLVMArrayType(type, dims[i]);
+        }
+        return type;
+    }
+
+    //dims[level..]共有多少个元素
+    private static int elementNum(int[] dims, int level){
+        int num = 1;
+        for(int i = level; i < dims.length; i++){
+            num *= dims[i];
+        }
+        return num;
+    }
+
+    //把花括号初值按行优先展开成一维，没有给出的元素为null
+    private LLVMValueRef[] flattenArrayInit(ParserRuleContext init, int[] dims){
+        LLVMValueRef[] flat = new LLVMValueRef[elementNum(dims, 0)];
+        flattenInit(init, dims, 0, 0, flat);
+        return flat;
+    }
+
+    //init初始化第level维起的一个子数组，它从flat[pos]开始
+    //遇到内层花括号时，找第一个当前位置对齐到其大小的维度，这个花括号初始化该维度的一个元素
+    private void flattenInit(ParserRuleContext init, int[] dims, int level, int pos, LLVMValueRef[] flat){
+        int end = pos + elementNum(dims, level);
+        int cur = pos;
+        for(ParserRuleContext item : initItems(init)){
+            if(cur >= end) break;
+            SysYParser.ExpContext exp = initExp(item);
+            if(exp != null){
+                flat[cur++] = visitExp(exp);
+            }else{
+                int k = Math.min(level + 1, dims.length);
+                while(k < dims.length && (cur - pos) % elementNum(dims, k) != 0) k++;
+                flattenInit(item, dims, k, cur, flat);
+                cur += elementNum(dims, k);
+            }
+        }
+    }
+
+    private static List<? extends ParserRuleContext> initItems(ParserRuleContext init){
+        if(init instanceof SysYParser.ConstInitValContext){
+            return ((SysYParser.ConstInitValContext) init).constInitVal();
+        }
+        return ((SysYParser.InitValContext) init).initVal();
+    }
+
+    private static SysYParser.ExpContext initExp(ParserRuleContext init){
+        if(init instanceof SysYParser.ConstInitValContext){
+            SysYParser.ConstExpContext constExp = ((SysYParser.ConstInitValContext) init).constExp();
+            return constExp == null ? null : constExp.exp();
+        }
+        return ((SysYParser.InitValContext) init).exp();
+    }
+
+    //用展开后的初值构造全局数组的初始值，全为0的子数组用zeroinitializer，汇编里只占一条.zero
+    private LLVMValueRef buildConstArray(LLVMValueRef[] flat, int[] dims, int level, int pos){
+        if(level == dims.length){
+            return flat[pos] == null ? zero : flat[pos];
+        }
+        int num = elementNum(dims, level);
+        boolean allZero = true;
+        for(int i = pos; i < pos + num && allZero; i++){
+            allZero = isZero(flat[i]);
+        }
+        if(allZero) return LLVMConstNull(arrayType(dims, level));
+        int sub = num / dims[level];
+        LLVMValueRef[] elements = new LLVMValueRef[dims[level]];
+        for(int i = 0; i < dims[level]; i++){
+            elements[i] = buildConstArray(flat, dims, level + 1, pos + i * sub);
+        }
+        return LLVMConstArray(arrayType(dims, level + 1), new PointerPointer<>(elements), dims[level]);
+    }
+
+    private static boolean isZero(LLVMValueRef value){
+        return value == null || (LLVMIsAConstantInt(value) != null && LLVMConstIntGetSExtValue(value) == 0);
+    }
+
+    //局部数组的初值：先把没有非0初值的元素清零，再逐个store非0的元素
+    //元素较多时清零用一个循环完成，生成的代码量与数组大小无关
+    private void initLocalArray(LLVMValueRef array, LLVMValueRef[] flat){
+        LLVMValueRef first = array;
+        while(LLVMGetTypeKind(LLVMGetElementType(LLVMTypeOf(first))) == LLVMArrayTypeKind){
+            first = buildGEP(first, zero, zero);
+        }
+        int explicit = 0;
+        for(LLVMValueRef value : flat){
+            if(!isZero(value)) explicit++;
+        }
+        if(explicit < flat.length){
+            if(flat.length <= UNROLLED_ZERO_FILL){
+                for(int i = 0; i < flat.length; i++){
+                    if(isZero(flat[i])) LLVMBuildStore(builder, zero, buildGEP(first, LLVMConstInt(i32Type, i, 0)));
+                }
+            }else{
+                buildZeroFill(first, flat.length);
+            }
+        }
+        for(int i = 0; i < flat.length; i++){
+            if(!isZero(flat[i])) LLVMBuildStore(builder, flat[i], buildGEP(first, LLVMConstInt(i32Type, i, 0)));
+        }
+    }
+
+    //for(i = 0; i < num; i++) first[i] = 0;
+    private void buildZeroFill(LLVMValueRef first, int num){
+        int counter = ssa.newVariable("zeroIdx", i32Type);
+        ssa.writeVariable(counter, LLVMGetInsertBlock(builder), zero);
+        LLVMBasicBlockRef fillCond = LLVMAppendBasicBlock(currentFunction, "zeroCond");
+        LLVMBasicBlockRef fillBody = LLVMAppendBasicBlock(currentFunction, "zeroBody");
+        LLVMBasicBlockRef next = LLVMAppendBasicBlock(currentFunction, "entry");
+        buildBr(fillCond);
+        LLVMPositionBuilderAtEnd(builder, fillCond);
+        LLVMValueRef index = ssa.readVariable(counter, fillCond);
+        LLVMValueRef inRange = LLVMBuildICmp(builder, LLVMIntSLT, index, LLVMConstInt(i32Type, num, 0), "cond");
+        buildCondBr(inRange, fillBody, next);
+        ssa.sealBlock(fillBody);
+        LLVMPositionBuilderAtEnd(builder, fillBody);
+        LLVMBuildStore(builder, zero, buildGEP(first, index));
+        ssa.writeVariable(counter, fillBody, LLVMBuildAdd(builder, index, LLVMConstInt(i32Type, 1, 0), "tmp"));
+        buildBr(fillCond);
+        ssa.sealBlock(fillCond);
+        ssa.sealBlock(next);
+        LLVMPositionBuilderAtEnd(builder, next);
+    }
+
+    //生成跳转，同时把边告诉ssa
+    private void buildBr(LLVMBasicBlockRef target){
+        ssa.addBranch(LLVMGetInsertBlock(builder), target);
+        LLVMBuildBr(builder, target);
+    }
+
+    private void buildCondBr(LLVMValueRef cond, LLVMBasicBlockRef ifTrue, LLVMBasicBlockRef ifFalse){
+        ssa.addBranch(LLVMGetInsertBlock(builder), ifTrue, ifFalse);
+        LLVMBuildCondBr(builder, cond, ifTrue, ifFalse);
+    }
+
+    //局部的数组、常量放入符号表，遮住同名的标量变量
+    private void defineLocal(String name, LLVMValueRef symbol){
+        localVariables.remove(name);
+        llvmSymbolTable.put(name, symbol);
+    }
+
+    //新的标量局部变量，遮住同名的数组、常量
+    private int declareVariable(String name, LLVMTypeRef type){
+        int variable = ssa.newVariable(name, type);
+        llvmSymbolTable.remove(name);
+        localVariables.put(name, variable);
+        return variable;
+    }
+
+    private LLVMValueRef readLocal(String name){
+        return ssa.readVariable(localVariables.get(name), LLVMGetInsertBlock(builder));
+    }
+
+    private LLVMValueRef buildGEP(LLVMValueRef pointer, LLVMValueRef... indices){
+        LLVMTypeRef pointee = LLVMGetElementType(LLVMTypeOf(pointer));
+        return LLVMBuildGEP2(builder, pointee, pointer, new PointerPointer<>(indices), indices.length, "arrayIdx");
+    }
+
+    //按名字找变量：先找当前函数的局部变量，再找全局变量
+    private LLVMValueRef lookupSymbol(String name){
+        if(llvmSymbolTable != null && llvmSymbolTable.get(name) != null){
+            return llvmSymbolTable.get(name);
+        }
+        return LLVMGetNamedGlobal(module, name);
+    }
+
+    //左值的地址。数组每一维单独生成一条GEP，后端拿到的每条GEP最多只有一个不是常数的下标
+    private LLVMValueRef getLValPointer(SysYParser.LValContext ctx){
+        String name = ctx.IDENT().getText();
+        List<SysYParser.ExpContext> indices = ctx.exp();
+        LLVMValueRef pointer;
+        int i = 0;
+        if(localVariables != null && localVariables.containsKey(name)){
+            //数组形参的值就是指针，第一个下标直接在指针上偏移
+            pointer = readLocal(name);
+            if(!indices.isEmpty()){
+                pointer = buildGEP(pointer, visitExp(indices.get(0)));
+                i = 1;
+            }
+        }else{
+            pointer = lookupSymbol(name);
+        }
+        for(; i < indices.size(); i++){
+            pointer = buildGEP(pointer, zero, visitExp(indices.get(i)));
+        }
+        return pointer;
+    }
+
+    //数组形参退化为指向元素的指针，第一维的长度省略
+    private LLVMTypeRef paramType(SysYParser.FuncFParamContext param){
+        if(param.L_BRACKT().isEmpty()) return i32Type;
+        int[] dims = new int[param.exp().size()];
+        for(int i = 0; i < dims.length; i++){
+            dims[i] = constValue(param.exp(i));
+        }
+        return LLVMPointerType(arrayType(dims, 0), 0);
+    }
+
     // 访问到函数定义时为module添加function, 并为function添加basicBlock
     @Override
     public LLVMValueRef visitFuncDef(SysYParser.FuncDefContext ctx) {
         isGlobal = false;
         llvmSymbolTable = new HashMap<>();
+        localVariables = new HashMap<>();
+        ssa = new SSABuilder(builder);
         //生成返回值类型
         LLVMTypeRef returnType = (ctx.funcType().INT() == null ? voidType : i32Type);
         //生成函数参数类型
         int argumentCount = ctx.funcFParams() == null ? 0 : ctx.funcFParams().funcFParam().size();
         PointerPointer<Pointer> argumentTypes = new PointerPointer<>(argumentCount);
+        LLVMTypeRef[] paramTypes = new LLVMTypeRef[argumentCount];
         for(int i = 0; i < argumentCount; i++){
-            argumentTypes.put(i, i32Type);
+            paramTypes[i] = paramType(ctx.funcFParams().funcFParam(i));
+            argumentTypes.put(i, paramTypes[i]);
         }
         //生成函数类型。LLVMFunctionType的参数依次为：返回值类型，参数类型，参数个数，是否接受可变参数
         LLVMTypeRef ft = LLVMFunctionType(returnType, argumentTypes, argumentCount,  0);
@@ -146,11 +423,13 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         LLVMBasicBlockRef block1 = LLVMAppendBasicBlock(function, ctx.IDENT().getText()+"Entry");
         //选择要在哪个基本块后追加指令
         LLVMPositionBuilderAtEnd(builder, block1);
-        //将参数加入符号表，函数类型加入函数类型表，currentFunction指向当前的函数
+        ssa.sealBlock(block1);
+        //参数作为标量变量在入口块定值，函数类型加入函数类型表，currentFunction指向当前的函数
         for(int i = 0; i < argumentCount; i++){
-            LLVMValueRef pointer = LLVMBuildAlloca(builder, i32Type, ctx.funcFParams().funcFParam(i).IDENT().getText());
-            LLVMBuildStore(builder, LLVMGetParam(function, i), pointer);
-            llvmSymbolTable.put(ctx.funcFParams().funcFParam(i).IDENT().getText(), pointer);
+            String paramName = ctx.funcFParams().funcFParam(i).IDENT().getText();
+            LLVMValueRef param = LLVMGetParam(function, i);
+            LLVMSetValueName(param, paramName);
+            ssa.writeVariable(declareVariable(paramName, paramTypes[i]), block1, param);
         }
         llvmFuncTypeTable.put(ctx.IDENT().getText(), ft);
         currentFunction = function;
@@ -158,11 +437,15 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
         super.visitFuncDef(ctx);
         //hardtest3.sy：lli: out.ir:11:1: error: expected instruction opcode } ^
         if(ctx.funcType().VOID() != null){
+            ssa.addReturn(LLVMGetInsertBlock(builder));
             LLVMBuildRetVoid(builder);
         }
+        ssa.finish();
         //访问完成，符号表、当前函数重新设为null，回到global
         currentFunction = null;
         llvmSymbolTable = null;
+        localVariables = null;
+        ssa = null;
         isGlobal = true;
         return null;
     }
@@ -182,14 +465,15 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
             }else{
                 LLVMBuildRetVoid(builder);
             }
+            ssa.addReturn(LLVMGetInsertBlock(builder));
             return null;
         }else if(ctx.ASSIGN() != null){
             LLVMValueRef value = visitExp(ctx.exp());
-            String lValName = ctx.lVal().IDENT().getText();
-            if(llvmSymbolTable.get(lValName) != null){
-                LLVMBuildStore(builder, value, llvmSymbolTable.get(lValName));
+            String name = ctx.lVal().IDENT().getText();
+            if(ctx.lVal().exp().isEmpty() && localVariables.containsKey(name)){
+                ssa.writeVariable(localVariables.get(name), LLVMGetInsertBlock(builder), value);
             }else{
-                LLVMBuildStore(builder, value, LLVMGetNamedGlobal(module, lValName));
+                LLVMBuildStore(builder, value, getLValPointer(ctx.lVal()));
             }
             return null;
         }else if(!ctx.IF().isEmpty()){
@@ -202,10 +486,9 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
                 ifTrue = LLVMAppendBasicBlock(currentFunction, "true");
                 ifFalse = LLVMAppendBasicBlock(currentFunction, "false");
                 LLVMMoveBasicBlockAfter(next, LLVMGetLastBasicBlock(currentFunction));
-                trueBlock.push(ifTrue);
-                LLVMValueRef condTemp = visitCond(ctx.cond(i));
-                LLVMValueRef condAnsTemp = LLVMBuildICmp(builder, LLVMIntNE, zero, condTemp, "tmp");
-                LLVMBuildCondBr(builder, condAnsTemp, ifTrue, ifFalse);
+                buildCondJump(ctx.cond(i), ifTrue, ifFalse);
+                ssa.sealBlock(ifTrue);
+                ssa.sealBlock(ifFalse);
                 //True
                 LLVMPositionBuilderAtEnd(builder, ifTrue);
                 ParseTree trueTree = ctx.getChild(4+i*6);
@@ -214,10 +497,9 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
                 }else{
                     visitBlock((SysYParser.BlockContext) trueTree);
                 }
-                LLVMBuildBr(builder, next);
+                buildBr(next);
                 //False
                 LLVMPositionBuilderAtEnd(builder, ifFalse);
-                trueBlock.pop();
             }
             //处理else
             if(ctx.getChildCount() == n*6+1){
@@ -229,7 +511,8 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
                 }
             }
             //next
-            LLVMBuildBr(builder, next);
+            buildBr(next);
+            ssa.sealBlock(next);
             LLVMPositionBuilderAtEnd(builder, next);
             return null;
         }else if(ctx.WHILE() != null){
@@ -238,12 +521,10 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
             LLVMBasicBlockRef next = LLVMAppendBasicBlock(currentFunction, "entry");
             whileCondBlock.add(whileCond);
             whileNextBlock.add(next);
-            trueBlock.add(whileBody);
-            LLVMBuildBr(builder, whileCond);
+            buildBr(whileCond);
             LLVMPositionBuilderAtEnd(builder, whileCond);
-            LLVMValueRef condTemp = visitCond(ctx.cond(0));
-            LLVMValueRef condAnsTemp = LLVMBuildICmp(builder, LLVMIntNE, zero, condTemp, "tmp");
-            LLVMBuildCondBr(builder, condAnsTemp, whileBody, next);
+            buildCondJump(ctx.cond(0), whileBody, next);
+            ssa.sealBlock(whileBody);
             LLVMPositionBuilderAtEnd(builder, whileBody);
             ParseTree trueTree = ctx.getChild(4);
             if(getNodeType(trueTree).equals("stmt")){
@@ -251,22 +532,24 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
             }else{
                 visitBlock((SysYParser.BlockContext) trueTree);
             }
-            LLVMBuildBr(builder, whileCond);
+            buildBr(whileCond);
+            //循环体和其中的continue、break都生成完了，条件块和出口块的前驱已经确定
+            ssa.sealBlock(whileCond);
+            ssa.sealBlock(next);
             LLVMPositionBuilderAtEnd(builder, next);
             whileCondBlock.pop();
             whileNextBlock.pop();
-            trueBlock.pop();
             return null;
         }else if(ctx.BREAK() != null){
             if(!whileNextBlock.isEmpty()){
                 LLVMBasicBlockRef whileNext = whileNextBlock.peek();
-                LLVMBuildBr(builder, whileNext);
+                buildBr(whileNext);
             }
             return null;
         }else if(ctx.CONTINUE() != null){
             if(!whileCondBlock.isEmpty()){
                 LLVMBasicBlockRef whileCond = whileCondBlock.peek();
-                LLVMBuildBr(builder, whileCond);
+                buildBr(whileCond);
             }
             return null;
         }
@@ -275,34 +558,35 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
 
     @Override
     public LLVMValueRef visitExp(SysYParser.ExpContext ctx) {
-        if(ctx.number() != null){
-            String numberText = ctx.number().getText();
-            int number;
-            if(numberText.startsWith("0x") || numberText.startsWith("0X")){
-                number = Integer.parseInt(numberText.substring(2),16);
-            }else if(numberText.startsWith("0") && numberText.length()>1){
-                number = Integer.parseInt(numberText.substring(1),8);;
-            }else{
-                number = Integer.parseInt(numberText);
-            }
-            return LLVMConstInt(i32Type, number, 0);
-        }else if(ctx.lVal() != null){
+        //整棵子树是常量表达式（数字、常量、常量数组的常数下标元素以及它们的运算）时直接得到常数
+        Integer constant = constants.evaluate(ctx);
+        if(constant != null){
+            return LLVMConstInt(i32Type, constant, 0);
+        }
+        if(ctx.lVal() != null){
             String lValName = ctx.lVal().IDENT().getText();
-            LLVMValueRef value;
-            if(llvmSymbolTable.get(lValName) != null){
-                value = LLVMBuildLoad(builder, llvmSymbolTable.get(lValName), lValName);
-            }else{
-                value = LLVMBuildLoad(builder, LLVMGetNamedGlobal(module, lValName), lValName);
+            if(ctx.lVal().exp().isEmpty() && localVariables != null && localVariables.containsKey(lValName)){
+                return readLocal(lValName);
             }
-            return value;
+            LLVMValueRef pointer = getLValPointer(ctx.lVal());
+            //下标没有写全的数组退化为指向第一个元素的指针，用作实参
+            if(LLVMGetTypeKind(LLVMGetElementType(LLVMTypeOf(pointer))) == LLVMArrayTypeKind){
+                return buildGEP(pointer, zero, zero);
+            }
+            return LLVMBuildLoad(builder, pointer, lValName);
         }else if(ctx.unaryOp() != null){
+            //-(-x) => x
+            SysYParser.ExpContext operand = stripParens(ctx.exp(0));
+            if(ctx.unaryOp().MINUS() != null && operand.unaryOp() != null && operand.unaryOp().MINUS() != null){
+                return visitExp(operand.exp(0));
+            }
             LLVMValueRef value = visitExp(ctx.exp(0));
             if(ctx.unaryOp().NOT() != null){
                 value = LLVMBuildICmp(builder, LLVMIntNE, LLVMConstInt(i32Type, 0, 0), value, "tmp");
                 value = LLVMBuildXor(builder, value, LLVMConstInt(LLVMInt1Type(), 1, 0), "tmp");
                 value = LLVMBuildZExt(builder, value, i32Type, "tmp");
             }else if(ctx.unaryOp().MINUS() != null){
-                value = LLVMBuildSub(builder, zero, value, "tmp");
+                value = LLVMBuildNeg(builder, value, "tmp");
             }
             return value;
         }else if(ctx.exp().size() == 1){
@@ -323,70 +607,141 @@ public class MyLLVMIRVisitor extends SysYParserBaseVisitor<LLVMValueRef>{
             return LLVMBuildCall2(builder, llvmFuncTypeTable.get(ctx.IDENT().getText()), function, argumentList, argumentCount, returnName);
             //也可以使用LLVMBuildCall，不需要输入函数类型，会自动推断
 //            return LLVMBuildCall(builder, function, argumentList, argumentCount, "returnValue");
+        }else if(ctx.PLUS() != null || ctx.MINUS() != null){
+            return buildAddSub(ctx);
         }else{
-            LLVMValueRef result = null;
-            if(ctx.PLUS() != null){
-                result = LLVMBuildAdd(builder, visitExp(ctx.exp(0)), visitExp(ctx.exp(1)), "tmp");
-            }else if(ctx.MINUS() != null){
-                result = LLVMBuildSub(builder, visitExp(ctx.exp(0)), visitExp(ctx.exp(1)), "tmp");
-            }else if(ctx.MUL() != null){
-                result = LLVMBuildMul(builder, visitExp(ctx.exp(0)), visitExp(ctx.exp(1)), "tmp");
-            }else if(ctx.DIV() != null){
-                result = LLVMBuildSDiv(builder, visitExp(ctx.exp(0)), visitExp(ctx.exp(1)), "tmp");
-            }else if(ctx.MOD() != null){
-                result = LLVMBuildSRem(builder, visitExp(ctx.exp(0)), visitExp(ctx.exp(1)), "tmp");
+            return buildMulDiv(ctx);
+        }
+    }
+
+    private static SysYParser.ExpContext stripParens(SysYParser.ExpContext ctx){
+        while(ctx.L_PAREN() != null && ctx.IDENT() == null){
+            ctx = ctx.exp(0);
+        }
+        return ctx;
+    }
+
+    //加减常数的链中不是常数的那一端，常数部分累加到offset[0]：x + 1 - 2 + 3、1 + (x - 2) 都是x和2
+    private SysYParser.ExpContext linearBase(SysYParser.ExpContext ctx, int[] offset){
+        ctx = stripParens(ctx);
+        if(ctx.PLUS() == null && ctx.MINUS() == null) return ctx;
+        Integer rhs = constants.evaluate(ctx.exp(1));
+        if(rhs != null){
+            offset[0] += ctx.PLUS() != null ? rhs : -rhs;
+            return linearBase(ctx.exp(0), offset);
+        }
+        Integer lhs = constants.evaluate(ctx.exp(0));
+        if(lhs != null && ctx.PLUS() != null){
+            offset[0] += lhs;
+            return linearBase(ctx.exp(1), offset);
+        }
+        return ctx;
+    }
+
+    //至少一边不是常数的加减法。常数合并成一次加法，加0省略；x - x为0
+    private LLVMValueRef buildAddSub(SysYParser.ExpContext ctx){
+        int[] offset = {0};
+        SysYParser.ExpContext base = linearBase(ctx, offset);
+        if(base != ctx){
+            LLVMValueRef value = visitExp(base);
+            return offset[0] == 0 ? value : LLVMBuildAdd(builder, value, LLVMConstInt(i32Type, offset[0], 0), "tmp");
+        }
+        LLVMValueRef lhs = visitExp(ctx.exp(0));
+        LLVMValueRef rhs = visitExp(ctx.exp(1));
+        if(ctx.PLUS() != null){
+            return LLVMBuildAdd(builder, lhs, rhs, "tmp");
+        }
+        if(lhs.address() == rhs.address()) return zero;
+        return LLVMBuildSub(builder, lhs, rhs, "tmp");
+    }
+
+    //至少一边不是常数的乘除法、取余：乘以0、1、-1，除以1、-1，对1、-1取余不需要运算
+    //被省掉的一边仍然要生成，里面可能有函数调用
+    private LLVMValueRef buildMulDiv(SysYParser.ExpContext ctx){
+        Integer rhsConst = constants.evaluate(ctx.exp(1));
+        Integer lhsConst = constants.evaluate(ctx.exp(0));
+        LLVMValueRef lhs = visitExp(ctx.exp(0));
+        LLVMValueRef rhs = visitExp(ctx.exp(1));
+        if(ctx.MUL() != null){
+            if(isConst(lhsConst, 0) || isConst(rhsConst, 0)) return zero;
+            if(isConst(rhsConst, 1)) return lhs;
+            if(isConst(lhsConst, 1)) return rhs;
+            if(isConst(rhsConst, -1)) return LLVMBuildNeg(builder, lhs, "tmp");
+            if(isConst(lhsConst, -1)) return LLVMBuildNeg(builder, rhs, "tmp");
+            return LLVMBuildMul(builder, lhs, rhs, "tmp");
+        }else if(ctx.DIV() != null){
+            if(isConst(rhsConst, 1)) return lhs;
+            if(isConst(rhsConst, -1)) return LLVMBuildNeg(builder, lhs, "tmp");
+            return LLVMBuildSDiv(builder, lhs, rhs, "tmp");
+        }else{
+            if(isConst(rhsConst, 1) || isConst(rhsConst, -1)) return zero;
+            return LLVMBuildSRem(builder, lhs, rhs, "tmp");
+        }
+    }
+
+    private static boolean isConst(Integer value, int c){
+        return value != null && value == c;
+    }
+
+    //按条件跳转：条件成立到ifTrue，否则到ifFalse。&&、||直接生成跳转，比较的结果只作为br的条件，不转换成i32
+    //右侧的求值块插在ifTrue之前，与语句的块顺序一致
+    private void buildCondJump(SysYParser.CondContext ctx, LLVMBasicBlockRef ifTrue, LLVMBasicBlockRef ifFalse){
+        if(ctx.AND() != null || ctx.OR() != null){
+            LLVMBasicBlockRef right = LLVMInsertBasicBlock(ifTrue, ctx.AND() != null ? "andRight" : "orRight");
+            if(ctx.AND() != null){
+                buildCondJump(ctx.cond(0), right, ifFalse);
+            }else{
+                buildCondJump(ctx.cond(0), ifTrue, right);
             }
-            return result;
+            ssa.sealBlock(right);
+            LLVMPositionBuilderAtEnd(builder, right);
+            buildCondJump(ctx.cond(1), ifTrue, ifFalse);
+        }else if(ctx.exp() != null){
+            buildExpJump(ctx.exp(), ifTrue, ifFalse);
+        }else{
+            buildCondBr(compare(ctx), ifTrue, ifFalse);
+        }
+    }
+
+    //作为条件的表达式：!x交换两个目标，其余与0比较
+    private void buildExpJump(SysYParser.ExpContext ctx, LLVMBasicBlockRef ifTrue, LLVMBasicBlockRef ifFalse){
+        SysYParser.ExpContext exp = stripParens(ctx);
+        if(constants.evaluate(exp) == null && exp.unaryOp() != null && exp.unaryOp().NOT() != null){
+            buildExpJump(exp.exp(0), ifFalse, ifTrue);
+            return;
+        }
+        buildCondBr(LLVMBuildICmp(builder, LLVMIntNE, visitExp(exp), zero, "cond"), ifTrue, ifFalse);
+    }
+
+    //比较运算，结果为i1
+    private LLVMValueRef compare(SysYParser.CondContext ctx){
+        LLVMValueRef condLeft = visitCond(ctx.cond(0));
+        LLVMValueRef condRight = visitCond(ctx.cond(1));
+        int predicate;
+        if(ctx.LT() != null){
+            predicate = LLVMIntSLT;
+        }else if(ctx.GT() != null){
+            predicate = LLVMIntSGT;
+        }else if(ctx.LE() != null){
+            predicate = LLVMIntSLE;
+        }else if(ctx.GE() != null){
+            predicate = LLVMIntSGE;
+        }else if(ctx.EQ() != null){
+            predicate = LLVMIntEQ;
+        }else{
+            predicate = LLVMIntNE;
         }
+        return LLVMBuildICmp(builder, predicate, condLeft, condRight, "cond");
     }
 
+    //条件作为比较运算的操作数时（如a < b == c）才需要i32的值
+    //&&、||的优先级低于比较运算，不会出现在这里
     @Override
     public LLVMValueRef visitCond(SysYParser.CondContext ctx) {
         if(ctx.exp() != null){
             return visitExp(ctx.exp());
         }
-        LLVMValueRef condLeft = null;
-        LLVMValueRef condRight = null;
-        LLVMValueRef cond = null;
-        if(ctx.AND() == null && ctx.OR() == null){
-            condLeft = visitCond(ctx.cond(0));
-            condRight = visitCond(ctx.cond(1));
-            if(ctx.LT() != null){
-                cond = LLVMBuildICmp(builder, LLVMIntSLT, condLeft, condRight, "cond");
-            }else if(ctx.GT() != null){
-                cond = LLVMBuildICmp(builder, LLVMIntSGT, condLeft, condRight, "cond");
-            }else if(ctx.LE() != null){
-                cond = LLVMBuildICmp(builder, LLVMIntSLE, condLeft, condRight, "cond");
-            }else if(ctx.GE() != null){
-                cond = LLVMBuildICmp(builder, LLVMIntSGE, condLeft, condRight, "cond");
-            }else if(ctx.EQ() != null){
-                cond = LLVMBuildICmp(builder, LLVMIntEQ, condLeft, condRight, "cond");
-            }else if(ctx.NEQ() != null){
-                cond = LLVMBuildICmp(builder, LLVMIntNE, condLeft, condRight, "cond");
-            }
-        }else{
-            //短路求值
-            LLVMBasicBlockRef previousBlock = LLVMGetInsertBlock(builder);
-            condLeft = LLVMBuildICmp(builder, LLVMIntNE, zero, visitCond(ctx.cond(0)), "leftTmp");
-            LLVMBasicBlockRef blockTemp = LLVMAppendBasicBlock(currentFunction, "blockTemp");
-            LLVMBasicBlockRef blockPhi = LLVMAppendBasicBlock(currentFunction, "blockPhi");
-            if(ctx.AND() != null){
-                LLVMBuildCondBr(builder, condLeft, blockTemp, blockPhi);
-            }else{
-                LLVMBuildCondBr(builder, condLeft, blockPhi, blockTemp);
-            }
-            LLVMPositionBuilderAtEnd(builder, blockTemp);
-            condRight = LLVMBuildICmp(builder, LLVMIntNE, zero, visitCond(ctx.cond(1)), "rightTmp");
-            LLVMBuildBr(builder, blockPhi);
-            LLVMMoveBasicBlockBefore(blockTemp, trueBlock.peek());
-            LLVMMoveBasicBlockBefore(blockPhi, trueBlock.peek());
-            LLVMPositionBuilderAtEnd(builder, blockPhi);
-            cond = LLVMBuildPhi(builder, i1Type, "phi");
-            LLVMValueRef[] incomingValues = {condLeft, condRight};
-            LLVMBasicBlockRef[] incomingBlocks = {previousBlock, blockTemp};
-            LLVMAddIncoming(cond, new PointerPointer<>(incomingValues), new PointerPointer<>(incomingBlocks), 2);
-        }
-        return LLVMBuildZExt(builder, cond, i32Type, "i32cond");
+        return LLVMBuildZExt(builder, compare(ctx), i32Type, "i32cond");
     }
 
     //获取节点的类型（返回字符串，字符串内容在lexerTypeList和parserTypeList中）
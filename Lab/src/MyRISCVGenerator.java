@@ -1,290 +1,1192 @@
 import org.bytedeco.llvm.LLVM.*;
 import org.bytedeco.llvm.global.LLVM;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static org.bytedeco.llvm.global.LLVM.*;
-import static org.bytedeco.llvm.global.LLVM.LLVMGetValueName;
 
 public class MyRISCVGenerator {
     public final LLVMModuleRef module;
     public final String destPath;
-    private AsmBuilder asmBuilder;
-    private int stackSize;
-    private int stackArraySize;
-    private int totalLineNum;
 
     private static final List<String> allRegs = Arrays.asList(
             "a0","a1","a2","a3" ,"a4","a5","a6","a7",
             "s0","s1","s2","s3","s4","s5","s6","s7","s8","s9","s10","s11",
             "t2","t3","t4","t5","t6"
     );
+    //被调用者保存的寄存器（s0-s11），按allRegs下标标记
+    private static final boolean[] calleeSaved = new boolean[allRegs.size()];
 
-    private String[] allocateArray = new String[allRegs.size()];
-    private String[] stackArray = new String[1000];
+    static {
+        for(int i = 0; i < allRegs.size(); i++){
+            calleeSaved[i] = allRegs.get(i).startsWith("s");
+        }
+    }
+
+    //参数寄存器个数，多出来的参数通过栈传递
+    private static final int ARG_REG_NUM = 8;
+
+    private final boolean useGraphColoring;
+
+    //后端处理的模块快照
+    private IRModule irModule;
+
+    //是否输出统计信息
+    private boolean printStats = false;
+
+    //并行生成时使用的线程池，为null时按顺序逐个生成
+    private ForkJoinPool pool;
 
-    private HashMap<String, int[]> liveSpace;
-    private HashMap<String, LLVMValueRef> llvmSymbolTable;
+    //是否在写出之前做窥孔优化
+    private boolean usePeephole = true;
+    //整个模块的窥孔规则命中次数
+    private PeepholeOptimizer peepholeStats;
+    //窥孔优化之后做基本块内指令调度所用的延迟模型，为null时不调度
+    private LatencyModel latencyModel = LatencyModel.defaultModel();
 
     MyRISCVGenerator(LLVMModuleRef module, String destPath){
+        this(module, destPath, false);
+    }
+
+    //useGraphColoring为true时使用图着色分配，否则使用线性扫描
+    MyRISCVGenerator(LLVMModuleRef module, String destPath, boolean useGraphColoring){
         this.module = module;
         this.destPath = destPath;
-        this.asmBuilder = new AsmBuilder();
-        this.liveSpace = new HashMap<>();
+        this.useGraphColoring = useGraphColoring;
+    }
+
+    public void setPrintStats(boolean printStats){
+        this.printStats = printStats;
+    }
+
+    //开启并行生成：各个函数在ForkJoinPool上独立生成，再按模块中的顺序拼接，输出与顺序生成完全相同
+    public void setParallel(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    public void setPeephole(boolean usePeephole){
+        this.usePeephole = usePeephole;
+    }
+
+    public void setLatencyModel(LatencyModel latencyModel){
+        this.latencyModel = latencyModel;
     }
 
     public void generateRiscVCode(){
-        //遍历所有全局变量
-        asmBuilder.op(".data");
-        for (LLVMValueRef value = LLVMGetFirstGlobal(module); value != null; value = LLVMGetNextGlobal(value)) {
-            asmBuilder.label(LLVMGetValueName(value).getString());
-            asmBuilder.op0(".word", String.valueOf(LLVMConstIntGetSExtValue(LLVMGetInitializer(value))));
-        }
-        asmBuilder.newline();
-        //遍历所有函数
-        asmBuilder.op(".text");
-        for (LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)) {
-            asmBuilder.op0(".globl", LLVMGetValueName(func).getString());
-            asmBuilder.label(LLVMGetValueName(func).getString());
-            //第一遍扫描，检查活跃区间。
-            int line = 0;
-            for (LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)) {
-                for (LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)) {
-                    //定义新变量
-                    String varName = LLVMGetValueName(inst).getString();
-                    if(!varName.isEmpty()){
-                        int[] startToEnd = {line, line};
-                        liveSpace.put(varName, startToEnd);
-                    }
-                    //使用变量
-                    int operandNum = LLVMGetNumOperands(inst);
-                    LLVMValueRef op1 = (operandNum >= 1 ? LLVMGetOperand(inst, 0) : null);
-                    if(op1 != null && LLVMIsAGlobalValue(op1) == null){
-                        varName = LLVMGetValueName(op1).getString();
-                        if(!varName.isEmpty()){
-                            liveSpace.get(varName)[1] = line;
-                        }
+        peepholeStats = new PeepholeOptimizer(PeepholeOptimizer.defaultRules());
+        //优化pass合并出的llvm.abs等intrinsic没有对应的函数，先展开成普通指令
+        IntrinsicExpander.expand(module);
+        //phi的赋值生成在边上，先拆开从多后继块流向phi所在块的边
+        EdgeSplitter.split(module);
+        //一次性把module读到Java堆上，之后的扫描都不再经过JNI
+        irModule = new IRModule(module);
+        List<IRFunction> functions = new ArrayList<>();
+        for(IRFunction func : irModule.functions){
+            if(!func.isDeclaration()) functions.add(func);
+        }
+        //边生成边写出：.data段单独先写，之后每个函数生成完就交给后台线程写入文件，同时生成后面的函数
+        try (AsmFileWriter writer = new AsmFileWriter(destPath)) {
+            AsmBuilder dataBuilder = new AsmBuilder();
+            generateData(dataBuilder);
+            dataBuilder.op(".text");
+            writer.submit(dataBuilder);
+            //遍历所有函数
+            if(pool == null){
+                //两个builder轮流使用，内存里最多只有两个函数的汇编
+                AsmBuilder[] builders = {new AsmBuilder(), new AsmBuilder()};
+                for(int i = 0; i < functions.size(); i++){
+                    AsmBuilder builder = builders[i % 2];
+                    builder.reset();
+                    FunctionContext context = new FunctionContext(functions.get(i), builder);
+                    context.generateFunction();
+                    finishFunction(context, writer);
+                }
+            }else{
+                //最多同时有window个函数在生成或等待写出，按模块顺序逐个取结果
+                int window = pool.getParallelism() * 2;
+                ArrayDeque<ForkJoinTask<FunctionContext>> inFlight = new ArrayDeque<>();
+                int next = 0;
+                while(next < functions.size() || !inFlight.isEmpty()){
+                    while(next < functions.size() && inFlight.size() < window){
+                        FunctionContext context = new FunctionContext(functions.get(next++), new AsmBuilder());
+                        inFlight.add(pool.submit(() -> {
+                            context.generateFunction();
+                            return context;
+                        }));
                     }
-                    LLVMValueRef op2 = (operandNum >= 2 ? LLVMGetOperand(inst, 1) : null);
-                    if(op2 != null && LLVMIsAGlobalValue(op2) == null){
-                        varName = LLVMGetValueName(op2).getString();
-                        if(!varName.isEmpty()){
-                            liveSpace.get(varName)[1] = line;
+                    finishFunction(inFlight.poll().join(), writer);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if(printStats && usePeephole){
+            for(int r = 0; r < peepholeStats.getRules().size(); r++){
+                System.err.printf("peephole %s: %d%n", peepholeStats.getRules().get(r).getName(), peepholeStats.getHits(r));
+            }
+        }
+    }
+
+    //有非0初值的全局变量放进.data，连续的0用.zero、连续相同的非0值用.fill，汇编的长度只与游程个数有关
+    //全为0的放进.bss，只占一条.zero，由加载器清零
+    private void generateData(AsmBuilder dataBuilder){
+        int bssNum = 0;
+        for(int[] runs : irModule.globalRuns){
+            if(runs.length == 0) bssNum++;
+        }
+        if(bssNum < irModule.globalNames.size()){
+            dataBuilder.op(".data");
+            dataBuilder.op0(".align", 2);
+        }
+        for(int i = 0; i < irModule.globalNames.size(); i++){
+            int[] runs = irModule.globalRuns.get(i);
+            if(runs.length == 0) continue;
+            dataBuilder.label(irModule.globalNames.get(i));
+            for(int r = 0; r < runs.length; r += 2){
+                int value = runs[r], count = runs[r + 1];
+                if(value == 0){
+                    dataBuilder.op0(".zero", count * 4);
+                }else if(count == 1){
+                    dataBuilder.op0(".word", value);
+                }else{
+                    dataBuilder.op2(".fill", Integer.toString(count), "4", value);
+                }
+            }
+        }
+        if(bssNum > 0){
+            if(dataBuilder.size() > 0) dataBuilder.newline();
+            dataBuilder.op(".bss");
+            dataBuilder.op0(".align", 2);
+        }
+        for(int i = 0; i < irModule.globalNames.size(); i++){
+            if(irModule.globalRuns.get(i).length != 0) continue;
+            dataBuilder.label(irModule.globalNames.get(i));
+            dataBuilder.op0(".zero", irModule.globalSizes.get(i));
+        }
+        //没有全局变量时不在文件开头留空行
+        if(dataBuilder.size() > 0) dataBuilder.newline();
+    }
+
+    private void finishFunction(FunctionContext context, AsmFileWriter writer) throws IOException {
+        if(printStats){
+            FrameLayout frame = context.frame;
+            System.err.printf("%s: %d spill stores, %d reloads, stack size %d%n",
+                    context.function.name, context.spillNum, context.reloadNum, frame.getStackSize());
+            System.err.printf("%s: frame %d bytes: %d outgoing, %d slots for %d spilled values, max pressure %d%n",
+                    context.function.name, frame.getStackSize(), frame.getOutgoingSize(), frame.getSlotNum(),
+                    frame.getSpilledNum(), context.pressure.getMaxPressure());
+            System.err.printf("%s: %d spill stores and %d reloads replaced by rematerialization%n",
+                    context.function.name, context.rematStoreNum, context.rematLoadNum);
+            System.err.printf("%s: %d callee-saved registers saved, ra %s%n",
+                    context.function.name, frame.getSavedRegs().size(), frame.isRaSaved() ? "saved" : "not saved");
+            System.err.printf("%s: %d global loads forwarded%n", context.function.name, context.forwarding.getForwardedNum());
+            System.err.printf("%s: block layout removed %d jumps, %d branches fall through (%d in list order)%n",
+                    context.function.name, context.layout.getFallThroughNum() - context.layout.getListFallThroughNum(),
+                    context.layout.getFallThroughNum(), context.layout.getListFallThroughNum());
+            System.err.printf("%s: %d instructions selected, cost %d%n",
+                    context.function.name, context.selector.getSelectedNum(), context.selector.getSelectedCost());
+            if(context.scheduler != null){
+                System.err.printf("%s: scheduling: %d estimated cycles before, %d after, %d regions reordered%n",
+                        context.function.name, context.scheduler.getCyclesBefore(), context.scheduler.getCyclesAfter(),
+                        context.scheduler.getScheduledRegions());
+            }
+        }
+        if(context.peephole != null){
+            peepholeStats.addHits(context.peephole);
+        }
+        writer.submit(context.output);
+    }
+
+    //折叠进条件跳转的比较：pred lhs, rhs
+    private static class Condition {
+        private int pred;
+        private final String lhs;
+        private final String rhs;
+
+        Condition(int pred, String lhs, String rhs){
+            this.pred = pred;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+    }
+
+    //一个函数的代码生成状态，各个函数之间互不共享，可以在不同线程上同时生成
+    private class FunctionContext {
+        private final IRFunction function;
+        //最终输出的汇编
+        private final AsmBuilder output;
+        //生成代码时写入的目标：开启窥孔优化或指令调度时先记录到AsmInstList，否则直接写入output
+        private final AsmEmitter asmBuilder;
+        private final PeepholeOptimizer peephole;
+        private final InstructionScheduler scheduler;
+        private final RegisterAllocator allocator;
+        private InstructionSelector selector;
+        private GlobalForwarding forwarding;
+        //基本块的生成顺序
+        private BlockLayout layout;
+        private int totalLineNum;
+        //栈帧布局：栈参数区、溢出栈槽、需要在序言中保存的ra和被调用者保存寄存器
+        private FrameLayout frame;
+        //当前函数每条指令处的寄存器压力
+        private RegisterPressure pressure;
+
+        //按值编号索引的活跃区间，没有结果的指令对应null
+        private LiveInterval[] liveSpace;
+        //可以通过合并消除的mv，每一项为{dest, src}
+        private final List<LiveInterval[]> moves = new ArrayList<>();
+
+        //溢出后可以用li重新算出来的值
+        private Rematerialization remat;
+
+        //溢出写回(sw)、重新加载(lw)的次数，以及因为重新计算省掉的sw、lw
+        private int spillNum;
+        private int reloadNum;
+        private int rematStoreNum;
+        private int rematLoadNum;
+
+        FunctionContext(IRFunction function, AsmBuilder output){
+            this.function = function;
+            this.output = output;
+            this.peephole = usePeephole ? new PeepholeOptimizer(PeepholeOptimizer.defaultRules()) : null;
+            this.scheduler = latencyModel != null ? new InstructionScheduler(latencyModel) : null;
+            this.asmBuilder = (peephole != null || scheduler != null) ? new AsmInstList() : output;
+            this.allocator = (useGraphColoring ? new GraphColoringAllocator(allRegs.size(), calleeSaved)
+                    : new LinearScanAllocator(allRegs.size(), calleeSaved));
+        }
+
+        private void generateFunction(){
+            IRFunction func = function;
+            asmBuilder.op0(".globl", func.name);
+            asmBuilder.label(func.name);
+            //指令选择：确定哪些icmp、zext、xor折叠进使用者，折叠的指令不单独分配寄存器
+            //全局变量的load改成直接读块内已知的值，要在指令选择之前做，被转发的值多了一次使用，不能再折叠
+            forwarding = new GlobalForwarding(func, irModule.globalNames.size());
+            selector = new InstructionSelector(func);
+            //第一遍扫描：在CFG上做活跃变量分析，得到带空洞的活跃区间，溢出代价按循环深度加权
+            //区间按值编号计位置，参数占0..argNum-1，在函数入口由a0-a7或栈传入
+            LoopInfo loopInfo = new LoopInfo(func.successors);
+            double[] blockWeight = new double[func.blockNum];
+            for(int b = 0; b < func.blockNum; b++){
+                blockWeight[b] = Math.pow(10, loopInfo.getDepth(b));
+            }
+            layout = new BlockLayout(func, loopInfo, blockWeight);
+            liveSpace = new LivenessAnalysis(func, selector, blockWeight).getIntervals();
+            remat = new Rematerialization(func);
+            for(LiveInterval interval : liveSpace){
+                if(interval != null) interval.setRematerializable(remat.isRematerializable(interval.getValue()));
+            }
+            //记录调用位置和可合并的mv：load/store局部变量、COPY、不折叠的zext、phi的赋值
+            List<Integer> callLines = new ArrayList<>();
+            for(int b = 0; b < func.blockNum; b++){
+                for(int inst = func.blockStart[b]; inst <= func.getLastInstruction(b); inst++){
+                    int opcode = func.opcode[inst];
+                    if(opcode == LLVMCall){
+                        callLines.add(inst);
+                    }else if((opcode == LLVMLoad && isLocalVariable(inst, 0)) || opcode == IRFunction.COPY_OPCODE
+                            || (opcode == LLVMZExt && selector.getRule(inst, InstructionSelector.REG) == InstructionSelector.R_ZEXT_MV)){
+                        addMove(liveSpace[inst], operandInterval(inst, 0));
+                    }else if(opcode == LLVMStore && isLocalVariable(inst, 1)){
+                        addMove(operandInterval(inst, 1), operandInterval(inst, 0));
+                    }else if(opcode == LLVMPHI){
+                        for(int i = 0; i + 1 < func.getOperandNum(inst); i += 2){
+                            addMove(liveSpace[inst], operandInterval(inst, i));
                         }
                     }
-                    line++;
                 }
             }
-            totalLineNum = line;
-            //第二遍扫描，确定最大活跃变量个数，从而确定预留栈空间大小
-            stackSize = Math.max((getMaxLiveNum() - allRegs.size() + 3) / 4 * 16, 0);
-            stackArraySize = stackSize / 4;
+            totalLineNum = func.valueNum;
+            List<LiveInterval> intervals = new ArrayList<>();
+            for(LiveInterval interval : liveSpace){
+                if(interval != null) intervals.add(interval);
+            }
+            markCallCrossing(intervals, callLines);
+            //第二遍扫描，为每个区间分配寄存器，再按冲突关系给溢出的区间分配栈槽，确定栈帧
+            pressure = new RegisterPressure(intervals, totalLineNum);
+            allocator.allocate(intervals, moves);
+            layoutFrame(intervals, !callLines.isEmpty());
             //第三遍扫描，遍历当前函数的所有基本块
-            line = 0;
-            asmBuilder.op2("addi", "sp", "sp", String.valueOf(-stackSize));
-            for (LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)) {
-                asmBuilder.label(LLVMGetBasicBlockName(bb).getString());
-                //遍历当前基本块的所有指令
-                for (LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)) {
+            spillNum = 0;
+            reloadNum = 0;
+            rematStoreNum = 0;
+            rematLoadNum = 0;
+            generatePrologue();
+            //按布局的顺序生成基本块，入口块总在最前面，紧接着序言
+            for(int b : layout.getOrder()){
+                asmBuilder.label(blockLabel(b));
+                //遍历当前基本块的所有指令，终结指令之后的不可达指令不生成
+                for(int inst = func.blockStart[b]; inst <= func.getLastInstruction(b); inst++){
+                    int before = asmBuilder.size();
+                    if(inst == func.terminator[b]){
+                        generatePhiMoves(b);
+                    }
                     generateInstruction(inst);
-                    asmBuilder.newline();
-                    line++;
-                    cancelRegs(line);
+                    //每条IR指令生成的代码之间空一行，没有生成代码的（phi、折叠进使用者的指令）不留空行
+                    if(asmBuilder.size() != before) asmBuilder.newline();
                 }
             }
+            if(asmBuilder instanceof AsmInstList){
+                AsmInstList insts = (AsmInstList) asmBuilder;
+                if(peephole != null) peephole.run(insts);
+                //调度要在窥孔之后：窥孔规则只看相邻的指令，调度会把它们拉开
+                if(scheduler != null) scheduler.run(insts);
+                insts.emitTo(output);
+            }
         }
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(destPath))) {
-            writer.write(asmBuilder.getStringBuffer().toString());
-        } catch (IOException e) {
-            e.printStackTrace();
+
+        private LiveInterval operandInterval(int inst, int i){
+            return isValueOperand(inst, i) ? liveSpace[function.getOperandValue(inst, i)] : null;
         }
-    }
 
-    private int getMaxLiveNum() {
-        int maxLiveNum = 0;
-        for(int i = 0; i < totalLineNum; i++){
-            int maxLiveNumTemp = 0;
-            for(Map.Entry<String, int[]> entry : liveSpace.entrySet()){
-                int[] space = entry.getValue();
-                if(space[0] <= i && space[1] >= i){
-                    maxLiveNumTemp++;
+        private void addMove(LiveInterval dest, LiveInterval src){
+            if(dest != null && src != null){
+                moves.add(new LiveInterval[]{dest, src});
+            }
+        }
+
+        //call前后都活跃的区间跨过了调用。以call的实参结束、以call的返回值开始、在call处有空洞的区间都不算
+        private void markCallCrossing(List<LiveInterval> intervals, List<Integer> callLines){
+            if(callLines.isEmpty()) return;
+            int[] lines = callLines.stream().mapToInt(Integer::intValue).sorted().toArray();
+            for(LiveInterval interval : intervals){
+                int k = Arrays.binarySearch(lines, interval.getStart());
+                if(k < 0) k = -k - 1;
+                for(; k < lines.length && lines[k] < interval.getEnd(); k++){
+                    if(interval.isLiveAcross(lines[k])){
+                        interval.setCallCrossing(true);
+                        break;
+                    }
                 }
             }
-            maxLiveNum = Math.max(maxLiveNum, maxLiveNumTemp);
         }
-        return maxLiveNum;
-    }
 
-    private void generateInstruction(LLVMValueRef inst){
-        //对于一条 LLVM 指令，获取它的操作码、操作数数量和具体的操作数：
-        int opcode = LLVMGetInstructionOpcode(inst);
-        int operandNum = LLVMGetNumOperands(inst);
-        LLVMValueRef op1 = (operandNum >= 1 ? LLVMGetOperand(inst, 0) : null);
-        LLVMValueRef op2 = (operandNum >= 2 ? LLVMGetOperand(inst, 1) : null);
-        if(opcode == LLVMRet){
-            generateLLVMRet(inst, op1, op2);
-        }else if(opcode == LLVMAlloca){
-            generateLLVMAllocate(inst);
-        }else if(opcode == LLVMLoad){
-            generateLLVMLoad(inst, op1);
-        }else if(opcode == LLVMStore){
-            generateLLVMStore(inst, op1, op2);
-        }else if(opcode == LLVMAdd){
-            generateLLVMOp2(inst, "add", op1, op2);
-        }else if(opcode == LLVMSub){
-            generateLLVMOp2(inst, "sub", op1, op2);
-        }else if(opcode == LLVMMul){
-            generateLLVMOp2(inst, "mul", op1, op2);
-        }else if(opcode == LLVMSDiv){
-            generateLLVMOp2(inst, "div", op1, op2);
-        }else if(opcode == LLVMSRem){
-            generateLLVMOp2(inst, "rem", op1, op2);
+        //确定栈帧：只保存实际用到的被调用者保存寄存器，只有非叶函数保存ra
+        //main通过ecall退出，不会返回调用者，两者都不用保存
+        private void layoutFrame(List<LiveInterval> intervals, boolean hasCall){
+            IRFunction func = function;
+            int outgoingSize = 0;
+            for(int inst = func.argNum; inst < func.valueNum; inst++){
+                if(func.opcode[inst] == LLVMCall){
+                    int argNum = func.getOperandNum(inst) - 1;
+                    outgoingSize = Math.max(outgoingSize, Math.max(argNum - ARG_REG_NUM, 0) * 4);
+                }
+            }
+            boolean isMain = func.name.equals("main");
+            boolean[] used = new boolean[allRegs.size()];
+            for(LiveInterval interval : intervals){
+                if(!interval.isSpilled() && interval.getReg() >= 0) used[interval.getReg()] = true;
+            }
+            List<String> savedRegs = new ArrayList<>();
+            if(!isMain){
+                for(int r = 0; r < allRegs.size(); r++){
+                    if(used[r] && calleeSaved[r]) savedRegs.add(allRegs.get(r));
+                }
+            }
+            frame = new FrameLayout(outgoingSize);
+            frame.assignSpillSlots(intervals, moves);
+            for(int inst = func.argNum; inst < func.valueNum; inst++){
+                if(func.isArray(inst)) frame.addArray(inst, func.arraySize[inst]);
+            }
+            frame.setSavedRegs(savedRegs, hasCall && !isMain);
         }
-    }
 
-    private void generateLLVMRet(LLVMValueRef inst, LLVMValueRef op1, LLVMValueRef op2){
-        if(LLVMIsAConstantInt(op1) != null){
-            asmBuilder.op1("li", "a0", String.valueOf(LLVMConstIntGetSExtValue(op1)));
-        }else{
-            asmBuilder.op1("mv", "a0", getReg(LLVMGetValueName(op1).getString()));
+        private int slotOffset(LiveInterval interval){
+            return frame.getSlotOffset(interval);
         }
-        asmBuilder.op2("addi", "sp", "sp", String.valueOf(stackSize));
-        asmBuilder.op1("li", "a7", "93");
-        asmBuilder.op("ecall");
-    }
 
-    private void generateLLVMAllocate(LLVMValueRef inst){
-        allocateReg(LLVMGetValueName(inst).getString());
-    }
+        private void generatePrologue(){
+            IRFunction func = function;
+            if(frame.getStackSize() > 0){
+                addImmediate("sp", "sp", -frame.getStackSize(), "t0");
+            }
+            int offset = frame.getSavedBase();
+            if(frame.isRaSaved()){
+                asmBuilder.mem("sw", "ra", offset, "sp");
+                offset += 4;
+            }
+            for(String reg : frame.getSavedRegs()){
+                asmBuilder.mem("sw", reg, offset, "sp");
+                offset += 4;
+            }
+            //参数从a0-a7、调用者的栈帧中取到分配好的位置。先把要溢出的参数写回，避免寄存器被后面的mv覆盖
+            List<String> dests = new ArrayList<>();
+            List<String> srcs = new ArrayList<>();
+            for(int i = 0; i < Math.min(func.argNum, ARG_REG_NUM); i++){
+                LiveInterval interval = liveSpace[i];
+                if(interval.isSpilled()){
+                    asmBuilder.mem("sw", "a" + i, slotOffset(interval), "sp");
+                }else{
+                    dests.add(allRegs.get(interval.getReg()));
+                    srcs.add("a" + i);
+                }
+            }
+            generateParallelMoves(dests, srcs);
+            for(int i = ARG_REG_NUM; i < func.argNum; i++){
+                LiveInterval interval = liveSpace[i];
+                int incoming = frame.getStackSize() + (i - ARG_REG_NUM) * 4;
+                String reg = interval.isSpilled() ? "t0" : allRegs.get(interval.getReg());
+                if(isImm12(incoming)){
+                    asmBuilder.mem("lw", reg, incoming, "sp");
+                }else{
+                    addImmediate(reg, "sp", incoming, reg);
+                    asmBuilder.mem("lw", reg, 0, reg);
+                }
+                if(interval.isSpilled()){
+                    asmBuilder.mem("sw", "t0", slotOffset(interval), "sp");
+                }
+            }
+        }
 
-    private void generateLLVMLoad(LLVMValueRef inst, LLVMValueRef op1){
-        String reg = allocateReg(LLVMGetValueName(inst).getString());
-        if(LLVMIsAGlobalValue(op1) != null){
-            asmBuilder.op1("la", "t0", LLVMGetValueName(op1).getString());
-            asmBuilder.op1("lw", reg, "0(t0)");
-        }else{
-            String regL = getReg(LLVMGetValueName(op1).getString());
-            asmBuilder.op1("mv", reg, regL);
+        private void generateEpilogue(){
+            int offset = frame.getSavedBase();
+            if(frame.isRaSaved()){
+                asmBuilder.mem("lw", "ra", offset, "sp");
+                offset += 4;
+            }
+            for(String reg : frame.getSavedRegs()){
+                asmBuilder.mem("lw", reg, offset, "sp");
+                offset += 4;
+            }
+            if(frame.getStackSize() > 0){
+                addImmediate("sp", "sp", frame.getStackSize(), "t0");
+            }
+        }
+
+        //并行赋值dests[i] <- srcs[i]：目标互不相同，但可能是别的赋值的源。位置是寄存器名或栈槽"offset(sp)"
+        //每次先做目标不再被读取的赋值；剩下的都成环时，把一个目标的旧值暂存到t0，环就断开了
+        private void generateParallelMoves(List<String> dests, List<String> srcs){
+            List<String> pendingDests = new ArrayList<>();
+            List<String> pendingSrcs = new ArrayList<>();
+            for(int i = 0; i < dests.size(); i++){
+                if(!dests.get(i).equals(srcs.get(i))){
+                    pendingDests.add(dests.get(i));
+                    pendingSrcs.add(srcs.get(i));
+                }
+            }
+            while(!pendingDests.isEmpty()){
+                boolean progress = false;
+                for(int i = 0; i < pendingDests.size(); i++){
+                    String dest = pendingDests.get(i);
+                    if(!pendingSrcs.contains(dest)){
+                        generateMove(dest, pendingSrcs.get(i));
+                        pendingDests.remove(i);
+                        pendingSrcs.remove(i);
+                        progress = true;
+                        break;
+                    }
+                }
+                if(!progress){
+                    String dest = pendingDests.get(0);
+                    generateMove("t0", dest);
+                    for(int i = 0; i < pendingSrcs.size(); i++){
+                        if(pendingSrcs.get(i).equals(dest)) pendingSrcs.set(i, "t0");
+                    }
+                }
+            }
         }
-    }
 
-    private void generateLLVMStore(LLVMValueRef inst, LLVMValueRef op1, LLVMValueRef op2){
-        if(LLVMIsAConstantInt(op1) != null){
-            asmBuilder.op1("li", "t0", String.valueOf(LLVMConstIntGetSExtValue(op1)));
+        //两个位置之间的复制，栈槽之间经过t1
+        private void generateMove(String dest, String src){
+            boolean destSlot = dest.endsWith("(sp)"), srcSlot = src.endsWith("(sp)");
+            if(srcSlot){
+                String reg = destSlot ? "t1" : dest;
+                asmBuilder.mem("lw", reg, slotOffset(src), "sp");
+                src = reg;
+            }
+            if(destSlot){
+                asmBuilder.mem("sw", src, slotOffset(dest), "sp");
+            }else if(!dest.equals(src)){
+                asmBuilder.op1("mv", dest, src);
+            }
         }
-        String reg = (LLVMIsAConstantInt(op1) != null ? "t0" : getReg(LLVMGetValueName(op1).getString()));
-        if(LLVMIsAGlobalValue(op2) != null){
-            asmBuilder.op1("la", "t1", LLVMGetValueName(op2).getString());
-            asmBuilder.op1("sw", reg, "0(t1)");
-        }else{
-            asmBuilder.op1("mv", getReg(LLVMGetValueName(op2).getString()), reg);
+
+        private int slotOffset(String slot){
+            return Integer.parseInt(slot.substring(0, slot.length() - "(sp)".length()));
         }
-    }
 
-    private void generateLLVMOp2(LLVMValueRef inst, String opText, LLVMValueRef op1, LLVMValueRef op2){
-        String regL, regR, reg;
-        if(LLVMIsAConstantInt(op1) != null){
-            asmBuilder.op1("li", "t0", String.valueOf(LLVMConstIntGetSExtValue(op1)));
+        //值分到的位置：寄存器名，溢出时为栈槽
+        private String location(int value){
+            LiveInterval interval = liveSpace[value];
+            return interval.isSpilled() ? slotOffset(interval) + "(sp)" : allRegs.get(interval.getReg());
         }
-        regL = (LLVMIsAConstantInt(op1) != null ? "t0" : getReg(LLVMGetValueName(op1).getString()));
-        if(LLVMIsAConstantInt(op2) != null){
-            asmBuilder.op1("li", "t1", String.valueOf(LLVMConstIntGetSExtValue(op2)));
+
+        //操作数是否为有活跃区间的值（指令或参数）。常量地址在使用处重新算出，没有区间
+        private boolean isValueOperand(int inst, int i){
+            int kind = function.getOperandKind(inst, i);
+            return (kind == IRFunction.VALUE || kind == IRFunction.ARGUMENT) && liveSpace[function.getOperandValue(inst, i)] != null;
         }
-        regR = (LLVMIsAConstantInt(op2) != null ? "t1" : getReg(LLVMGetValueName(op2).getString()));
-        reg = allocateReg(LLVMGetValueName(inst).getString());
-        asmBuilder.op2(opText, reg, regL, regR);
-    }
 
-    private String allocateReg(String varName){
-        int farEnd = -1, index = 0;
-        for(int i = 0; i < allRegs.size(); i++){
-            if(allocateArray[i] == null){
-                allocateArray[i] = varName;
-                return allRegs.get(i);
-            }else if(liveSpace.get(allocateArray[i])[1] > farEnd){
-                farEnd = liveSpace.get(allocateArray[i])[1];
-                index = i;
+        //操作数是否为放在寄存器里的局部变量
+        private boolean isLocalVariable(int inst, int i){
+            return function.getOperandKind(inst, i) == IRFunction.VALUE && function.isLocalVariable(function.getOperandValue(inst, i));
+        }
+
+        //基本块标签用.L<函数名>.<块名>：函数名前缀区分不同函数中的同名块，
+        //.L开头的是汇编器的局部符号，函数名里不能有'.'，所以不会和f_true这样的函数名冲突
+        //没有名字的块用编号，LLVM的块名不会是纯数字
+        private String blockLabel(int b){
+            String name = function.blockName[b];
+            return ".L" + function.name + "." + (name.isEmpty() ? String.valueOf(b) : name);
+        }
+
+        //报错信息里的指令描述：结果名和LLVM操作码
+        private String instText(int inst){
+            return "%" + function.valueName[inst] + " (opcode " + function.opcode[inst] + ")";
+        }
+
+        private void generateInstruction(int inst){
+            //折叠进其他指令的、结果没人用的纯计算都不单独生成
+            if(selector.isFolded(inst) || selector.isDead(inst)) return;
+            //对于一条指令，获取它的操作码，操作数直接按下标从快照中取
+            int opcode = function.opcode[inst];
+            if(opcode == LLVMRet){
+                generateLLVMRet(inst);
+            }else if(opcode == LLVMAlloca){
+                generateLLVMAllocate(inst);
+            }else if(opcode == LLVMLoad){
+                generateLLVMLoad(inst);
+            }else if(opcode == IRFunction.COPY_OPCODE){
+                generateCopy(inst);
+            }else if(opcode == LLVMGetElementPtr){
+                generateLLVMGetElementPtr(inst);
+            }else if(opcode == LLVMStore){
+                generateLLVMStore(inst);
+            }else if(opcode == LLVMBr){
+                generateLLVMBr(inst);
+            }else if(opcode == LLVMCall){
+                generateLLVMCall(inst);
+            }else if(opcode == LLVMPHI){
+                //phi的赋值已经在前驱块末尾完成
+            }else if(selector.isSelected(inst)){
+                String reg = allocateReg(inst);
+                generateSelected(inst, InstructionSelector.REG, reg);
+                spillReg(inst, reg);
+            }else{
+                //不认识的指令直接报错，悄悄丢掉会让后面的使用者读到错误的寄存器
+                throw new IllegalStateException("unsupported instruction in " + function.name + ": " + instText(inst));
             }
         }
-        int bias = 0;
-        for(int i = stackArraySize-1; i >= 0; i--){
-            if(stackArray[i] == null){
-                stackArray[i] = allocateArray[index];
-                bias = i * 4;
-                break;
+
+        private void generateLLVMRet(int inst){
+            if(function.getOperandNum(inst) == 0){
+                //ret void
+            }else if(isConst(inst, 0)){
+                asmBuilder.op1("li", "a0", function.getOperandValue(inst, 0));
+            }else{
+                asmBuilder.op1("mv", "a0", getReg(function.getOperandValue(inst, 0), "t0"));
+            }
+            generateEpilogue();
+            //main的返回值作为程序的退出码
+            if(function.name.equals("main")){
+                asmBuilder.op1("li", "a7", 93);
+                asmBuilder.op("ecall");
+            }else{
+                asmBuilder.op("ret");
             }
         }
-        asmBuilder.op1("sw", allRegs.get(index), String.format("%d(sp)",bias));
-        allocateArray[index] = varName;
-        return allRegs.get(index);
-    }
 
-    private String getReg(String varName){
-        int farEnd = -1, index = 0, emptyIndex = -1;
-        for(int i = 0; i < allRegs.size(); i++){
-            if(allocateArray[i] != null && allocateArray[i].equals(varName)){
-                return allRegs.get(i);
-            }else if(allocateArray[i] != null && liveSpace.get(allocateArray[i])[1] > farEnd){
-                farEnd = liveSpace.get(allocateArray[i])[1];
-                index = i;
-            }else if(allocateArray[i] == null){
-                emptyIndex = i;
-            }
-        }
-        if(emptyIndex >= 0){
-            for(int i = stackArraySize-1; i >= 0; i--){
-                if(stackArray[i] != null && stackArray[i].equals(varName)){
-                    stackArray[i] = null;
-                    allocateArray[emptyIndex] = varName;
-                    asmBuilder.op1("lw", allRegs.get(emptyIndex), String.format("%d(sp)",i*4));
-                    return allRegs.get(emptyIndex);
+        //调用：第9个起的实参写到栈顶，前8个放进a0-a7。实参可能就在别的参数寄存器里，按并行赋值处理
+        private void generateLLVMCall(int inst){
+            IRFunction func = function;
+            int argNum = func.getOperandNum(inst) - 1;
+            for(int i = ARG_REG_NUM; i < argNum; i++){
+                asmBuilder.mem("sw", getOperandReg(inst, i + 1, "t0"), (i - ARG_REG_NUM) * 4, "sp");
+            }
+            List<String> dests = new ArrayList<>();
+            List<String> srcs = new ArrayList<>();
+            for(int i = 0; i < Math.min(argNum, ARG_REG_NUM); i++){
+                if(!isValueOperand(inst, i + 1)) continue;
+                LiveInterval interval = liveSpace[func.getOperandValue(inst, i + 1)];
+                if(!interval.isSpilled()){
+                    dests.add("a" + i);
+                    srcs.add(allRegs.get(interval.getReg()));
                 }
             }
+            generateParallelMoves(dests, srcs);
+            //常数、地址和溢出的实参不占用寄存器，最后再装入
+            for(int i = 0; i < Math.min(argNum, ARG_REG_NUM); i++){
+                if(isConst(inst, i + 1)){
+                    asmBuilder.op1("li", "a" + i, func.getOperandValue(inst, i + 1));
+                }else if(!isValueOperand(inst, i + 1) || liveSpace[func.getOperandValue(inst, i + 1)].isSpilled()){
+                    String reg = getOperandReg(inst, i + 1, "a" + i);
+                    if(!reg.equals("a" + i)){
+                        asmBuilder.op1("mv", "a" + i, reg);
+                    }
+                }
+            }
+            asmBuilder.op0("call", irModule.functions.get(func.getOperandValue(inst, 0)).name);
+            if(liveSpace[inst] != null){
+                String reg = allocateReg(inst);
+                if(!reg.equals("a0")){
+                    asmBuilder.op1("mv", reg, "a0");
+                }
+                spillReg(inst, reg);
+            }
+        }
+
+        private void generateLLVMAllocate(int inst){
+            //alloca出的变量直接放在分配好的寄存器或栈槽中，栈上数组在栈帧中有固定位置，都不需要生成代码
+        }
+
+        private void generateLLVMLoad(int inst){
+            if(isRematSpilled(inst)){
+                rematStoreNum++;
+                return;
+            }
+            if(isLocalVariable(inst, 0)){
+                //局部变量相当于mv
+                generateCopy(inst);
+                return;
+            }
+            String reg = allocateReg(inst);
+            Address address = getAddress(inst, 0, "t0");
+            asmBuilder.mem("lw", reg, address.offset, address.base);
+            spillReg(inst, reg);
         }
-        int bias = 0;
-        for(int i = stackArraySize-1; i >= 0; i--){
-            if(stackArray[i] == null){
-                stackArray[i] = allocateArray[index];
-                bias = i * 4;
-                break;
+
+        //COPY（被转发的全局变量load）和局部变量的load：把第0个操作数复制到结果
+        private void generateCopy(int inst){
+            if(isRematSpilled(inst)){
+                rematStoreNum++;
+                return;
+            }
+            String reg = allocateReg(inst);
+            String regL = getOperandReg(inst, 0, "t0");
+            if(!reg.equals(regL)){
+                asmBuilder.op1("mv", reg, regL);
             }
+            spillReg(inst, reg);
         }
-        asmBuilder.op1("sw", allRegs.get(index), String.format("%d(sp)",bias));
-        for(int i = stackArraySize-1; i >= 0; i--){
-            if(stackArray[i] != null && stackArray[i].equals(varName)){
-                stackArray[i] = null;
-                bias = i * 4;
-                break;
+
+        private void generateLLVMStore(int inst){
+            String reg = getOperandReg(inst, 0, "t0");
+            if(!isLocalVariable(inst, 1)){
+                Address address = getAddress(inst, 1, "t1");
+                asmBuilder.mem("sw", reg, address.offset, address.base);
+            }else{
+                LiveInterval interval = liveSpace[function.getOperandValue(inst, 1)];
+                if(isRematSpilled(interval.getValue())){
+                    rematStoreNum++;
+                }else if(interval.isSpilled()){
+                    asmBuilder.mem("sw", reg, slotOffset(interval), "sp");
+                    spillNum++;
+                }else if(!allRegs.get(interval.getReg()).equals(reg)){
+                    asmBuilder.op1("mv", allRegs.get(interval.getReg()), reg);
+                }
             }
         }
-        asmBuilder.op1("lw", allRegs.get(index), String.format("%d(sp)",bias));
-        allocateArray[index] = varName;
-        return allRegs.get(index);
-    }
 
-    private void cancelRegs(int line){
-        for (Map.Entry<String, int[]> entry : liveSpace.entrySet()){
-            if(entry.getValue()[1] < line){
-                String varName = entry.getKey();
-                for(int i = 0; i < allRegs.size(); i++){
-                    if(allocateArray[i] != null && allocateArray[i].equals(varName)){
-                        allocateArray[i] = null;
-                        break;
+        //GEP：基址加上各下标乘步长。常量地址不生成代码，在使用处重新算出
+        //前端为每一维单独生成GEP，每条GEP最多只有一个不是常数的下标；instcombine会把它们合并成有多个变量下标的GEP
+        private void generateLLVMGetElementPtr(int inst){
+            IRFunction func = function;
+            if(func.isConstantAddress(inst)) return;
+            String reg = allocateReg(inst);
+            int offset = 0;
+            List<Integer> varIndices = new ArrayList<>();
+            for(int k = 1; k < func.getOperandNum(inst); k++){
+                if(isConst(inst, k)){
+                    offset += func.getOperandValue(inst, k) * func.getOperandStride(inst, k);
+                }else{
+                    varIndices.add(k);
+                }
+            }
+            if(varIndices.isEmpty()){
+                addImmediate(reg, getOperandReg(inst, 0, "t0"), offset, "t1");
+            }else if(varIndices.size() == 1 || !reg.equals("t0")){
+                //结果寄存器与操作数的寄存器不同，可以直接用来累加。先算下标，乘步长时会用到t0
+                String index = scaleIndex(inst, varIndices.get(0));
+                asmBuilder.op2("add", reg, getOperandReg(inst, 0, "t0"), index);
+                for(int i = 1; i < varIndices.size(); i++){
+                    asmBuilder.op2("add", reg, reg, scaleIndex(inst, varIndices.get(i)));
+                }
+                addImmediate(reg, reg, offset, "t1");
+            }else{
+                //结果溢出时只有t0、t1可用，部分和先累加在结果的栈槽里
+                int slot = slotOffset(liveSpace[inst]);
+                String index = scaleIndex(inst, varIndices.get(0));
+                asmBuilder.op2("add", "t1", getOperandReg(inst, 0, "t0"), index);
+                for(int i = 1; i < varIndices.size(); i++){
+                    asmBuilder.mem("sw", "t1", slot, "sp");
+                    index = scaleIndex(inst, varIndices.get(i));
+                    asmBuilder.mem("lw", "t0", slot, "sp");
+                    asmBuilder.op2("add", "t1", "t0", index);
+                }
+                addImmediate(reg, "t1", offset, "t0");
+            }
+            spillReg(inst, reg);
+        }
+
+        //GEP的第k个操作数乘上步长，结果在返回的寄存器中（步长为1时就是下标所在的寄存器），只用到t0、t1
+        private String scaleIndex(int inst, int k){
+            String index = getOperandReg(inst, k, "t1");
+            int stride = function.getOperandStride(inst, k);
+            if(Integer.bitCount(stride) == 1){
+                if(stride > 1){
+                    asmBuilder.op2("slli", "t1", index, Integer.numberOfTrailingZeros(stride));
+                    index = "t1";
+                }
+            }else{
+                asmBuilder.op1("li", "t0", stride);
+                asmBuilder.op2("mul", "t1", index, "t0");
+                index = "t1";
+            }
+            return index;
+        }
+
+        private void generateLLVMBr(int inst){
+            int b = function.blockOf[inst];
+            //跳到布局中紧跟着的下一个块可以省略
+            int next = layout.getNext(b);
+            int rule = selector.getRule(inst, InstructionSelector.STMT);
+            if(rule == InstructionSelector.S_JUMP){
+                int target = function.getOperandValue(inst, 0);
+                if(target != next){
+                    asmBuilder.op0("j", blockLabel(target));
+                }
+                return;
+            }
+            Condition cond;
+            if(rule == InstructionSelector.S_BR_CMP){
+                cond = generateCondition(function.getOperandValue(inst, 0));
+            }else{
+                cond = new Condition(LLVMIntNE, getOperandReg(inst, 0, "t0"), "zero");
+            }
+            int trueBlock = function.getOperandValue(inst, 1);
+            int falseBlock = function.getOperandValue(inst, 2);
+            if(trueBlock == next){
+                generateBranch(InstructionSelector.invertPred(cond.pred), cond.lhs, cond.rhs, blockLabel(falseBlock));
+            }else{
+                generateBranch(cond.pred, cond.lhs, cond.rhs, blockLabel(trueBlock));
+                if(falseBlock != next){
+                    asmBuilder.op0("j", blockLabel(falseBlock));
+                }
+            }
+        }
+
+        //在块b的终结指令之前，为后继块中的phi写入从b流入的值
+        //流向phi所在块的边已由EdgeSplitter拆开，这样的b只有这一个后继，每条边上的phi都按并行赋值生成
+        //常数、全局变量的地址、可以重新计算的值不会被这些赋值覆盖，最后再装入
+        private void generatePhiMoves(int b){
+            IRFunction func = function;
+            if(func.successors[b].length != 1) return;
+            int succ = func.successors[b][0];
+            List<String> dests = new ArrayList<>();
+            List<String> srcs = new ArrayList<>();
+            List<int[]> loads = new ArrayList<>();
+            for(int phi = func.blockStart[succ]; phi < func.blockEnd[succ] && func.opcode[phi] == LLVMPHI; phi++){
+                for(int i = 0; i + 1 < func.getOperandNum(phi); i += 2){
+                    if(func.getOperandValue(phi, i + 1) != b) continue;
+                    if(isRematSpilled(phi)){
+                        rematStoreNum++;
+                        continue;
                     }
+                    if(!isValueOperand(phi, i) || isRematSpilled(func.getOperandValue(phi, i))){
+                        loads.add(new int[]{phi, i});
+                        continue;
+                    }
+                    String dest = location(phi), src = location(func.getOperandValue(phi, i));
+                    if(dest.equals(src)) continue;
+                    if(dest.endsWith("(sp)")) spillNum++;
+                    if(src.endsWith("(sp)")) reloadNum++;
+                    dests.add(dest);
+                    srcs.add(src);
                 }
-                for(int i = 0; i < stackArraySize; i++){
-                    if(stackArray[i] != null && stackArray[i].equals(varName)){
-                        stackArray[i] = null;
-                        break;
+            }
+            generateParallelMoves(dests, srcs);
+            for(int[] load : loads){
+                int phi = load[0], i = load[1];
+                String reg = allocateReg(phi);
+                if(isConst(phi, i)){
+                    asmBuilder.op1("li", reg, func.getOperandValue(phi, i));
+                }else{
+                    //全局变量的地址（优化之后指针也可能是phi的操作数）用la装入
+                    String src = getOperandReg(phi, i, "t1");
+                    if(!reg.equals(src)){
+                        asmBuilder.op1("mv", reg, src);
                     }
                 }
+                spillReg(phi, reg);
+            }
+        }
+
+        //按选择器选中的规则，把inst的值算到dest中。nt为REG表示inst是树根，为DEST表示inst折叠在父结点中
+        private void generateSelected(int inst, int nt, String dest){
+            int rule = selector.getRule(inst, nt);
+            switch (rule){
+                case InstructionSelector.R_ADD:
+                    generateOp2(inst, "add", dest);
+                    break;
+                case InstructionSelector.R_SUB:
+                    generateOp2(inst, "sub", dest);
+                    break;
+                case InstructionSelector.R_MUL:
+                    generateOp2(inst, "mul", dest);
+                    break;
+                case InstructionSelector.R_DIV:
+                    generateOp2(inst, "div", dest);
+                    break;
+                case InstructionSelector.R_REM:
+                    generateOp2(inst, "rem", dest);
+                    break;
+                case InstructionSelector.R_XOR:
+                    generateOp2(inst, "xor", dest);
+                    break;
+                case InstructionSelector.R_ADDI:
+                    asmBuilder.op2("addi", dest, getOperandReg(inst, 0, "t0"), function.getOperandValue(inst, 1));
+                    break;
+                case InstructionSelector.R_ADDI_SWAP:
+                    asmBuilder.op2("addi", dest, getOperandReg(inst, 1, "t0"), function.getOperandValue(inst, 0));
+                    break;
+                case InstructionSelector.R_SUBI:
+                    asmBuilder.op2("addi", dest, getOperandReg(inst, 0, "t0"), -function.getOperandValue(inst, 1));
+                    break;
+                case InstructionSelector.R_XORI:
+                    asmBuilder.op2("xori", dest, getOperandReg(inst, 0, "t0"), function.getOperandValue(inst, 1));
+                    break;
+                case InstructionSelector.R_SLLI:
+                    asmBuilder.op2("slli", dest, getOperandReg(inst, 0, "t0"), Integer.numberOfTrailingZeros(function.getOperandValue(inst, 1)));
+                    break;
+                case InstructionSelector.R_SLLI_SWAP:
+                    asmBuilder.op2("slli", dest, getOperandReg(inst, 1, "t0"), Integer.numberOfTrailingZeros(function.getOperandValue(inst, 0)));
+                    break;
+                case InstructionSelector.R_MULC:
+                    StrengthReduction.emitMul(asmBuilder, dest, getOperandReg(inst, 0, "t0"), function.getOperandValue(inst, 1), "t1");
+                    break;
+                case InstructionSelector.R_MULC_SWAP:
+                    StrengthReduction.emitMul(asmBuilder, dest, getOperandReg(inst, 1, "t0"), function.getOperandValue(inst, 0), "t1");
+                    break;
+                case InstructionSelector.R_DIVC:
+                    generateDivConst(inst, dest);
+                    break;
+                case InstructionSelector.R_REMC:
+                    generateRemConst(inst, dest);
+                    break;
+                case InstructionSelector.R_SET:
+                    generateSet(selector.cmpPred(inst), dest,
+                            getOperandReg(inst, selector.cmpLhs(inst), "t0"), getOperandReg(inst, selector.cmpRhs(inst), "t1"));
+                    break;
+                case InstructionSelector.R_SETI:
+                    generateSetImm(selector.cmpPred(inst), dest,
+                            getOperandReg(inst, selector.cmpLhs(inst), "t0"), function.getOperandValue(inst, selector.cmpRhs(inst)));
+                    break;
+                case InstructionSelector.R_SETZ:
+                    asmBuilder.op1(selector.cmpPred(inst) == LLVMIntEQ ? "seqz" : "snez", dest, getOperandReg(inst, selector.cmpLhs(inst), "t0"));
+                    break;
+                case InstructionSelector.R_BINARY:
+                    generateOp2(inst, InstructionSelector.binaryOp(function.opcode[inst], false), dest);
+                    break;
+                case InstructionSelector.R_BINARY_IMM:
+                    asmBuilder.op2(InstructionSelector.binaryOp(function.opcode[inst], true), dest,
+                            getOperandReg(inst, 0, "t0"), function.getOperandValue(inst, 1));
+                    break;
+                case InstructionSelector.R_SEXT:
+                    asmBuilder.op1("neg", dest, getOperandReg(inst, 0, "t0"));
+                    break;
+                case InstructionSelector.R_TRUNC:
+                    asmBuilder.op2("andi", dest, getOperandReg(inst, 0, "t0"), 1);
+                    break;
+                case InstructionSelector.R_SELECT:
+                    generateSelect(inst, dest);
+                    break;
+                case InstructionSelector.R_ZEXT_MV:
+                    String src = getOperandReg(inst, 0, "t0");
+                    if(!src.equals(dest)){
+                        asmBuilder.op1("mv", dest, src);
+                    }
+                    break;
+                case InstructionSelector.R_ZEXT_DEST:
+                    generateSelected(function.getOperandValue(inst, 0), InstructionSelector.DEST, dest);
+                    break;
+                case InstructionSelector.R_BOOL_PASS:
+                    generateSelected(function.getOperandValue(inst, selector.cmpLhs(inst)), InstructionSelector.DEST, dest);
+                    break;
+                default:
+                    throw new IllegalStateException("no code for rule " + rule + " in " + function.name + ": " + instText(inst));
+            }
+        }
+
+        private void generateOp2(int inst, String opText, String dest){
+            String regL = getOperandReg(inst, 0, "t0");
+            String regR = getOperandReg(inst, 1, "t1");
+            asmBuilder.op2(opText, dest, regL, regR);
+        }
+
+        //select c, a, b：dest = b ^ ((a ^ b) & -c)。c只有0、1两种值，-c是全0或全1的掩码
+        //a ^ b占用t0，之后c和b都用t1装入，b要读两次
+        private void generateSelect(int inst, String dest){
+            String a = getOperandReg(inst, 1, "t0");
+            String b = getOperandReg(inst, 2, "t1");
+            asmBuilder.op2("xor", "t0", a, b);
+            asmBuilder.op1("neg", "t1", getOperandReg(inst, 0, "t1"));
+            asmBuilder.op2("and", "t0", "t0", "t1");
+            asmBuilder.op2("xor", dest, getOperandReg(inst, 2, "t1"), "t0");
+        }
+
+        //除以常数，商不能直接写进和被除数相同的寄存器
+        private void generateDivConst(int inst, String dest){
+            String n = getOperandReg(inst, 0, "t1");
+            String q = dest.equals(n) ? "t0" : dest;
+            StrengthReduction.emitDiv(asmBuilder, q, n, function.getOperandValue(inst, 1), "t1");
+            if(!q.equals(dest)){
+                asmBuilder.op1("mv", dest, q);
+            }
+        }
+
+        //对常数取余：商算到t0，乘回|d|后用被除数减去。被除数在t1中且t1被用作临时寄存器时重新装入
+        private void generateRemConst(int inst, String dest){
+            int d = Math.abs(function.getOperandValue(inst, 1));
+            String n = getOperandReg(inst, 0, "t1");
+            if(d == 1){
+                asmBuilder.op1("mv", dest, "zero");
+                return;
+            }
+            StrengthReduction.emitDiv(asmBuilder, "t0", n, d, "t1");
+            if(StrengthReduction.mulSize(d) != -1){
+                StrengthReduction.emitMul(asmBuilder, "t0", "t0", d, "t1");
+            }else{
+                asmBuilder.op1("li", "t1", d);
+                asmBuilder.op2("mul", "t0", "t0", "t1");
+            }
+            if(n.equals("t1") && !InstructionSelector.isPowerOfTwo(d)){
+                n = getOperandReg(inst, 0, "t1");
+            }
+            asmBuilder.op2("sub", dest, n, "t0");
+        }
+
+        //比较结果写入寄存器，无符号比较用sltu
+        private void generateSet(int pred, String dest, String lhs, String rhs){
+            String slt = InstructionSelector.isUnsigned(pred) ? "sltu" : "slt";
+            pred = InstructionSelector.toSigned(pred);
+            if(pred == LLVMIntSLT){
+                asmBuilder.op2(slt, dest, lhs, rhs);
+            }else if(pred == LLVMIntSGT){
+                asmBuilder.op2(slt, dest, rhs, lhs);
+            }else if(pred == LLVMIntSLE){
+                asmBuilder.op2(slt, dest, rhs, lhs);
+                asmBuilder.op2("xori", dest, dest, 1);
+            }else if(pred == LLVMIntSGE){
+                asmBuilder.op2(slt, dest, lhs, rhs);
+                asmBuilder.op2("xori", dest, dest, 1);
+            }else{
+                asmBuilder.op2("xor", dest, lhs, rhs);
+                asmBuilder.op1(pred == LLVMIntEQ ? "seqz" : "snez", dest, dest);
+            }
+        }
+
+        //右操作数为立即数的比较，a <= c 即 a < c + 1
+        private void generateSetImm(int pred, String dest, String lhs, int imm){
+            String slti = InstructionSelector.isUnsigned(pred) ? "sltiu" : "slti";
+            pred = InstructionSelector.toSigned(pred);
+            if(pred == LLVMIntSLT){
+                asmBuilder.op2(slti, dest, lhs, imm);
+            }else if(pred == LLVMIntSLE){
+                asmBuilder.op2(slti, dest, lhs, imm + 1);
+            }else if(pred == LLVMIntSGT){
+                asmBuilder.op2(slti, dest, lhs, imm + 1);
+                asmBuilder.op2("xori", dest, dest, 1);
+            }else if(pred == LLVMIntSGE){
+                asmBuilder.op2(slti, dest, lhs, imm);
+                asmBuilder.op2("xori", dest, dest, 1);
+            }else{
+                asmBuilder.op2("xori", dest, lhs, imm);
+                asmBuilder.op1(pred == LLVMIntEQ ? "seqz" : "snez", dest, dest);
+            }
+        }
+
+        //折叠进条件跳转的比较，只准备好操作数，不生成比较指令
+        private Condition generateCondition(int inst){
+            int rule = selector.getRule(inst, InstructionSelector.CMP);
+            Condition cond;
+            switch (rule){
+                case InstructionSelector.C_ICMP:
+                    return new Condition(selector.cmpPred(inst),
+                            getOperandReg(inst, selector.cmpLhs(inst), "t0"), getOperandReg(inst, selector.cmpRhs(inst), "t1"));
+                case InstructionSelector.C_ZEXT:
+                    return generateCondition(function.getOperandValue(inst, 0));
+                case InstructionSelector.C_ZEXT_REG:
+                    return new Condition(LLVMIntNE, getOperandReg(inst, 0, "t0"), "zero");
+                case InstructionSelector.C_NOT:
+                    cond = generateCondition(function.getOperandValue(inst, 0));
+                    cond.pred = InstructionSelector.invertPred(cond.pred);
+                    return cond;
+                default:
+                    cond = generateCondition(function.getOperandValue(inst, selector.cmpLhs(inst)));
+                    if(selector.cmpPred(inst) == LLVMIntEQ){
+                        cond.pred = InstructionSelector.invertPred(cond.pred);
+                    }
+                    return cond;
+            }
+        }
+
+        //条件跳转，和0比较时使用beqz等伪指令，无符号比较没有这种形式
+        private void generateBranch(int pred, String lhs, String rhs, String target){
+            if(lhs.equals("zero") && !rhs.equals("zero")){
+                String temp = lhs;
+                lhs = rhs;
+                rhs = temp;
+                pred = InstructionSelector.swapPred(pred);
+            }
+            if(rhs.equals("zero") && !InstructionSelector.isUnsigned(pred)){
+                asmBuilder.op1(branchOp(pred) + "z", lhs, target);
+            }else{
+                asmBuilder.op2(branchOp(pred), lhs, rhs, target);
+            }
+        }
+
+        private String branchOp(int pred){
+            if(pred == LLVMIntEQ) return "beq";
+            if(pred == LLVMIntNE) return "bne";
+            if(pred == LLVMIntSLT) return "blt";
+            if(pred == LLVMIntSGE) return "bge";
+            if(pred == LLVMIntSGT) return "bgt";
+            if(pred == LLVMIntSLE) return "ble";
+            if(pred == LLVMIntULT) return "bltu";
+            if(pred == LLVMIntUGE) return "bgeu";
+            if(pred == LLVMIntUGT) return "bgtu";
+            return "bleu";
+        }
+
+        private boolean isConst(int inst, int i){
+            return function.getOperandKind(inst, i) == IRFunction.CONST;
+        }
+
+        //获取第i个操作数所在的寄存器，常数0直接用zero，其余常数用li装入scratch，全局变量的地址用la装入scratch
+        private String getOperandReg(int inst, int i, String scratch){
+            int kind = function.getOperandKind(inst, i);
+            int value = function.getOperandValue(inst, i);
+            if(kind == IRFunction.CONST){
+                if(value == 0) return "zero";
+                asmBuilder.op1("li", scratch, value);
+                return scratch;
+            }else if(kind == IRFunction.GLOBAL){
+                return loadGlobalAddress(value, 0, scratch);
+            }else if(kind == IRFunction.ADDRESS){
+                return loadGlobalAddress(function.addressGlobal[value], function.addressOffset[value], scratch);
+            }
+            return getReg(value, scratch);
+        }
+
+        private String loadGlobalAddress(int global, int offset, String scratch){
+            String name = irModule.globalNames.get(global);
+            asmBuilder.op1("la", scratch, offset == 0 ? name : name + "+" + offset);
+            return scratch;
+        }
+
+        //把常量地址算到scratch中：全局变量用la，栈上数组用sp加上它在栈帧中的偏移
+        private String loadConstantAddress(int value, String scratch){
+            int offset = function.getAddressOffset(value);
+            if(function.getAddressBaseKind(value) == IRFunction.GLOBAL){
+                return loadGlobalAddress(function.getAddressBase(value), offset, scratch);
+            }
+            int spOffset = frame.getArrayOffset(function.getAddressBase(value)) + offset;
+            if(spOffset == 0) return "sp";
+            addImmediate(scratch, "sp", spOffset, scratch);
+            return scratch;
+        }
+
+        //load、store的地址offset(base)
+        private class Address {
+            private final String base;
+            private final int offset;
+
+            Address(String base, int offset){
+                this.base = base;
+                this.offset = offset;
+            }
+        }
+
+        //第i个操作数作为load、store的地址。常量地址的偏移尽量放进lw、sw的立即数：全局变量先la出变量本身，栈上数组直接相对sp
+        private Address getAddress(int inst, int i, String scratch){
+            IRFunction func = function;
+            int kind = func.getOperandKind(inst, i);
+            int value = func.getOperandValue(inst, i);
+            int baseKind = -1, base = 0, offset = 0;
+            if(kind == IRFunction.GLOBAL){
+                baseKind = IRFunction.GLOBAL;
+                base = value;
+            }else if(kind == IRFunction.ADDRESS){
+                baseKind = IRFunction.GLOBAL;
+                base = func.addressGlobal[value];
+                offset = func.addressOffset[value];
+            }else if(kind == IRFunction.VALUE && func.isConstantAddress(value)){
+                baseKind = func.getAddressBaseKind(value);
+                base = func.getAddressBase(value);
+                offset = func.getAddressOffset(value);
+            }
+            if(baseKind == IRFunction.GLOBAL && isImm12(offset)){
+                return new Address(loadGlobalAddress(base, 0, scratch), offset);
+            }else if(baseKind == IRFunction.GLOBAL){
+                return new Address(loadGlobalAddress(base, offset, scratch), 0);
+            }else if(baseKind == IRFunction.VALUE){
+                int spOffset = frame.getArrayOffset(base) + offset;
+                if(isImm12(spOffset)) return new Address("sp", spOffset);
+                addImmediate(scratch, "sp", spOffset, scratch);
+                return new Address(scratch, 0);
+            }
+            return new Address(getOperandReg(inst, i, scratch), 0);
+        }
+
+        private boolean isImm12(int imm){
+            return imm >= -2048 && imm < 2048;
+        }
+
+        //dest = src + imm，立即数超出12位时先用li装入temp，temp可以与dest相同但不能与src相同
+        private void addImmediate(String dest, String src, int imm, String temp){
+            if(imm == 0){
+                if(!dest.equals(src)) asmBuilder.op1("mv", dest, src);
+            }else if(isImm12(imm)){
+                asmBuilder.op2("addi", dest, src, imm);
+            }else{
+                asmBuilder.op1("li", temp, imm);
+                asmBuilder.op2("add", dest, src, temp);
+            }
+        }
+
+        //溢出了但可以重新计算的值，定值处不用生成代码
+        private boolean isRematSpilled(int value){
+            LiveInterval interval = liveSpace[value];
+            return interval.isRematerializable() && interval.isSpilled();
+        }
+
+        //获取定值的目标寄存器。溢出到栈上的变量先写入临时寄存器t0，再由spillReg写回栈槽
+        private String allocateReg(int value){
+            LiveInterval interval = liveSpace[value];
+            return interval.isSpilled() ? "t0" : allRegs.get(interval.getReg());
+        }
+
+        private void spillReg(int value, String reg){
+            LiveInterval interval = liveSpace[value];
+            if(isRematSpilled(value)){
+                rematStoreNum++;
+            }else if(interval.isSpilled()){
+                asmBuilder.mem("sw", reg, slotOffset(interval), "sp");
+                spillNum++;
+            }
+        }
+
+        //获取使用值所在的寄存器。溢出到栈上的变量先加载到临时寄存器scratch中，可以重新计算的值直接用li装入
+        private String getReg(int value, String scratch){
+            if(function.isConstantAddress(value)){
+                return loadConstantAddress(value, scratch);
+            }
+            LiveInterval interval = liveSpace[value];
+            if(isRematSpilled(value)){
+                asmBuilder.op1("li", scratch, remat.getConstant(value));
+                rematLoadNum++;
+                return scratch;
+            }
+            if(interval.isSpilled()){
+                asmBuilder.mem("lw", scratch, slotOffset(interval), "sp");
+                reloadNum++;
+                return scratch;
             }
+            return allRegs.get(interval.getReg());
         }
     }
 }
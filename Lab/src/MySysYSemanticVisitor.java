@@ -136,7 +136,7 @@ public class MySysYSemanticVisitor<T extends Void> extends SysYParserBaseVisitor
         return null; //上面已经Visit过了，这里不能再Visit，因此直接return null
     }
 
-    //为了降低实验难度，我们保证测试用例中的函数参数不会为多维（二维及以上）数组
+    //数组形参有几对方括号就是几维数组，第一维的长度省略
     @Override
     public Void visitFuncFParam(SysYParser.FuncFParamContext ctx) {
         String constName = ctx.IDENT().getText();
@@ -144,7 +144,10 @@ public class MySysYSemanticVisitor<T extends Void> extends SysYParserBaseVisitor
             handleSemanticError(SemanticErrorType.VarRepeatDeclare, ctx.IDENT().getSymbol().getLine());
             return null;
         }
-        Type type = (ctx.getChildCount() == 2 ? new TypeBasic() : new TypeArray(new TypeBasic()));
+        Type type = new TypeBasic();
+        for(int i = 0; i < ctx.L_BRACKT().size(); i++){
+            type = new TypeArray(type);
+        }
         currentScope.addSymbol(constName, type);
         return super.visitFuncFParam(ctx);
     }
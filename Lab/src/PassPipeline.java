@@ -0,0 +1,199 @@
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.llvm.LLVM.*;
+import org.bytedeco.llvm.global.LLVM;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//交给后端之前在module上运行的LLVM优化pass序列（legacy pass manager）
+//每个pass单独放进一个pass manager运行，可以分别计时，统计前后的指令数
+//ipcp、inline不是LLVM的pass，分别由ConstantPropagation、Inliner在Java中完成
+//最后总是运行lowerswitch：instcombine、simplifycfg可能把比较链合并成switch，后端只处理br
+//前端在return、break之后还会往同一个块里生成不可达的指令，这不是合法的IR，运行pass之前先删掉
+public class PassPipeline {
+    //pass名 -> 把它加入pass manager的函数，名字与opt的命令行选项相同
+    private static final LinkedHashMap<String, Consumer<LLVMPassManagerRef>> PASSES = new LinkedHashMap<>();
+
+    static {
+        PASSES.put("mem2reg", LLVM::LLVMAddPromoteMemoryToRegisterPass);
+        PASSES.put("instcombine", LLVM::LLVMAddInstructionCombiningPass);
+        PASSES.put("simplifycfg", LLVM::LLVMAddCFGSimplificationPass);
+        PASSES.put("early-cse", LLVM::LLVMAddEarlyCSEPass);
+        PASSES.put("gvn", LLVM::LLVMAddGVNPass);
+        PASSES.put("sccp", LLVM::LLVMAddSCCPPass);
+        PASSES.put("reassociate", LLVM::LLVMAddReassociatePass);
+        PASSES.put("loop-rotate", LLVM::LLVMAddLoopRotatePass);
+        PASSES.put("licm", LLVM::LLVMAddLICMPass);
+        PASSES.put("indvars", LLVM::LLVMAddIndVarSimplifyPass);
+        PASSES.put("loop-deletion", LLVM::LLVMAddLoopDeletionPass);
+        PASSES.put("dse", LLVM::LLVMAddDeadStoreEliminationPass);
+        PASSES.put("adce", LLVM::LLVMAddAggressiveDCEPass);
+        PASSES.put("globaldce", LLVM::LLVMAddGlobalDCEPass);
+    }
+
+    private static final String IPCP = "ipcp";
+    private static final String INLINE = "inline";
+
+    private final List<String> passes = new ArrayList<>();
+    private boolean printTimes = false;
+    private int inlineThreshold = 40;
+
+    //-O0不运行任何pass；-O1先在编译时求出常数参数的纯函数调用、内联小函数，再做局部的化简；-O2再加上全局值编号、循环不变量外提，之后再化简一遍
+    public static PassPipeline forLevel(int level){
+        PassPipeline pipeline = new PassPipeline();
+        if(level >= 1){
+            pipeline.add(IPCP);
+            pipeline.add(INLINE);
+            pipeline.add("mem2reg");
+            pipeline.add("instcombine");
+            pipeline.add("simplifycfg");
+        }
+        if(level >= 2){
+            pipeline.add("early-cse");
+            pipeline.add("gvn");
+            pipeline.add("loop-rotate");
+            pipeline.add("licm");
+            pipeline.add("instcombine");
+            pipeline.add("simplifycfg");
+            pipeline.add("adce");
+        }
+        return pipeline;
+    }
+
+    //按"mem2reg,instcombine,gvn"的形式指定pass序列，按给出的顺序运行，可以重复
+    public static PassPipeline parse(String spec){
+        PassPipeline pipeline = new PassPipeline();
+        for(String item : spec.split(",")){
+            if(!item.trim().isEmpty()) pipeline.add(item.trim());
+        }
+        return pipeline;
+    }
+
+    public void add(String pass){
+        if(!PASSES.containsKey(pass) && !pass.equals(IPCP) && !pass.equals(INLINE)){
+            throw new IllegalArgumentException("unknown pass: " + pass + ", available: " + IPCP + "," + INLINE + ","
+                    + String.join(",", PASSES.keySet()));
+        }
+        passes.add(pass);
+    }
+
+    public List<String> getPasses(){
+        return passes;
+    }
+
+    public void setPrintTimes(boolean printTimes){
+        this.printTimes = printTimes;
+    }
+
+    //被调函数不超过这么多条指令才内联，循环中的调用处加倍
+    public void setInlineThreshold(int inlineThreshold){
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    public void run(LLVMModuleRef module){
+        if(passes.isEmpty()) return;
+        removeDeadTails(module);
+        BytePointer error = new BytePointer();
+        if(LLVMVerifyModule(module, LLVMReturnStatusAction, error) != 0){
+            throw new IllegalStateException("invalid module before optimization: " + error.getString());
+        }
+        LLVMDisposeMessage(error);
+        long total = 0;
+        for(String pass : passes){
+            if(pass.equals(IPCP)){
+                total += runConstantPropagation(module);
+            }else if(pass.equals(INLINE)){
+                total += runInliner(module);
+            }else{
+                total += runPass(module, pass, PASSES.get(pass));
+            }
+        }
+        total += runPass(module, "lowerswitch", LLVM::LLVMAddLowerSwitchPass);
+        if(printTimes){
+            System.err.printf("passes: %.3f ms total%n", total / 1e6);
+        }
+    }
+
+    //返回运行时间（纳秒）
+    private long runPass(LLVMModuleRef module, String name, Consumer<LLVMPassManagerRef> adder){
+        int before = printTimes ? countInstructions(module) : 0;
+        LLVMPassManagerRef passManager = LLVMCreatePassManager();
+        adder.accept(passManager);
+        long start = System.nanoTime();
+        LLVMRunPassManager(passManager, module);
+        long time = System.nanoTime() - start;
+        LLVMDisposePassManager(passManager);
+        if(printTimes){
+            System.err.printf("pass %s: %.3f ms, %d -> %d instructions%n", name, time / 1e6, before, countInstructions(module));
+        }
+        return time;
+    }
+
+    private long runConstantPropagation(LLVMModuleRef module){
+        int before = printTimes ? countInstructions(module) : 0;
+        ConstantPropagation propagation = new ConstantPropagation(module);
+        long start = System.nanoTime();
+        propagation.run();
+        long time = System.nanoTime() - start;
+        if(printTimes){
+            System.err.printf("pass %s: %.3f ms, %d -> %d instructions, %d pure functions, %d calls evaluated, %d arguments propagated%n",
+                    IPCP, time / 1e6, before, countInstructions(module), propagation.getPureFunctions(),
+                    propagation.getEvaluatedCalls(), propagation.getPropagatedArguments());
+        }
+        return time;
+    }
+
+    private long runInliner(LLVMModuleRef module){
+        int before = printTimes ? countInstructions(module) : 0;
+        Inliner inliner = new Inliner(module, inlineThreshold);
+        long start = System.nanoTime();
+        inliner.run();
+        long time = System.nanoTime() - start;
+        if(printTimes){
+            System.err.printf("pass %s: %.3f ms, %d -> %d instructions, %d calls inlined (%d in loops), %d functions removed%n",
+                    INLINE, time / 1e6, before, countInstructions(module),
+                    inliner.getInlinedCalls(), inliner.getInlinedInLoops(), inliner.getRemovedFunctions());
+        }
+        return time;
+    }
+
+    //删除每个块中第一条终结指令之后的指令。它们只可能被同一段不可达代码使用，先把使用替换成undef再倒序删除
+    private static void removeDeadTails(LLVMModuleRef module){
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+                LLVMValueRef term = LLVMGetFirstInstruction(bb);
+                while(term != null && LLVMIsATerminatorInst(term) == null){
+                    term = LLVMGetNextInstruction(term);
+                }
+                if(term == null) continue;
+                List<LLVMValueRef> tail = new ArrayList<>();
+                for(LLVMValueRef inst = LLVMGetNextInstruction(term); inst != null; inst = LLVMGetNextInstruction(inst)){
+                    tail.add(inst);
+                }
+                for(int i = tail.size() - 1; i >= 0; i--){
+                    LLVMValueRef inst = tail.get(i);
+                    if(LLVMGetFirstUse(inst) != null){
+                        LLVMReplaceAllUsesWith(inst, LLVMGetUndef(LLVMTypeOf(inst)));
+                    }
+                    LLVMInstructionEraseFromParent(inst);
+                }
+            }
+        }
+    }
+
+    private static int countInstructions(LLVMModuleRef module){
+        int count = 0;
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+                for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+//窥孔优化：对一个函数记录下来的汇编反复套用规则，直到没有规则能再改写为止
+//规则可以通过addRule自行添加，每条规则各自统计命中次数
+public class PeepholeOptimizer {
+    //向前/向后查找配对指令时最多看多少条
+    public static final int WINDOW = 8;
+    //最多重复扫描的遍数，规则之间可能互相产生新的机会，但一般两三遍就收敛了
+    private static final int MAX_PASSES = 4;
+
+    private final List<PeepholeRule> rules = new ArrayList<>();
+    private final int[] hits;
+
+    public PeepholeOptimizer(List<PeepholeRule> rules){
+        this.rules.addAll(rules);
+        this.hits = new int[rules.size()];
+    }
+
+    //默认规则集
+    public static List<PeepholeRule> defaultRules(){
+        List<PeepholeRule> rules = new ArrayList<>();
+        rules.add(new SelfMoveRule());
+        rules.add(new ForwardMoveRule());
+        rules.add(new StoreLoadRule());
+        rules.add(new ImmediateRule());
+        rules.add(new RepeatedAddressRule());
+        return rules;
+    }
+
+    public void run(AsmInstList insts){
+        for(int pass = 0; pass < MAX_PASSES; pass++){
+            boolean changed = false;
+            for(int i = 0; i < insts.size(); i++){
+                AsmInst inst = insts.get(i);
+                if(inst.deleted || inst.isNewline()) continue;
+                for(int r = 0; r < rules.size(); r++){
+                    if(rules.get(r).apply(insts, i)){
+                        hits[r]++;
+                        changed = true;
+                        if(insts.get(i).deleted) break;
+                    }
+                }
+            }
+            if(!changed) break;
+        }
+    }
+
+    public List<PeepholeRule> getRules(){
+        return rules;
+    }
+
+    public int getHits(int r){
+        return hits[r];
+    }
+
+    //把另一个优化器的命中次数累加进来，并行生成时每个函数各用一个优化器，最后再汇总
+    public void addHits(PeepholeOptimizer other){
+        for(int r = 0; r < hits.length; r++){
+            hits[r] += other.hits[r];
+        }
+    }
+
+    //立即数能否放进I型指令的12位有符号立即数
+    private static boolean fitsImm12(long value){
+        return value >= -2048 && value <= 2047;
+    }
+
+    //t0、t1只在一条IR指令的展开内部使用，判断死活只需要看到基本块结束
+    private static boolean isScratch(String reg){
+        return reg.equals("t0") || reg.equals("t1");
+    }
+
+    //mv x, x
+    public static class SelfMoveRule implements PeepholeRule {
+        @Override
+        public String getName() {
+            return "self-move";
+        }
+
+        @Override
+        public boolean apply(AsmInstList insts, int i) {
+            AsmInst inst = insts.get(i);
+            if(inst.format == AsmInst.OP1 && inst.op.equals("mv") && inst.dest.equals(inst.lhs)){
+                insts.delete(i);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    //先算到临时寄存器再mv过去：li t0, 5; mv a0, t0 => li a0, 5
+    public static class ForwardMoveRule implements PeepholeRule {
+        @Override
+        public String getName() {
+            return "forward-move";
+        }
+
+        @Override
+        public boolean apply(AsmInstList insts, int i) {
+            AsmInst def = insts.get(i);
+            String reg = def.getDef();
+            if(reg == null || !isScratch(reg)) return false;
+            int j = insts.next(i);
+            if(j == -1) return false;
+            AsmInst move = insts.get(j);
+            if(move.format != AsmInst.OP1 || !move.op.equals("mv") || !move.lhs.equals(reg)) return false;
+            if(!insts.isDeadAfter(j, reg)) return false;
+            def.dest = move.dest;
+            insts.delete(j);
+            return true;
+        }
+    }
+
+    //sw r, off(sp) 紧接着 lw r2, off(sp)：直接用r，r2不同时改成mv
+    public static class StoreLoadRule implements PeepholeRule {
+        @Override
+        public String getName() {
+            return "store-load";
+        }
+
+        @Override
+        public boolean apply(AsmInstList insts, int i) {
+            AsmInst store = insts.get(i);
+            if(store.format != AsmInst.MEM || !store.op.equals("sw")) return false;
+            int j = insts.next(i);
+            if(j == -1) return false;
+            AsmInst load = insts.get(j);
+            if(load.format != AsmInst.MEM || !load.op.equals("lw")) return false;
+            if(!load.lhs.equals(store.lhs) || load.imm != store.imm) return false;
+            //sw t0, 0(t0)这种基址本身被覆盖的情况不会出现，但还是保守地排除
+            if(store.dest.equals(store.lhs)) return false;
+            if(load.dest.equals(store.dest)){
+                insts.delete(j);
+            }else{
+                load.format = AsmInst.OP1;
+                load.op = "mv";
+                load.lhs = store.dest;
+                load.hasImm = false;
+                load.imm = 0;
+            }
+            return true;
+        }
+    }
+
+    //li t, c 之后的运算只用到一次t时，改成对应的立即数指令，例如 li t0, 5; add a1, a2, t0 => addi a1, a2, 5
+    public static class ImmediateRule implements PeepholeRule {
+        private static final HashMap<String, String> immOps = new HashMap<>();
+        static {
+            immOps.put("add", "addi");
+            immOps.put("and", "andi");
+            immOps.put("or", "ori");
+            immOps.put("xor", "xori");
+            immOps.put("slt", "slti");
+            immOps.put("sltu", "sltiu");
+            immOps.put("sll", "slli");
+            immOps.put("sra", "srai");
+            immOps.put("srl", "srli");
+        }
+
+        @Override
+        public String getName() {
+            return "li-to-imm";
+        }
+
+        @Override
+        public boolean apply(AsmInstList insts, int i) {
+            AsmInst li = insts.get(i);
+            if(li.format != AsmInst.OP1 || !li.op.equals("li") || !isScratch(li.dest)) return false;
+            String reg = li.dest;
+            //在窗口内找第一条读取reg的指令，中间不能有改写reg的指令
+            int j = i;
+            for(int k = 0; k < WINDOW; k++){
+                j = insts.next(j);
+                if(j == -1) return false;
+                AsmInst inst = insts.get(j);
+                if(inst.isBarrier()) return false;
+                if(inst.reads(reg)) break;
+                if(inst.writes(reg)) return false;
+                if(k == WINDOW - 1) return false;
+            }
+            AsmInst use = insts.get(j);
+            if(use.format != AsmInst.OP2 || use.hasImm || use.isBranch()) return false;
+            if(!insts.isDeadAfter(j, reg) && !use.writes(reg)) return false;
+            String other;
+            if(use.rhs.equals(reg) && !use.lhs.equals(reg)){
+                other = use.lhs;
+            }else if(use.lhs.equals(reg) && !use.rhs.equals(reg) && isCommutative(use.op)){
+                other = use.rhs;
+            }else{
+                return false;
+            }
+            long value = li.imm;
+            String newOp;
+            if(use.op.equals("sub")){
+                newOp = "addi";
+                value = -value;
+            }else{
+                newOp = immOps.get(use.op);
+            }
+            if(newOp == null) return false;
+            if(newOp.endsWith("li") || newOp.equals("srai")){
+                if(value < 0 || value > 31) return false;
+            }else if(!fitsImm12(value)){
+                return false;
+            }
+            use.op = newOp;
+            use.lhs = other;
+            use.rhs = null;
+            use.imm = (int) value;
+            use.hasImm = true;
+            insts.delete(i);
+            return true;
+        }
+
+        private static boolean isCommutative(String op){
+            return op.equals("add") || op.equals("and") || op.equals("or") || op.equals("xor");
+        }
+    }
+
+    //窗口内重复的 la r, g：前面的地址还在寄存器里时直接复用
+    public static class RepeatedAddressRule implements PeepholeRule {
+        @Override
+        public String getName() {
+            return "repeated-la";
+        }
+
+        @Override
+        public boolean apply(AsmInstList insts, int i) {
+            AsmInst la = insts.get(i);
+            if(!la.isAddress()) return false;
+            //往前找同一个符号的la，一直找到基本块开头，中间不能改写它的目标寄存器
+            //全局变量的地址因此可以在整个基本块内留在寄存器里，不受WINDOW的限制
+            String prevReg = null;
+            int j = i;
+            HashSet<String> written = new HashSet<>();
+            while(true){
+                j = insts.prev(j);
+                if(j == -1) return false;
+                AsmInst inst = insts.get(j);
+                if(inst.isBarrier()) return false;
+                if(inst.isAddress() && inst.lhs.equals(la.lhs) && !written.contains(inst.dest)){
+                    prevReg = inst.dest;
+                    break;
+                }
+                String def = inst.getDef();
+                if(def != null) written.add(def);
+            }
+            if(prevReg == null) return false;
+            if(prevReg.equals(la.dest)){
+                insts.delete(i);
+                return true;
+            }
+            if(!isScratch(la.dest)) return false;
+            //把la.dest之后的读取都换成prevReg，要求这段范围内prevReg没有被改写，且la.dest在基本块内就死掉
+            List<Integer> uses = new ArrayList<>();
+            for(j = insts.next(i); j != -1; j = insts.next(j)){
+                AsmInst inst = insts.get(j);
+                if(inst.reads(la.dest)){
+                    if(inst.isBarrier()) return false;
+                    uses.add(j);
+                }
+                if(inst.isBarrier() || inst.writes(la.dest)) break;
+                if(inst.writes(prevReg)){
+                    if(insts.isDeadAfter(j, la.dest)) break;
+                    return false;
+                }
+            }
+            for(int use : uses){
+                insts.get(use).replaceUse(la.dest, prevReg);
+            }
+            insts.delete(i);
+            return true;
+        }
+    }
+}
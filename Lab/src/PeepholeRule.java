@@ -0,0 +1,5 @@
+//窥孔优化规则：检查以第i条指令开头的一小段汇编，能改写就直接修改insts并返回true
+public interface PeepholeRule {
+    String getName();
+    boolean apply(AsmInstList insts, int i);
+}
@@ -0,0 +1,87 @@
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//找出module中的纯函数：返回值只取决于参数，没有副作用，可以在编译时求值
+//  参数都是整数（数组参数会读写调用者的内存）
+//  load、store只访问自己的alloca；load还可以读常量全局变量
+//  只调用纯函数（库函数都有输入输出）
+//按乐观假设迭代：开始时所有有函数体的函数都是纯的，不满足条件的去掉，直到不再变化，互相递归的纯函数也能识别
+public class PurityAnalysis {
+    private final HashSet<Long> pure = new HashSet<>();
+
+    public PurityAnalysis(LLVMModuleRef module){
+        List<LLVMValueRef> functions = new ArrayList<>();
+        for(LLVMValueRef func = LLVMGetFirstFunction(module); func != null; func = LLVMGetNextFunction(func)){
+            if(LLVMIsDeclaration(func) == 0 && hasIntegerParams(func) && isLocal(func)){
+                functions.add(func);
+                pure.add(func.address());
+            }
+        }
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(LLVMValueRef func : functions){
+                if(pure.contains(func.address()) && !checkCalls(func)){
+                    pure.remove(func.address());
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public boolean isPure(LLVMValueRef func){
+        return pure.contains(func.address());
+    }
+
+    private static boolean hasIntegerParams(LLVMValueRef func){
+        for(int i = 0; i < LLVMCountParams(func); i++){
+            if(LLVMGetTypeKind(LLVMTypeOf(LLVMGetParam(func, i))) != LLVMIntegerTypeKind) return false;
+        }
+        LLVMTypeRef returnType = LLVMGetReturnType(LLVMGlobalGetValueType(func));
+        return LLVMGetTypeKind(returnType) == LLVMIntegerTypeKind || LLVMGetTypeKind(returnType) == LLVMVoidTypeKind;
+    }
+
+    //不依赖其他函数的条件：内存访问都在自己的栈上或常量全局变量中
+    private static boolean isLocal(LLVMValueRef func){
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                int opcode = LLVMGetInstructionOpcode(inst);
+                if(opcode == LLVMStore){
+                    if(LLVMIsAAllocaInst(base(LLVMGetOperand(inst, 1))) == null) return false;
+                }else if(opcode == LLVMLoad){
+                    LLVMValueRef base = base(LLVMGetOperand(inst, 0));
+                    if(LLVMIsAAllocaInst(base) == null && !isConstantGlobal(base)) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //调用的都是当前认为纯的函数
+    private boolean checkCalls(LLVMValueRef func){
+        for(LLVMBasicBlockRef bb = LLVMGetFirstBasicBlock(func); bb != null; bb = LLVMGetNextBasicBlock(bb)){
+            for(LLVMValueRef inst = LLVMGetFirstInstruction(bb); inst != null; inst = LLVMGetNextInstruction(inst)){
+                if(LLVMGetInstructionOpcode(inst) == LLVMCall && !pure.contains(LLVMGetCalledValue(inst).address())) return false;
+            }
+        }
+        return true;
+    }
+
+    //地址的来源：沿着GEP找到alloca或全局变量
+    static LLVMValueRef base(LLVMValueRef pointer){
+        while(LLVMIsAGetElementPtrInst(pointer) != null || (LLVMIsAConstantExpr(pointer) != null
+                && LLVMGetConstOpcode(pointer) == LLVMGetElementPtr)){
+            pointer = LLVMGetOperand(pointer, 0);
+        }
+        return pointer;
+    }
+
+    static boolean isConstantGlobal(LLVMValueRef value){
+        return LLVMIsAGlobalVariable(value) != null && LLVMIsGlobalConstant(value) != 0 && LLVMGetInitializer(value) != null;
+    }
+}
@@ -0,0 +1,8 @@
+import java.util.List;
+
+//寄存器分配器：为每个活跃区间确定寄存器，放不下的标记为溢出，栈槽由FrameLayout统一分配
+//跨过函数调用的区间只能分配被调用者保存的寄存器，其余区间优先使用调用者保存的寄存器，尽量少保存恢复
+public interface RegisterAllocator {
+    //moves中的每一项为{dest, src}，表示一条可以通过合并消除的mv
+    void allocate(List<LiveInterval> intervals, List<LiveInterval[]> moves);
+}
@@ -0,0 +1,55 @@
+import java.util.Arrays;
+import java.util.Collection;
+
+//寄存器压力：每条指令处同时活跃的区间个数，区间的空洞处不计
+//把所有区间各段的起点、终点各排序一次，然后用扫描线从前往后推进，总代价O(n log n)
+public class RegisterPressure {
+    private final int[] profile;
+    private int maxPressure;
+
+    public RegisterPressure(Collection<LiveInterval> intervals, int lineNum){
+        int n = 0;
+        for(LiveInterval interval : intervals){
+            n += interval.getRangeNum();
+        }
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int k = 0;
+        for(LiveInterval interval : intervals){
+            for(int r = 0; r < interval.getRangeNum(); r++){
+                starts[k] = interval.getRangeFrom(r);
+                ends[k] = interval.getRangeTo(r);
+                k++;
+            }
+        }
+        Arrays.sort(starts);
+        Arrays.sort(ends);
+        profile = new int[lineNum];
+        int s = 0, e = 0, live = 0;
+        for(int line = 0; line < lineNum; line++){
+            //区间是闭区间，终点为line-1的区间在line处才失效
+            while(s < n && starts[s] <= line){
+                live++;
+                s++;
+            }
+            while(e < n && ends[e] < line){
+                live--;
+                e++;
+            }
+            profile[line] = live;
+            maxPressure = Math.max(maxPressure, live);
+        }
+    }
+
+    public int getMaxPressure(){
+        return maxPressure;
+    }
+
+    public int getPressure(int line){
+        return profile[line];
+    }
+
+    public int[] getProfile(){
+        return profile;
+    }
+}
@@ -0,0 +1,98 @@
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//找出可以重新计算的值：这些值溢出后不用写回栈，每次使用时用li重新装入即可
+//  只被写入过同一个常数的局部变量（alloca），以及从这样的变量load出来的值，被转发了常数的全局变量load（COPY）
+//  所有来源都是同一个常数的phi
+//局部变量只被load、store直接使用时才考虑。乐观迭代：先假设都可以，遇到矛盾再降级，处理得了phi构成的环
+//在第一次store之前读出的值本来就是未定义的，当作那个常数也没有问题
+public class Rematerialization {
+    //格：TOP（还没见到定值）> 某个常数 > NOT
+    private static final int TOP = 0, CONST = 1, NOT = 2;
+
+    private final IRFunction func;
+    private final int[] state;
+    private final int[] constant;
+
+    public Rematerialization(IRFunction func){
+        this.func = func;
+        state = new int[func.valueNum];
+        constant = new int[func.valueNum];
+        for(int v = 0; v < func.valueNum; v++){
+            int op = func.opcode[v];
+            boolean candidate = func.isInstruction(v) && (func.isLocalVariable(v) || op == LLVMPHI
+                    || op == IRFunction.COPY_OPCODE || (op == LLVMLoad && isLocalPointer(v, 0)));
+            state[v] = candidate ? TOP : NOT;
+        }
+        //局部变量的地址被load、store以外的指令用到时，不知道它里面存的是什么
+        for(int inst = func.argNum; inst < func.valueNum; inst++){
+            for(int k = 0; k < func.getOperandNum(inst); k++){
+                if(!isLocalPointer(inst, k)) continue;
+                int op = func.opcode[inst];
+                if(!((op == LLVMLoad && k == 0) || (op == LLVMStore && k == 1))){
+                    state[func.getOperandValue(inst, k)] = NOT;
+                }
+            }
+        }
+        solve();
+        for(int v = 0; v < func.valueNum; v++){
+            if(state[v] == TOP) state[v] = NOT;
+        }
+    }
+
+    public boolean isRematerializable(int value){
+        return state[value] == CONST;
+    }
+
+    public int getConstant(int value){
+        return constant[value];
+    }
+
+    private boolean isLocalPointer(int inst, int k){
+        return func.getOperandKind(inst, k) == IRFunction.VALUE && func.isLocalVariable(func.getOperandValue(inst, k));
+    }
+
+    private void solve(){
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(int inst = func.argNum; inst < func.valueNum; inst++){
+                int op = func.opcode[inst];
+                if(op == LLVMStore && isLocalPointer(inst, 1)){
+                    changed |= meet(func.getOperandValue(inst, 1), inst, 0);
+                }else if((op == LLVMLoad || op == IRFunction.COPY_OPCODE) && state[inst] != NOT){
+                    changed |= meet(inst, inst, 0);
+                }else if(op == LLVMPHI && state[inst] != NOT){
+                    for(int k = 0; k + 1 < func.getOperandNum(inst); k += 2){
+                        changed |= meet(inst, inst, k);
+                    }
+                }
+            }
+        }
+    }
+
+    //把inst的第k个操作数的取值并入target，target变化时返回true
+    private boolean meet(int target, int inst, int k){
+        if(state[target] == NOT) return false;
+        int kind = func.getOperandKind(inst, k);
+        int value = func.getOperandValue(inst, k);
+        int otherState, otherConstant = 0;
+        if(kind == IRFunction.CONST){
+            otherState = CONST;
+            otherConstant = value;
+        }else if(kind == IRFunction.VALUE){
+            otherState = state[value];
+            otherConstant = constant[value];
+        }else{
+            otherState = NOT;
+        }
+        if(otherState == TOP) return false;
+        if(otherState == CONST && (state[target] == TOP || constant[target] == otherConstant)){
+            if(state[target] == CONST) return false;
+            state[target] = CONST;
+            constant[target] = otherConstant;
+            return true;
+        }
+        state[target] = NOT;
+        return true;
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//解释执行生成的RV32IM汇编，只认后端会生成的指令和伪指令，用来在没有RISC-V工具链的机器上跑tests
+//从main开始执行，main返回或者ecall 93时输出"exit 退出码 steps 执行的指令数"，指令数就是性能对比里的步数
+//用法：java RiscVSimulator main.s [最多执行的指令数]
+public class RiscVSimulator {
+    private static final String[] REG_NAMES = {"zero", "ra", "sp", "gp", "tp", "t0", "t1", "t2", "s0", "s1",
+            "a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7", "s2", "s3", "s4", "s5", "s6", "s7", "s8", "s9", "s10", "s11",
+            "t3", "t4", "t5", "t6"};
+    private static final Map<String, Integer> REGS = new HashMap<>();
+    private static final Pattern LABEL = Pattern.compile("^([A-Za-z_.$][\\w.$]*):\\s*(.*)$");
+    private static final Pattern MEMORY = Pattern.compile("^(-?\\w*)\\((\\w+)\\)$");
+    private static final int DATA_START = 0x10000, STACK_TOP = 0x7ff00000, RETURN_TO_HOST = -1;
+
+    static {
+        for(int i = 0; i < REG_NAMES.length; i++){
+            REGS.put(REG_NAMES[i], i);
+            REGS.put("x" + i, i);
+        }
+        REGS.put("fp", 8);
+    }
+
+    private final List<String> ops = new ArrayList<>();
+    private final List<String[]> args = new ArrayList<>();
+    //文本段的标号是指令下标，数据段的标号是地址
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<Integer, Integer> memory = new HashMap<>();
+    private final int[] regs = new int[32];
+    private long steps;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.err.println("usage: java RiscVSimulator <asm> [max steps]");
+            System.exit(2);
+        }
+        RiscVSimulator simulator = new RiscVSimulator(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8));
+        long maxSteps = args.length > 1 ? Long.parseLong(args[1]) : 200_000_000L;
+        Integer exitCode = simulator.run(maxSteps);
+        if(exitCode == null){
+            System.out.println("timeout steps " + simulator.steps);
+            System.exit(1);
+        }
+        System.out.println("exit " + exitCode + " steps " + simulator.steps);
+    }
+
+    public RiscVSimulator(String source){
+        String section = "text";
+        int dataPointer = DATA_START;
+        for(String raw : source.split("\n")){
+            String line = raw.split("#", 2)[0].trim();
+            Matcher m;
+            while((m = LABEL.matcher(line)).matches()){
+                labels.put(m.group(1), section.equals("text") ? ops.size() : dataPointer);
+                line = m.group(2).trim();
+            }
+            if(line.isEmpty()) continue;
+            String[] parts = line.split("\\s+", 2);
+            String op = parts[0];
+            String[] operands = parts.length > 1 ? parts[1].split("\\s*,\\s*") : new String[0];
+            switch (op){
+                case ".data": case ".section": case ".sdata": case ".bss": case ".sbss":
+                    section = "data";
+                    continue;
+                case ".text":
+                    section = "text";
+                    continue;
+                case ".globl": case ".global": case ".type": case ".size": case ".p2align": case ".option": case ".file":
+                    continue;
+                case ".align":
+                    int align = 1 << Integer.parseInt(operands[0]);
+                    dataPointer = (dataPointer + align - 1) / align * align;
+                    continue;
+                case ".word":
+                    for(String word : operands){
+                        memory.put(dataPointer, (int) Long.decode(word).longValue());
+                        dataPointer += 4;
+                    }
+                    continue;
+                case ".fill":
+                    int count = Integer.decode(operands[0]);
+                    for(int k = 0; k < count; k++){
+                        memory.put(dataPointer, (int) Long.decode(operands[2]).longValue());
+                        dataPointer += 4;
+                    }
+                    continue;
+                case ".zero": case ".space":
+                    dataPointer += Integer.decode(operands[0]);
+                    continue;
+                default:
+                    ops.add(op);
+                    args.add(operands);
+            }
+        }
+    }
+
+    //返回main的退出码，超过maxSteps条指令返回null
+    public Integer run(long maxSteps){
+        Integer main = labels.get("main");
+        if(main == null) throw new IllegalStateException("no main");
+        int pc = main;
+        regs[2] = STACK_TOP;
+        regs[1] = RETURN_TO_HOST;
+        while(true){
+            if(pc == RETURN_TO_HOST || pc >= ops.size()) return regs[10] & 0xff;
+            if(steps >= maxSteps) return null;
+            String op = ops.get(pc);
+            String[] a = args.get(pc);
+            pc++;
+            steps++;
+            switch (op){
+                case "li": write(a[0], (int) immediate(a[1])); break;
+                case "la": write(a[0], address(a[1])); break;
+                case "lui": write(a[0], (int) immediate(a[1]) << 12); break;
+                case "mv": write(a[0], read(a[1])); break;
+                case "neg": write(a[0], -read(a[1])); break;
+                case "not": write(a[0], ~read(a[1])); break;
+                case "seqz": write(a[0], read(a[1]) == 0 ? 1 : 0); break;
+                case "snez": write(a[0], read(a[1]) != 0 ? 1 : 0); break;
+                case "sltz": write(a[0], read(a[1]) < 0 ? 1 : 0); break;
+                case "sgtz": write(a[0], read(a[1]) > 0 ? 1 : 0); break;
+                case "lw": write(a[0], memory.getOrDefault(memoryAddress(a[1]), 0)); break;
+                case "sw": memory.put(memoryAddress(a[1]), read(a[0])); break;
+                case "add": case "sub": case "mul": case "mulh": case "mulhu": case "div": case "divu": case "rem": case "remu":
+                case "and": case "or": case "xor": case "sll": case "sra": case "srl": case "slt": case "sltu":
+                    write(a[0], binary(op, read(a[1]), read(a[2])));
+                    break;
+                case "addi": case "andi": case "ori": case "xori": case "slli": case "srai": case "srli": case "slti": case "sltiu":
+                    write(a[0], binary(op.replace("i", ""), read(a[1]), (int) immediate(a[2])));
+                    break;
+                case "beq": case "bne": case "blt": case "bge": case "bgt": case "ble": case "bltu": case "bgeu": case "bgtu": case "bleu":
+                    if(branch(op.substring(1), read(a[0]), read(a[1]))) pc = target(a[2]);
+                    break;
+                case "beqz": case "bnez": case "bltz": case "bgez": case "blez": case "bgtz":
+                    if(branch(op.substring(1, op.length() - 1), read(a[0]), 0)) pc = target(a[1]);
+                    break;
+                case "j": pc = target(a[0]); break;
+                case "call": case "jal":
+                    regs[1] = pc;
+                    pc = target(a[a.length - 1]);
+                    break;
+                case "ret": pc = regs[1]; break;
+                case "jr": pc = read(a[0]); break;
+                case "ecall":
+                    if(regs[17] == 93) return regs[10] & 0xff;
+                    throw new IllegalStateException("unsupported ecall " + regs[17]);
+                case "nop": break;
+                default:
+                    throw new IllegalStateException("unsupported instruction: " + op);
+            }
+        }
+    }
+
+    public long getSteps(){
+        return steps;
+    }
+
+    private static int binary(String op, int x, int y){
+        switch (op){
+            case "add": return x + y;
+            case "sub": return x - y;
+            case "mul": return x * y;
+            case "mulh": return (int) (((long) x * y) >> 32);
+            case "mulhu": return (int) (((x & 0xffffffffL) * (y & 0xffffffffL)) >>> 32);
+            //除数为0时按RISC-V的规定，不产生异常；Java里MIN_VALUE / -1本来就是MIN_VALUE
+            case "div": return y == 0 ? -1 : x / y;
+            case "divu": return y == 0 ? -1 : Integer.divideUnsigned(x, y);
+            case "rem": return y == 0 ? x : x % y;
+            case "remu": return y == 0 ? x : Integer.remainderUnsigned(x, y);
+            case "and": return x & y;
+            case "or": return x | y;
+            case "xor": return x ^ y;
+            case "sll": return x << (y & 31);
+            case "sra": return x >> (y & 31);
+            case "srl": return x >>> (y & 31);
+            case "slt": return x < y ? 1 : 0;
+            case "sltu": return Integer.compareUnsigned(x, y) < 0 ? 1 : 0;
+            default: throw new IllegalStateException("unsupported instruction: " + op);
+        }
+    }
+
+    private static boolean branch(String cond, int x, int y){
+        switch (cond){
+            case "eq": return x == y;
+            case "ne": return x != y;
+            case "lt": return x < y;
+            case "ge": return x >= y;
+            case "gt": return x > y;
+            case "le": return x <= y;
+            case "ltu": return Integer.compareUnsigned(x, y) < 0;
+            case "geu": return Integer.compareUnsigned(x, y) >= 0;
+            case "gtu": return Integer.compareUnsigned(x, y) > 0;
+            case "leu": return Integer.compareUnsigned(x, y) <= 0;
+            default: throw new IllegalStateException("unsupported branch: b" + cond);
+        }
+    }
+
+    private int read(String reg){
+        return regs[register(reg)];
+    }
+
+    private void write(String reg, int value){
+        int r = register(reg);
+        if(r != 0) regs[r] = value;
+    }
+
+    private static int register(String name){
+        Integer r = REGS.get(name);
+        if(r == null) throw new IllegalStateException("unknown register: " + name);
+        return r;
+    }
+
+    private int target(String label){
+        Integer target = labels.get(label);
+        if(target == null) throw new IllegalStateException("undefined symbol: " + label);
+        return target;
+    }
+
+    private long immediate(String text){
+        if(labels.containsKey(text)) return labels.get(text);
+        if(text.startsWith("%lo(") && text.endsWith(")")) return target(text.substring(4, text.length() - 1));
+        return Long.decode(text);
+    }
+
+    private int address(String text){
+        int plus = text.indexOf('+');
+        if(plus < 0) return target(text);
+        return target(text.substring(0, plus)) + Integer.parseInt(text.substring(plus + 1));
+    }
+
+    private int memoryAddress(String text){
+        Matcher m = MEMORY.matcher(text);
+        if(!m.matches()) throw new IllegalStateException("bad memory operand: " + text);
+        int offset = m.group(1).isEmpty() ? 0 : Integer.decode(m.group(1));
+        int address = read(m.group(2)) + offset;
+        if((address & 3) != 0) throw new IllegalStateException("misaligned access: " + Integer.toHexString(address));
+        return address;
+    }
+}
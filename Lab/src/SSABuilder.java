@@ -0,0 +1,173 @@
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.llvm.LLVM.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.bytedeco.llvm.global.LLVM.*;
+
+//生成IR时直接构造SSA（Braun et al., Simple and Efficient Construction of Static Single Assignment Form）
+//标量局部变量不分配alloca，每个基本块记录各变量当前的定值，读取时块内没有定值就沿前驱查找：
+//  只有一个前驱时直接取前驱的定值，多个前驱时在块首放一个phi，操作数为各前驱的定值
+//  块的前驱还没有全部生成（循环头、汇合块）时不能查前驱，先放一个不完整的phi，封闭（seal）块时再补上操作数
+//  所有操作数都相同（或是phi自身）的phi是多余的，用那个值替换掉，替换后再检查用到它的phi
+//前驱由生成跳转时记录。return、break之后同一个块里还会生成不可达的指令，其中的跳转不算边，赋值也不记录
+//被替换的phi在函数结束时才删除，此前它们的地址不会被复用，可以用地址查替换表
+public class SSABuilder {
+    private final LLVMBuilderRef builder;
+
+    private final List<String> variableNames = new ArrayList<>();
+    private final List<LLVMTypeRef> variableTypes = new ArrayList<>();
+    //按变量编号索引，块地址 -> 块末尾变量的定值
+    private final List<HashMap<Long, LLVMValueRef>> currentDef = new ArrayList<>();
+    private final HashMap<Long, List<LLVMBasicBlockRef>> predecessors = new HashMap<>();
+    private final HashSet<Long> sealedBlocks = new HashSet<>();
+    //已经有终结指令的块
+    private final HashSet<Long> terminatedBlocks = new HashSet<>();
+    //块地址 -> (变量编号 -> 不完整的phi)
+    private final HashMap<Long, HashMap<Integer, LLVMValueRef>> incompletePhis = new HashMap<>();
+    private final HashSet<Long> incompletePhiSet = new HashSet<>();
+    //被替换的phi -> 替换它的值
+    private final HashMap<Long, LLVMValueRef> replacedPhis = new HashMap<>();
+    private final List<LLVMValueRef> removedPhis = new ArrayList<>();
+    //phi -> 所在的块、对应的变量
+    private final HashMap<Long, LLVMBasicBlockRef> phiBlocks = new HashMap<>();
+    private final HashMap<Long, Integer> phiVariables = new HashMap<>();
+
+    public SSABuilder(LLVMBuilderRef builder){
+        this.builder = builder;
+    }
+
+    public int newVariable(String name, LLVMTypeRef type){
+        variableNames.add(name);
+        variableTypes.add(type);
+        currentDef.add(new HashMap<>());
+        return variableNames.size() - 1;
+    }
+
+    public void writeVariable(int variable, LLVMBasicBlockRef block, LLVMValueRef value){
+        if(terminatedBlocks.contains(block.address())) return;
+        currentDef.get(variable).put(block.address(), value);
+    }
+
+    public LLVMValueRef readVariable(int variable, LLVMBasicBlockRef block){
+        LLVMValueRef value = currentDef.get(variable).get(block.address());
+        if(value != null) return resolve(value);
+        return readVariableRecursive(variable, block);
+    }
+
+    //from的终结指令跳到targets。from已经有终结指令时，这条跳转不可达
+    public void addBranch(LLVMBasicBlockRef from, LLVMBasicBlockRef... targets){
+        if(!terminatedBlocks.add(from.address())) return;
+        for(LLVMBasicBlockRef target : targets){
+            predecessors.computeIfAbsent(target.address(), b -> new ArrayList<>()).add(from);
+        }
+    }
+
+    //ret之后块内的指令不可达
+    public void addReturn(LLVMBasicBlockRef from){
+        terminatedBlocks.add(from.address());
+    }
+
+    //block的前驱已经全部生成
+    public void sealBlock(LLVMBasicBlockRef block){
+        HashMap<Integer, LLVMValueRef> phis = incompletePhis.remove(block.address());
+        sealedBlocks.add(block.address());
+        if(phis == null) return;
+        for(int variable : phis.keySet()){
+            LLVMValueRef phi = phis.get(variable);
+            incompletePhiSet.remove(phi.address());
+            addPhiOperands(variable, phi);
+        }
+    }
+
+    //删除被替换掉的phi，此时它们已经没有使用者
+    public void finish(){
+        for(LLVMValueRef phi : removedPhis){
+            LLVMInstructionEraseFromParent(phi);
+        }
+        removedPhis.clear();
+    }
+
+    private LLVMValueRef readVariableRecursive(int variable, LLVMBasicBlockRef block){
+        LLVMValueRef value;
+        List<LLVMBasicBlockRef> preds = predecessors.getOrDefault(block.address(), new ArrayList<>());
+        if(!sealedBlocks.contains(block.address())){
+            value = newPhi(variable, block);
+            incompletePhis.computeIfAbsent(block.address(), b -> new HashMap<>()).put(variable, value);
+            incompletePhiSet.add(value.address());
+        }else if(preds.size() == 1){
+            value = readVariable(variable, preds.get(0));
+        }else{
+            //先记下phi再查前驱，循环回到这个块时会读到phi本身
+            LLVMValueRef phi = newPhi(variable, block);
+            currentDef.get(variable).put(block.address(), phi);
+            value = addPhiOperands(variable, phi);
+        }
+        currentDef.get(variable).put(block.address(), value);
+        return value;
+    }
+
+    private LLVMValueRef newPhi(int variable, LLVMBasicBlockRef block){
+        LLVMBasicBlockRef current = LLVMGetInsertBlock(builder);
+        LLVMValueRef first = LLVMGetFirstInstruction(block);
+        if(first != null){
+            LLVMPositionBuilderBefore(builder, first);
+        }else{
+            LLVMPositionBuilderAtEnd(builder, block);
+        }
+        LLVMValueRef phi = LLVMBuildPhi(builder, variableTypes.get(variable), variableNames.get(variable));
+        LLVMPositionBuilderAtEnd(builder, current);
+        phiBlocks.put(phi.address(), block);
+        phiVariables.put(phi.address(), variable);
+        return phi;
+    }
+
+    private LLVMValueRef addPhiOperands(int variable, LLVMValueRef phi){
+        LLVMBasicBlockRef block = phiBlocks.get(phi.address());
+        for(LLVMBasicBlockRef pred : predecessors.getOrDefault(block.address(), new ArrayList<>())){
+            LLVMValueRef value = readVariable(variable, pred);
+            LLVMValueRef[] incomingValues = {value};
+            LLVMBasicBlockRef[] incomingBlocks = {pred};
+            LLVMAddIncoming(phi, new PointerPointer<>(incomingValues), new PointerPointer<>(incomingBlocks), 1);
+        }
+        return tryRemoveTrivialPhi(variable, phi);
+    }
+
+    private LLVMValueRef tryRemoveTrivialPhi(int variable, LLVMValueRef phi){
+        LLVMValueRef same = null;
+        for(int i = 0; i < LLVMCountIncoming(phi); i++){
+            LLVMValueRef op = resolve(LLVMGetIncomingValue(phi, i));
+            if(op.address() == phi.address() || (same != null && op.address() == same.address())) continue;
+            if(same != null) return phi;
+            same = op;
+        }
+        //没有前驱的块不可达，读到的值无所谓，按未初始化的局部变量取0
+        if(same == null) same = LLVMConstNull(variableTypes.get(variable));
+        List<LLVMValueRef> users = new ArrayList<>();
+        for(LLVMUseRef use = LLVMGetFirstUse(phi); use != null; use = LLVMGetNextUse(use)){
+            LLVMValueRef user = LLVMGetUser(use);
+            if(user.address() != phi.address() && LLVMIsAPHINode(user) != null) users.add(user);
+        }
+        LLVMReplaceAllUsesWith(phi, same);
+        replacedPhis.put(phi.address(), same);
+        removedPhis.add(phi);
+        for(LLVMValueRef user : users){
+            long address = user.address();
+            if(replacedPhis.containsKey(address) || incompletePhiSet.contains(address) || !phiBlocks.containsKey(address)) continue;
+            tryRemoveTrivialPhi(phiVariables.get(address), user);
+        }
+        return same;
+    }
+
+    private LLVMValueRef resolve(LLVMValueRef value){
+        LLVMValueRef replaced = replacedPhis.get(value.address());
+        while(replaced != null){
+            value = replaced;
+            replaced = replacedPhis.get(value.address());
+        }
+        return value;
+    }
+}
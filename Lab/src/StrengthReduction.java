@@ -0,0 +1,167 @@
+//乘除法的强度削弱：一个操作数是常数时，用移位、加减和mulh代替mul、div、rem
+//  乘常数：c = ±(2^a ± 2^b) 时用 ((x << (a-b)) ± x) << b，最多三条移位、加减再加一条取反
+//  除以2^k：负数要向零取整，先加上 2^k - 1（由符号位右移得到）再算术右移
+//  除以其他常数：q = mulh(n, M)，必要时加n，再算术右移s位，最后n为负数时加1（magic number，Hacker's Delight 10-4）
+//  除数为负数时按|d|算再取反，取余 n % d = n - (n / |d|) * |d|，与d的符号无关
+//除数为0和-2^31时不处理，保留div、rem
+public class StrengthReduction {
+    private StrengthReduction(){
+    }
+
+    //乘以c用移位、加减实现需要的指令数，不能实现时返回-1
+    public static int mulSize(int c){
+        if(c == 0 || c == 1) return 1;
+        if(c == Integer.MIN_VALUE) return 1;
+        int size = (c < 0 ? 1 : 0);
+        int[] terms = mulTerms(Math.abs(c));
+        if(terms == null) return -1;
+        if(terms[0] == 0) return terms[2] == 0 ? 1 : size + 1;
+        return size + (terms[2] == 0 ? 2 : 3);
+    }
+
+    //|c| = 2^a ± 2^b 时返回{a - b, 正负, b}，只有一项时第一项为0
+    private static int[] mulTerms(int c){
+        if(InstructionSelector.isPowerOfTwo(c)){
+            return new int[]{0, 1, Integer.numberOfTrailingZeros(c)};
+        }
+        int b = Integer.numberOfTrailingZeros(c);
+        int rest = c >>> b;
+        if(InstructionSelector.isPowerOfTwo(rest - 1)){
+            return new int[]{Integer.numberOfTrailingZeros(rest - 1), 1, b};
+        }
+        if(rest + 1 > 0 && InstructionSelector.isPowerOfTwo(rest + 1)){
+            return new int[]{Integer.numberOfTrailingZeros(rest + 1), -1, b};
+        }
+        return null;
+    }
+
+    //dest = src * c，mulSize(c)不为-1时才能调用。temp与src不同，dest可以与src相同
+    public static void emitMul(AsmEmitter out, String dest, String src, int c, String temp){
+        if(c == 0){
+            out.op1("mv", dest, "zero");
+            return;
+        }
+        if(c == Integer.MIN_VALUE){
+            out.op2("slli", dest, src, 31);
+            return;
+        }
+        int[] terms = mulTerms(Math.abs(c));
+        if(terms[0] == 0){
+            if(terms[2] == 0){
+                out.op1(c < 0 ? "neg" : "mv", dest, src);
+                return;
+            }
+            out.op2("slli", dest, src, terms[2]);
+        }else{
+            String sum = terms[2] == 0 ? dest : temp;
+            out.op2("slli", temp, src, terms[0]);
+            out.op2(terms[1] > 0 ? "add" : "sub", sum, temp, src);
+            if(terms[2] != 0){
+                out.op2("slli", dest, temp, terms[2]);
+            }
+        }
+        if(c < 0){
+            out.op1("neg", dest, dest);
+        }
+    }
+
+    //除以d能否用移位和mulh实现
+    public static boolean canDivide(int d){
+        return d != 0 && d != Integer.MIN_VALUE;
+    }
+
+    //除以d需要的指令数，mulh也算一条
+    public static int divSize(int d){
+        int size = (d < 0 ? 1 : 0);
+        int ad = Math.abs(d);
+        if(ad == 1) return 1;
+        if(InstructionSelector.isPowerOfTwo(ad)){
+            return size + (ad == 2 ? 3 : 4);
+        }
+        int[] magic = magic(ad);
+        return size + InstructionSelector.loadImmSize(magic[0]) + 3 + (magic[0] < 0 ? 1 : 0) + (magic[1] > 0 ? 1 : 0);
+    }
+
+    //n % d 需要的指令数：商、乘回|d|、相减
+    public static int remSize(int d){
+        int ad = Math.abs(d);
+        if(ad == 1) return 1;
+        int size = divSize(ad) + 1;
+        int mul = mulSize(ad);
+        return size + (mul != -1 ? mul : InstructionSelector.loadImmSize(ad) + 1);
+    }
+
+    //取余时乘回|d|是否要用mul
+    public static boolean remUsesMul(int d){
+        return Math.abs(d) != 1 && mulSize(Math.abs(d)) == -1;
+    }
+
+    //除以d是否用到了mulh
+    public static boolean usesMulh(int d){
+        int ad = Math.abs(d);
+        return ad != 1 && !InstructionSelector.isPowerOfTwo(ad);
+    }
+
+    //q = n / d，canDivide(d)时才能调用。q与n不同，temp与q不同，temp可以与n相同（n用完之后才写temp）
+    public static void emitDiv(AsmEmitter out, String q, String n, int d, String temp){
+        int ad = Math.abs(d);
+        if(ad == 1){
+            out.op1(d < 0 ? "neg" : "mv", q, n);
+            return;
+        }
+        if(InstructionSelector.isPowerOfTwo(ad)){
+            int k = Integer.numberOfTrailingZeros(ad);
+            if(k == 1){
+                out.op2("srli", q, n, 31);
+            }else{
+                out.op2("srai", q, n, 31);
+                out.op2("srli", q, q, 32 - k);
+            }
+            out.op2("add", q, n, q);
+            out.op2("srai", q, q, k);
+        }else{
+            int[] magic = magic(ad);
+            out.op1("li", q, magic[0]);
+            out.op2("mulh", q, n, q);
+            if(magic[0] < 0){
+                out.op2("add", q, q, n);
+            }
+            if(magic[1] > 0){
+                out.op2("srai", q, q, magic[1]);
+            }
+            //n为负数时q也为负数，向零取整要加1
+            out.op2("srli", temp, q, 31);
+            out.op2("add", q, q, temp);
+        }
+        if(d < 0){
+            out.op1("neg", q, q);
+        }
+    }
+
+    //d >= 2 且不是2的幂时的magic number {M, s}，满足 n / d = (n * M >> (32 + s)) + (n < 0 ? 1 : 0)
+    static int[] magic(int d){
+        final long two31 = 1L << 31;
+        long anc = two31 - 1 - two31 % d;
+        int p = 31;
+        long q1 = two31 / anc, r1 = two31 - q1 * anc;
+        long q2 = two31 / d, r2 = two31 - q2 * d;
+        long delta;
+        do{
+            p++;
+            q1 *= 2;
+            r1 *= 2;
+            if(r1 >= anc){
+                q1++;
+                r1 -= anc;
+            }
+            q2 *= 2;
+            r2 *= 2;
+            if(r2 >= d){
+                q2++;
+                r2 -= d;
+            }
+            delta = d - r2;
+        }while(q1 < delta || (q1 == delta && r1 == 0));
+        return new int[]{(int) (q2 + 1), p - 32};
+    }
+}
@@ -0,0 +1,43 @@
+#!/bin/bash
+# 把tests下每个有.out的.sysy分别用-O0/-O1/-O2、线性扫描和图着色两种寄存器分配编译，
+# 用RiscVSimulator执行，退出码和.out比较。<name>.flags里每行是一组额外要跑的选项（同样两种分配都跑）
+# 用法：在Lab下 make check，或者 bash tests/run.sh [classes目录]
+# 环境变量SHOW_STEPS=1时每个配置都输出执行的指令数
+cd "$(dirname "$0")/.." || exit 2
+CLASSES=$(cd "${1:-classes}" && pwd) || exit 2
+CP="$CLASSES:$CLASSPATH"
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+pass=0
+fail=0
+for src in tests/*.sysy; do
+    name=$(basename "$src" .sysy)
+    [ -f "tests/$name.out" ] || continue
+    expected=$(tr -d '[:space:]' < "tests/$name.out")
+    configs=("-O0" "-O1" "-O2")
+    if [ -f "tests/$name.flags" ]; then
+        while IFS= read -r line; do
+            [ -n "$line" ] && configs+=("$line")
+        done < "tests/$name.flags"
+    fi
+    for config in "${configs[@]}"; do
+        for alloc in -regalloc=linear -regalloc=graph; do
+            asm="$WORK/$name.s"
+            rm -f "$asm"
+            java -classpath "$CP" Main "$src" "$asm" $config $alloc > "$WORK/log" 2>&1
+            result=$( [ -f "$asm" ] && java -classpath "$CP" RiscVSimulator "$asm" 2>&1 )
+            actual=$(echo "$result" | awk '$1 == "exit" { print $2 }')
+            if [ "$actual" = "$expected" ]; then
+                pass=$((pass + 1))
+                [ -n "$SHOW_STEPS" ] && echo "ok   $name $config $alloc: $result"
+            else
+                fail=$((fail + 1))
+                echo "FAIL $name $config $alloc: expected $expected, got ${result:-no output}"
+                grep -i "exception\|error" "$WORK/log" | head -3
+            fi
+        done
+    done
+done
+echo "$pass passed, $fail failed"
+[ "$fail" -eq 0 ]